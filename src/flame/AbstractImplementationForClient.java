@@ -30,6 +30,60 @@ public abstract class AbstractImplementationForClient extends
         sendRequest(loginEvent);
 	}
 	
+	/**
+	 * Sends a HistoryAck event to let FLAME Server stream more of the Event history
+	 * 
+	 * @param username		Username of the Architect
+	 * @param history		The History event that has been consumed
+	 */
+	protected void sendHistoryAck (String username, Event history) {
+		Event ackEvent = new Event("HistoryAck");
+		
+		ackEvent.addParameter("SenderUsername", 	username);
+		ackEvent.addParameter("OriginComponent", 	name);
+		ackEvent.addParameter("ReplayID", 			history.getParameter("ReplayID"));
+		
+		sendRequest(ackEvent);
+	}
+	
+	/**
+	 * Checks whether a History event ends the replay, and asks FLAME Server for the 
+	 * history again if the replay has been aborted, since the model is partial then
+	 * 
+	 * @param username		Username of the Architect
+	 * @param history		The History event that has been consumed
+	 */
+	protected void checkHistoryEnd (String username, Event history) {
+		if(history.hasParameter("IsAborted") && (Boolean) history.getParameter("IsAborted")) {
+			printMsg(name, "Error: FLAME Server has aborted the history replay. Requesting the history again ...");
+			
+			Event replayEvent = new Event("Replay");
+			
+			replayEvent.addParameter("SenderUsername", 		username);
+			replayEvent.addParameter("OriginComponent", 	name);
+			
+			sendRequest(replayEvent);
+		} else if(history.hasParameter("IsComplete") && (Boolean) history.getParameter("IsComplete")) {
+			printMsg(name, "The history replay has been completed.");
+		}
+	}
+	
+	/**
+	 * Gets the Events carried by a History event
+	 * 
+	 * @param e				History event
+	 * @return				The Events in the order they are supposed to be handled
+	 */
+	@SuppressWarnings("unchecked")
+	protected ArrayList<Event> getHistoryEvents (Event e) {
+		if(!e.hasParameter("Events")) {
+			printMsg(name, "Error: A History Event does not have the Events parameter");
+			return new ArrayList<Event> ();
+		}
+		
+		return (ArrayList<Event>) e.getParameter("Events");
+	}
+	
 	/**
 	 * Decides whether an incoming Event is for this architect
 	 * 
@@ -158,11 +212,12 @@ public abstract class AbstractImplementationForClient extends
 				break;
 				
 			/*
-			 * Accept an Init when
+			 * Accept an Init or a History when
 			 * ReceiverUsername == username && ReceiverComponent == name
 			 */
 				
 			case "Init":
+			case "History":
 				// if it is targeted at this architect
 				if (	receiverUsername.equals(username) &&
 						receiverComponent.equals(name)) {
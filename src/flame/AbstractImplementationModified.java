@@ -56,6 +56,14 @@ public abstract class AbstractImplementationModified extends AbstractImplementat
 		return screenLogger;
 	}
 	
+	/**
+	 * Gets the Component name
+	 * @return				Component name
+	 */
+	public String getComponentName() {
+		return name;
+	}
+	
 	
 	/**
 	 * Sets up the component name -- it must be called at the constructor of class that inherit this class
@@ -3,70 +3,426 @@ package flame;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 /**
- * ArchiveUtility class has helper methods that handle ZIP archives.
- * 
+ * ArchiveUtility class has helper methods that handle ZIP archives.<p>
+ *
+ * Extractions run concurrently unless they share a target directory; the extractions into
+ * the same directory take turns. An archive larger than the parallel threshold is inflated
+ * by the extracting thread together with the threads of a pool shared by all extractions,
+ * each reading its own entries from a {@link ZipFile}.
+ *
  * @author 					<a href="mailto:jaeyounb@usc.edu">Jae young Bang</a>
  * @version					2014.12
  */
 public class ArchiveUtility {
-	protected static final int bufferSize = 1024;
-	
+	protected static final int bufferSize = 64 * 1024;
+
+	/**
+	 * Default archive size in bytes from which the entries are inflated in parallel
+	 */
+	public static final long						DEFAULT_PARALLEL_THRESHOLD	= 8 * 1024 * 1024;
+
+	/**
+	 * Archive size in bytes from which the entries are inflated in parallel; 0 or less turns it off
+	 */
+	private static volatile long					parallelThreshold			= DEFAULT_PARALLEL_THRESHOLD;
+
+	/**
+	 * Number of threads that inflate the entries of a large archive
+	 */
+	private static volatile int						parallelThreads				= Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Threads that help the extractions inflate large archives, shared by all extractions
+	 */
+	private static ThreadPoolExecutor				extractors					= null;
+
+	/**
+	 * Target directory-lock mapping of the extractions in progress
+	 */
+	private static final Map<Path, DirectoryLock>	directoryLocks				= new HashMap<>();
+
+	/**
+	 * Lock of a target directory, and the number of extractions holding or waiting for it
+	 */
+	private static class DirectoryLock {
+		private final Semaphore		semaphore	= new Semaphore(1, true);
+		private int					users		= 0;
+	}
+
+	/**
+	 * Sets the archive size from which the entries are inflated in parallel
+	 *
+	 * @param threshold				Size in bytes; 0 or less turns parallel inflation off
+	 * @param threads				Number of inflating threads shared by all extractions; 0 or less for the number of cores
+	 */
+	public static synchronized void setParallelExtraction (long threshold, int threads) {
+		parallelThreshold	= threshold;
+		parallelThreads		= threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+
+		// resizes the pool if it is already there
+		if(extractors != null) {
+			if(parallelThreads > extractors.getMaximumPoolSize()) {
+				extractors.setMaximumPoolSize(parallelThreads);
+				extractors.setCorePoolSize(parallelThreads);
+			} else {
+				extractors.setCorePoolSize(parallelThreads);
+				extractors.setMaximumPoolSize(parallelThreads);
+			}
+		}
+	}
+
+	/**
+	 * Returns the pool of the inflating threads, creating it on the first parallel extraction
+	 */
+	private static synchronized ThreadPoolExecutor getExtractors () {
+		if(extractors == null) {
+			extractors = new ThreadPoolExecutor(parallelThreads, parallelThreads,
+												60, TimeUnit.SECONDS,
+												new LinkedBlockingQueue<Runnable>(),
+												new ThreadFactory() {
+													@Override
+													public Thread newThread(Runnable r) {
+														Thread thread = new Thread(r, "ArchiveExtractor");
+														thread.setDaemon(true);
+														return thread;
+													}
+												});
+			extractors.allowCoreThreadTimeOut(true);
+		}
+		return extractors;
+	}
+
 	/**
 	 * Extracts a ZIP archive into the target directory
-	 * 
+	 *
 	 * @param archive				Path to the archive to extract
 	 * @param targetDirectory		Directory to which the files will be extracted
 	 * @throws Exception
 	 */
-	public static synchronized void extract (Path archive, Path targetDirectory) throws Exception {
+	public static void extract (Path archive, Path targetDirectory) throws Exception {
 		System.out.println("Unzipping " + archive.getFileName().toString() + "...");
+
+		Path 			target	= targetDirectory.toAbsolutePath().normalize();
+		DirectoryLock	lock	= lockDirectory(target);
+		try {
+			long size = Files.size(archive);
+
+			// extracts the source code archive to the target directory
+			if(parallelThreshold > 0 && size >= parallelThreshold && parallelThreads > 1) {
+				extractParallel(archive, target);
+			} else {
+				try (FileInputStream fin = new FileInputStream(archive.toFile())) {
+					extractEntries(fin, target);
+				}
+			}
+		} catch (IOException ioe_outter) {
+			throw new Exception ("Error while extracting " + archive);
+		} finally {
+			unlockDirectory(target, lock);
+		}
+		System.out.println("Unzipping " + archive.getFileName().toString() + " done.");
+	}
+
+	/**
+	 * Extracts a ZIP archive read from a stream (e.g., a socket) into the target directory
+	 *
+	 * @param in					Stream of the archive; closed when done
+	 * @param targetDirectory		Directory to which the files will be extracted
+	 * @throws Exception
+	 */
+	public static void extract (InputStream in, Path targetDirectory) throws Exception {
+		Path 			target	= targetDirectory.toAbsolutePath().normalize();
+		DirectoryLock	lock	= lockDirectory(target);
+		try {
+			extractEntries(in, target);
+		} finally {
+			unlockDirectory(target, lock);
+		}
+	}
+
+	/**
+	 * Extracts the entries of a ZIP stream one after another
+	 *
+	 * @param in					Stream of the archive; closed when done
+	 * @param target				Normalized absolute target directory
+	 * @throws Exception
+	 */
+	private static void extractEntries (InputStream in, Path target) throws Exception {
 		byte[] buffer = new byte[bufferSize];
-		
-		// extracts the source code archive to the target directory
-		try (ZipInputStream zin = new ZipInputStream(new FileInputStream(archive.toFile()))) {
+
+		try (ZipInputStream zin = new ZipInputStream(in)) {
 			ZipEntry 		ze;
 			while ((ze = zin.getNextEntry()) != null) {
-				Path extractedFile = targetDirectory.resolve(ze.getName());
+				Path extractedFile = resolveEntry(target, ze);
+
 				try (FileOutputStream fout = new FileOutputStream(extractedFile.toFile())) {
-					
+
 					int len;
 					while ((len = zin.read(buffer)) > 0) {
 						fout.write(buffer, 0, len);
 					}
-			      
+
 					zin.closeEntry();
 				} catch (IOException ioe_inner) {
 					throw new Exception ("Error while extracting a file from the archive: " + extractedFile);
 				}
 			}
 		} catch (IOException ioe_outter) {
-			throw new Exception ("Error while extracting " + archive);
+			throw new Exception ("Error while extracting an archive stream: " + ioe_outter);
+		}
+	}
+
+	/**
+	 * Extracts the entries of a ZIP archive with several threads; each thread reads and
+	 * inflates its own entries from the shared {@link ZipFile}. The calling thread inflates
+	 * entries as well, so the extraction goes on even when the pool is busy with others.
+	 *
+	 * @param archive				Path to the archive to extract
+	 * @param target				Normalized absolute target directory
+	 * @throws Exception
+	 */
+	private static void extractParallel (Path archive, Path target) throws Exception {
+		try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+			// queues the entries, largest first so that the threads finish close together
+			List<ZipEntry> entries = new ArrayList<>();
+			for(Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements();) {
+				ZipEntry ze = e.nextElement();
+				if(!ze.isDirectory()) {
+					entries.add(ze);
+				}
+			}
+			Collections.sort(entries, new Comparator<ZipEntry>() {
+				@Override
+				public int compare(ZipEntry a, ZipEntry b) {
+					return Long.compare(b.getSize(), a.getSize());
+				}
+			});
+			ConcurrentLinkedQueue<ZipEntry> queue = new ConcurrentLinkedQueue<>(entries);
+
+			// hands helpers to the shared pool, and inflates entries on this thread as well
+			int 					helpers 		= Math.min(parallelThreads, entries.size()) - 1;
+			ThreadPoolExecutor		pool			= getExtractors();
+			List<EntryExtractor> 	entryExtractors	= new ArrayList<>();
+			for(int i = 0; i < helpers; i++) {
+				EntryExtractor extractor = new EntryExtractor(zipFile, queue, target);
+				entryExtractors.add(extractor);
+				pool.execute(extractor);
+			}
+			EntryExtractor own = new EntryExtractor(zipFile, queue, target);
+			entryExtractors.add(own);
+			own.run();
+
+			// waits for the helpers that have started; the others are no longer needed
+			for(EntryExtractor extractor : entryExtractors) {
+				extractor.finish();
+			}
+
+			// reports the first error
+			for(EntryExtractor extractor : entryExtractors) {
+				if(extractor.error != null) {
+					throw extractor.error;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Task that takes entries from a queue and inflates them into the target directory
+	 */
+	private static class EntryExtractor implements Runnable {
+		private final ZipFile							zipFile;
+		private final ConcurrentLinkedQueue<ZipEntry>	queue;
+		private final Path								target;
+		private volatile Exception						error;
+		private boolean									started		= false;
+		private boolean									skipped		= false;
+		private final CountDownLatch					done		= new CountDownLatch(1);
+
+		public EntryExtractor (ZipFile zipFile, ConcurrentLinkedQueue<ZipEntry> queue, Path target) {
+			this.zipFile	= zipFile;
+			this.queue		= queue;
+			this.target		= target;
+		}
+
+		/**
+		 * Waits for the task if it has started, or keeps it from starting otherwise
+		 */
+		public void finish() throws InterruptedException {
+			synchronized (this) {
+				if(!started) {
+					skipped = true;
+					return;
+				}
+			}
+			done.await();
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				if(skipped) {
+					return;
+				}
+				started = true;
+			}
+			try {
+				inflate();
+			} finally {
+				done.countDown();
+			}
+		}
+
+		private void inflate() {
+			byte[] buffer = new byte[bufferSize];
+
+			ZipEntry ze;
+			while (error == null && (ze = queue.poll()) != null) {
+				Path extractedFile = null;
+				try {
+					extractedFile = resolveEntry(target, ze);
+					try (	InputStream 		zin 	= zipFile.getInputStream(ze);
+							FileOutputStream 	fout 	= new FileOutputStream(extractedFile.toFile())) {
+						int len;
+						while ((len = zin.read(buffer)) > 0) {
+							fout.write(buffer, 0, len);
+						}
+					}
+				} catch (IOException ioe) {
+					error = new Exception ("Error while extracting a file from the archive: " + extractedFile);
+				} catch (Exception e) {
+					error = e;
+				}
+			}
 		}
-		System.out.println("Unzipping " + archive.getFileName().toString() + " done.");
 	}
-	
+
+	/**
+	 * Resolves the path an entry is extracted to
+	 *
+	 * @param target				Normalized absolute target directory
+	 * @param ze					Archive entry
+	 * @return						Path to extract the entry to
+	 * @throws Exception			The entry would land outside the target directory
+	 */
+	private static Path resolveEntry (Path target, ZipEntry ze) throws Exception {
+		Path extractedFile = target.resolve(ze.getName()).normalize();
+
+		// the entries may come from another machine; none may land outside the target directory
+		if(!extractedFile.startsWith(target)) {
+			throw new Exception ("Archive entry outside the target directory: " + ze.getName());
+		}
+
+		return extractedFile;
+	}
+
+	/**
+	 * Locks a target directory against the other extractions into it
+	 *
+	 * @param target				Normalized absolute target directory
+	 * @return						The lock to hand back to {@link #unlockDirectory(Path, DirectoryLock)}
+	 */
+	private static DirectoryLock lockDirectory (Path target) {
+		DirectoryLock lock;
+		synchronized (directoryLocks) {
+			lock = directoryLocks.get(target);
+			if(lock == null) {
+				lock = new DirectoryLock();
+				directoryLocks.put(target, lock);
+			}
+			lock.users++;
+		}
+
+		lock.semaphore.acquireUninterruptibly();
+		return lock;
+	}
+
+	/**
+	 * Unlocks a target directory, and forgets its lock when no other extraction needs it
+	 *
+	 * @param target				Normalized absolute target directory
+	 * @param lock					The lock returned by {@link #lockDirectory(Path)}
+	 */
+	private static void unlockDirectory (Path target, DirectoryLock lock) {
+		lock.semaphore.release();
+
+		synchronized (directoryLocks) {
+			if(--lock.users == 0) {
+				directoryLocks.remove(target);
+			}
+		}
+	}
+
 	/**
 	 * Archives a list of target files into a ZIP archive
-	 * 
+	 *
 	 * @param archive			Path to the archive
 	 * @param targetFiles		List of files to put into the archive
 	 * @throws Exception
 	 */
 	public static void archive (Path archive, List<Path> targetFiles) throws Exception {
 		// creates the archive
+		try (FileOutputStream fout = new FileOutputStream(archive.toFile())) {
+			archive(fout, targetFiles);
+		} catch (IOException ioe_outter) {
+			throw new Exception ("Error while archiving " + archive.getFileName());
+		}
+	}
+
+	/**
+	 * Archives a list of target files into a ZIP archive written to a stream (e.g., a socket)
+	 *
+	 * @param out				Stream to write the archive to; closed when done
+	 * @param targetFiles		List of files to put into the archive
+	 * @throws Exception
+	 */
+	public static void archive (OutputStream out, List<Path> targetFiles) throws Exception {
+		Map<String, Path> entries = new LinkedHashMap<>();
+		for(Path file : targetFiles) {
+			entries.put(file.getFileName().toString(), file);
+		}
+		archive(out, entries);
+	}
+
+	/**
+	 * Archives files under the given entry names into a ZIP archive written to a stream
+	 *
+	 * @param out				Stream to write the archive to; closed when done
+	 * @param entries			Entry name-file mapping
+	 * @throws Exception
+	 */
+	public static void archive (OutputStream out, Map<String, Path> entries) throws Exception {
 		byte[] buffer = new byte[bufferSize];
-		try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archive.toFile()))) {
+		try (ZipOutputStream zos = new ZipOutputStream(out)) {
 
 			//	Loop through each file
-			for(Path file : targetFiles) {
-				ZipEntry ze = new ZipEntry(file.getFileName().toString());
+			for(Map.Entry<String, Path> entry : entries.entrySet()) {
+				Path file = entry.getValue();
+				ZipEntry ze = new ZipEntry(entry.getKey());
 				zos.putNextEntry(ze);
 				try (FileInputStream in = new FileInputStream(file.toFile())) {
 					int len;
@@ -79,7 +435,7 @@ public class ArchiveUtility {
 				zos.closeEntry();
 			}
 		} catch (IOException ioe_outter) {
-			throw new Exception ("Error while archiving " + archive.getFileName());
+			throw new Exception ("Error while writing an archive stream: " + ioe_outter);
 		}
 	}
 }
@@ -1,11 +1,24 @@
 package flame;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.TreeMap;
 import java.util.concurrent.Semaphore;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import Prism.core.Event;
 
@@ -16,7 +29,10 @@ import Prism.core.Event;
  * later when the architect presses the snapshot button. When the snapshot button
  * is pressed, apply Events in the buffer. <p>
  * 
- * Arrival queue is used to order the incoming events that arrive in a random order.
+ * Arrival queues (one per architect) are used to order the incoming events that arrive in a random order. <p>
+ * 
+ * The committed part of the history (up to the last Snapshot of each architect) is 
+ * periodically checkpointed into compressed off-heap segments.
  * 
  * @author 					<a href=mailto:jaeyounb@usc.edu>Jae young Bang</a>
  * @version					2013.05
@@ -33,9 +49,30 @@ public class EventStorage {
 	protected final Semaphore mSemaphore = new Semaphore (1, true);
 	
 	/**
-	 * List of Events that have been forwarded to FLAME Adaptor
+	 * Username-history mapping: Events that have been forwarded to FLAME Adaptor, 
+	 * partitioned per architect and ordered by EventID
+	 */
+	protected Map<String, ArrayList<HistoryEntry>>	eventHistory;
+	
+	/**
+	 * Sequence number to be assigned to the next Event added to the History
 	 */
-	protected ArrayList<Event> 		eventHistory;
+	protected long					historySequence;
+	
+	/**
+	 * Username-index mapping: every entry of the architect's History before this index has been checkpointed
+	 */
+	protected Map<String, Integer>	checkpointed;
+	
+	/**
+	 * Minimum number of committed Events of an architect to put in a checkpoint at once
+	 */
+	protected int					checkpointSize;
+	
+	/**
+	 * Default minimum number of committed Events of an architect to put in a checkpoint at once
+	 */
+	public static final int			DEFAULT_CHECKPOINT_SIZE	= 500;
 	
 	/**
 	 * List of Events that have been ordered through the arrival queue, but have NOT YET been forwarded to FLAME Adaptor
@@ -43,9 +80,10 @@ public class EventStorage {
 	protected ArrayList<Event>		eventBuffer;
 	
 	/**
-	 * List of Events that are just arriving, but have NOT YET been ordered by their EventID
+	 * Username-arrival queue mapping: Events that are just arriving, but have NOT YET been ordered by their EventID.
+	 * Each architect has its own queue keyed by EventID.
 	 */
-	protected ArrayList<Event>		eventArrival; 
+	protected Map<String, TreeMap<Integer, Event>>	eventArrival; 
 	
 	/**
 	 * Username-EventID mapping: this indicates the last EventID that was assigned to an Event by each architect
@@ -79,9 +117,12 @@ public class EventStorage {
 	public EventStorage(ScreenLogger screenLogger) {
 		sl					= screenLogger;
 		
-		eventHistory 		= new ArrayList<Event> ();
+		eventHistory 		= new TreeMap<String, ArrayList<HistoryEntry>> ();
+		historySequence		= 0;
+		checkpointed		= new TreeMap<String, Integer> ();
+		checkpointSize		= DEFAULT_CHECKPOINT_SIZE;
 		eventBuffer			= new ArrayList<Event> ();
-		eventArrival		= new ArrayList<Event> ();
+		eventArrival		= new TreeMap<String, TreeMap<Integer, Event>> ();
 		
 		event_id_track 		= new TreeMap<String, Tracker> ();
 		snapshot_track 		= new TreeMap<String, Tracker> ();
@@ -125,6 +166,21 @@ public class EventStorage {
 	}
 	
 
+	/**
+	 * Adds incoming Events to the History at once, e.g. when they are recovered
+	 * 
+	 * @param events		Incoming Events in the order they have arrived
+	 */
+	public void addToHistory(List<Event> events) {
+		getLock();												// Locks the EventStorage
+		for(Event e : events) {
+			appendToHistory(e); 								// Adds the Event to the History
+			updateTrackers(e); 									// Updates all Trackers
+		}
+		checkpoint();											// Checkpoints the committed History
+		releaseLock();											// Releases the EventStorage
+	}
+	
 	/**
 	 * Adds incoming Event to the History -- the Events sit in there for good
 	 * 
@@ -132,8 +188,9 @@ public class EventStorage {
 	 */
 	public void addToHistory(Event e) {
 		getLock();												// Locks the EventStorage
-		eventHistory.add(e); 									// Adds the Event to the History
+		appendToHistory(e); 									// Adds the Event to the History
 		updateTrackers(e); 										// Updates all Trackers
+		checkpoint();											// Checkpoints the committed History
 		releaseLock();											// Releases the EventStorage
 	}
 	
@@ -141,74 +198,77 @@ public class EventStorage {
 	/**
 	 * Adds incoming Design Event to the Buffer <p>
 	 * 
-	 * Incoming Events are ordered using an arrival queue.
+	 * Incoming Events are ordered using a per-architect arrival queue. Only the
+	 * queue of the architect who sent the incoming Event is drained, and only
+	 * the contiguous run of EventIDs that follows the last delivered one.
 	 * 
 	 * @param e				Incoming Event
 	 */
 	public void addToBuffer(Event e) {
 		
+		// Checks if the Event Name is Design or Snapshot 
+		if(!e.name.equals("Design") && !e.name.equals("Snapshot") && !e.name.equals("Update")) {
+			printMsg("Error: A [" + e.name + "] Event is not supposed to be in the Event arrival queue");
+			return;
+		}
+		
+		// Gets the SenderUsername
+		String senderUsername;
+		if (e.hasParameter("SenderUsername")) {
+			senderUsername = (String) e.getParameter("SenderUsername");
+		} else {
+			printMsg("Error: " + e.name + " Event in the Event arrival queue does not have the SenderUsername parameter");
+			return;
+		}
+		
+		// Gets the EventID of this Event
+		int eventID = -1;
+		if (e.hasParameter("EventID")) {
+			eventID = ((Integer) e.getParameter("EventID")).intValue();
+		} else {
+			printMsg("Error: A Design Event in the Event arrival queue does not have the EventID parameter");
+			return;
+		}
+		
 		// Locks the EventStorage
-		getLock();				
-			
-		// Adds the incoming Event to the arrival queue
-		eventArrival.add(e); 	
+		getLock();
 		
-		// Sorts the arrival queue 
-		Collections.sort(eventArrival, EventComparator.ascending (EventComparator.getComparator (EventComparator.SENDER_USERNAME_SORT, EventComparator.EVENT_ID_SORT)));
+		// Creates a new Architect if the EventID tracker of the SenderUsername does not exist
+		if (!exists(senderUsername)) {
+			createNewUserImpl(senderUsername);
+		}
 		
-		// Creates a new arrival queue
-		ArrayList<Event> newArrival = new ArrayList<Event> ();
-
+		// Gets the arrival queue of the Architect
+		TreeMap<Integer, Event> arrival = eventArrival.get(senderUsername);
+		if (arrival == null) {
+			arrival = new TreeMap<Integer, Event> ();
+			eventArrival.put(senderUsername, arrival);
+		}
 		
-		// Move Events that are in order from the arrival queue to the buffer  
-		for (Event evt : eventArrival) {
-			
-			// Checks if the Event Name is Design or Snapshot 
-			if(!evt.name.equals("Design") && !evt.name.equals("Snapshot") && !evt.name.equals("Update")) {
-				printMsg("Error: A [" + evt.name + "] Event is not supposed to be in the Event arrival queue");
-				continue;
-			}
-			
-			// Gets the SenderUsername
-			String senderUsername;
-			if (evt.hasParameter("SenderUsername")) {
-				senderUsername = (String) evt.getParameter("SenderUsername");
-			} else {
-				printMsg("Error: " + evt.name + " Event in the Event arrival queue does not have the SenderUsername parameter");
-				continue;
-			}
+		// Adds the incoming Event to the arrival queue of the Architect, quietly skipping an 
+		// Event that has already been delivered (e.g. a Snapshot added again, or a replayed Event)
+		if (eventID > event_id_track.get(senderUsername).get_number()) {
+			arrival.put(eventID, e);
+		}
+		
+		// Moves the Events that are in order from the arrival queue to the buffer
+		while (!arrival.isEmpty()) {
 			
 			// Gets the last EventID that has been passed to the buffer for the Architect
-			// If never, set it to 0
-			int lastEventID = 0;
-			if (exists(senderUsername)) {
-				lastEventID = event_id_track.get(senderUsername).get_number();
-			} else {
-				// Creates a new Architect if the EventID tracker of the SenderUsername does not exist
-				createNewUserImpl(senderUsername);
-			}
+			int lastEventID = event_id_track.get(senderUsername).get_number();
+			int firstEventID = arrival.firstKey().intValue();
 			
-			// Gets the EventID of this Event
-			int eventID = -1;
-			if (evt.hasParameter("EventID")) {
-				eventID = ((Integer) evt.getParameter("EventID")).intValue();
+			if (firstEventID <= lastEventID) {
+				arrival.pollFirstEntry();					// Drops an Event that has been superseded by the tracker
+			} else if (firstEventID == lastEventID + 1) {
+				Event evt = arrival.pollFirstEntry().getValue();
+				eventBuffer.add(evt);						// Adds the Event to the buffer
+				updateTrackers(evt); 						// Updates trackers
 			} else {
-				printMsg("Error: A Design Event in the Event arrival queue does not have the EventID parameter");
-				continue;
-			}
-			
-			// Adds the Event to buffer if the EventID of incoming Event is 1 greater than the last Event ID
-			if(eventID == lastEventID + 1) {
-				eventBuffer.add(evt);		// Adds the Event to the buffer
-				updateTrackers(evt); 		// Updates trackers
-			} else {
-				newArrival.add(evt);		// Adds the Event to the new arrival queue
+				break;										// Waits for the missing EventID
 			}
 		}
 		
-		// Overwrite the arrival queue with the newly created queue
-		eventArrival = newArrival;
-
 		// Releases the EventStorage
 		releaseLock();
 	}
@@ -412,60 +472,358 @@ public class EventStorage {
 	
 	
 	/**
-	 * Retrieves and returns all Events up until a particular Version 
+	 * Adds an Event to the per-architect History without locking the EventStorage<p>
 	 * 
-	 * @param toThisVersion	Target Version consisting of a set of EventIDs of each Architect
-	 * @return				List of Events of the target Version
+	 * XTEAM Events are never replayed, so they are not kept in the History. 
+	 * Events almost always arrive in EventID order, so an insertion is an append 
+	 * in the common case.
+	 * 
+	 * @param e				Event to add
 	 */
-	public ArrayList<Event> getEventsFromHistory(Map<String, Tracker> targetVersion) {
+	protected void appendToHistory(Event e) {
 		
-		// List of Events to return
-		ArrayList<Event> ret = new ArrayList<>();
+		// filters out XTEAM Events
+		if(e.name.equals("XTEAM")) {
+			return;
+		}
 		
-		// Locks the EventStorage
+		// Gets the SenderUsername
+		String username;
+		if(e.hasParameter("SenderUsername")) {
+			username = (String) e.getParameter("SenderUsername");
+		} else {
+			printMsg("Error: Found an Event with no SenderUsername parameter");
+			return;
+		}
+		
+		// Gets the Event ID
+		int event_id;
+		if(e.hasParameter("EventID")) {
+			event_id = (Integer) e.getParameter("EventID");
+		} else {
+			printMsg("Error: Found an Event [" + e.name + "] with no Event ID parameter");
+			return;
+		}
+		
+		// Gets the History of the architect
+		ArrayList<HistoryEntry> history = eventHistory.get(username);
+		if(history == null) {
+			history = new ArrayList<HistoryEntry> ();
+			eventHistory.put(username, history);
+		}
+		
+		// Finds the position right after the Events with the same or smaller EventIDs
+		int pos = upperBound(history, event_id);
+		history.add(pos, new HistoryEntry(event_id, historySequence++, e));
+		
+		// An Event inserted among the checkpointed ones stays as it is until the next checkpoint
+		Integer checkpointedEnd = checkpointed.get(username);
+		if(checkpointedEnd != null && pos < checkpointedEnd) {
+			checkpointed.put(username, pos);
+		}
+		
+		// Updates the last Design indices from the insertion point on
+		for(int i = pos; i < history.size(); i++) {
+			HistoryEntry entry = history.get(i);
+			if(entry.isDesign) {
+				entry.lastDesign = i;
+			} else {
+				entry.lastDesign = (i == 0) ? -1 : history.get(i-1).lastDesign;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of leading entries in an architect's History whose EventIDs 
+	 * are equal to or smaller than the given EventID
+	 * 
+	 * @param history		History of an architect
+	 * @param eventID		EventID
+	 * @return				Index of the first entry whose EventID is greater than the given EventID
+	 */
+	protected static int upperBound(ArrayList<HistoryEntry> history, int eventID) {
+		int low 	= 0;
+		int high 	= history.size();
+		
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(history.get(mid).eventID <= eventID) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		
+		return low;
+	}
+	
+	/**
+	 * Sets the minimum number of committed Events of an architect to put in a checkpoint at once
+	 * 
+	 * @param size			Number of Events, 0 or less turns checkpointing off
+	 */
+	public void setCheckpointSize(int size) {
 		getLock();
+		checkpointSize = size;
+		releaseLock();
+	}
+	
+	/**
+	 * Checkpoints the committed part of the History without locking the EventStorage<p>
+	 * 
+	 * The Events of an architect up to its last Snapshot are committed and will be a 
+	 * part of every later Version, so they are moved out of the heap into a compressed 
+	 * checkpoint once there are enough of them. Only their ordering keys stay on the 
+	 * heap, and they are read back from the checkpoint when the History is replayed.
+	 */
+	protected void checkpoint() {
+		
+		// checks if checkpointing is off
+		if(checkpointSize <= 0) {
+			return;
+		}
 		
-		// Iterates through the Event History
-		for(Event e : eventHistory) {
+		for(Map.Entry<String, ArrayList<HistoryEntry>> entry : eventHistory.entrySet()) {
+			String 					username 	= entry.getKey();
+			ArrayList<HistoryEntry> history		= entry.getValue();
 			
-			// filters out XTEAM Events
-			if(e.name.equals("XTEAM")) {
+			// Gets the committed part of the History that has not been checkpointed
+			Tracker track = snapshot_track.get(username);
+			if(track == null) {
 				continue;
 			}
+			Integer start 	= checkpointed.get(username);
+			int 	from	= (start == null) ? 0 : start;
+			int		to		= upperBound(history, track.get_number());
 			
-			// Gets the SenderUsername
-			String username;
-			if(e.hasParameter("SenderUsername")) {
-				username = (String) e.getParameter("SenderUsername");
-			} else {
-				// if it does not have the username, error
-				printMsg("Error: Found an Event with no SenderUsername parameter");
+			// Skips the scan when there cannot be enough Events for a checkpoint
+			if(to - from < checkpointSize) {
 				continue;
 			}
 			
-			// Gets the Event ID
-			int event_id;
-			if(e.hasParameter("EventID")) {
-				event_id = (Integer) e.getParameter("EventID");
-			} else {
-				// if it does not have the event id, error
-				printMsg("Error: Found an Event [" + e.name + "] with no Event ID parameter");
+			// Collects the Events to checkpoint
+			ArrayList<HistoryEntry> 	entries = new ArrayList<HistoryEntry> ();
+			ArrayList<Event>			events	= new ArrayList<Event> ();
+			for(int i = from; i < to; i++) {
+				HistoryEntry historyEntry = history.get(i);
+				if(historyEntry.event != null) {
+					entries.add(historyEntry);
+					events.add(historyEntry.event);
+				}
+			}
+			
+			// Waits until there are enough Events for a checkpoint
+			if(events.size() < checkpointSize) {
 				continue;
 			}
 			
+			// Writes the checkpoint
+			HistorySegment segment;
+			try {
+				segment = new HistorySegment(events);
+			} catch (IOException ioe) {
+				printMsg("Error: Failed to checkpoint the History of [" + username + "]: " + ioe);
+				continue;
+			}
+			
+			// Lets the Events go
+			for(int i = 0; i < entries.size(); i++) {
+				entries.get(i).checkpoint(segment, i);
+			}
+			checkpointed.put(username, to);
+		}
+	}
+	
+	/**
+	 * Takes an image of the History and the Trackers, e.g. to compact the journal the 
+	 * EventStorage is recovered from <p>
+	 * 
+	 * The image shares the checkpoints with the History, and the Events that have not 
+	 * been checkpointed yet are written to a checkpoint of their own. 
+	 * 
+	 * @return				The image
+	 * @throws IOException	Failed to write the Events that have not been checkpointed
+	 */
+	public HistoryImage getHistoryImage() throws IOException {
+		HistoryImage image = new HistoryImage();
+		
+		// Locks the EventStorage
+		getLock();
+		
+		try {
+			// Copies the Trackers
+			for(String username : event_id_track.keySet()) {
+				image.trackers.put(username, new int[] {	event_id_track.get(username).get_number(),
+															snapshot_track.get(username).get_number(),
+															snapshot_version.get(username).get_number() });
+			}
+			
+			// Copies the History, checkpointing the Events that have not been checkpointed
+			for(Map.Entry<String, ArrayList<HistoryEntry>> entry : eventHistory.entrySet()) {
+				ArrayList<HistoryEntry> history = entry.getValue();
+				
+				ArrayList<Event> events = new ArrayList<Event> ();
+				for(HistoryEntry historyEntry : history) {
+					if(historyEntry.event != null) {
+						events.add(historyEntry.event);
+					}
+				}
+				HistorySegment segment = events.isEmpty() ? null : new HistorySegment(events);
+				
+				ArrayList<HistoryEntry> copy = new ArrayList<HistoryEntry> (history.size());
+				int index = 0;
+				for(HistoryEntry historyEntry : history) {
+					if(historyEntry.event != null) {
+						copy.add(new HistoryEntry(historyEntry.eventID, historyEntry.isDesign, segment, index++));
+					} else {
+						copy.add(new HistoryEntry(historyEntry.eventID, historyEntry.isDesign, historyEntry.segment, historyEntry.segmentIndex));
+					}
+				}
+				image.histories.put(entry.getKey(), copy);
+			}
+		} finally {
+			// Releases the EventStorage
+			releaseLock();
+		}
+		
+		return image;
+	}
+	
+	/**
+	 * Restores the History and the Trackers from an image, e.g. when FLAME Server restarts.
+	 * The Events stay in their checkpoints until the History is replayed.
+	 * 
+	 * @param image			The image taken by {@link #getHistoryImage()}
+	 */
+	public void restoreHistory(HistoryImage image) {
+		
+		// Locks the EventStorage
+		getLock();
+		
+		// Restores the Trackers
+		for(Map.Entry<String, int[]> entry : image.trackers.entrySet()) {
+			String username = entry.getKey();
+			if(!exists(username)) {
+				createNewUserImpl(username);
+			}
+			event_id_track.get(username).set_number(entry.getValue()[0]);
+			snapshot_track.get(username).set_number(entry.getValue()[1]);
+			snapshot_version.get(username).set_number(entry.getValue()[2]);
+		}
+		
+		// Restores the History, whose every entry is in a checkpoint
+		for(Map.Entry<String, ArrayList<HistoryEntry>> entry : image.histories.entrySet()) {
+			ArrayList<HistoryEntry> history = new ArrayList<HistoryEntry> (entry.getValue().size());
+			for(HistoryEntry imageEntry : entry.getValue()) {
+				HistoryEntry historyEntry = new HistoryEntry(imageEntry.eventID, imageEntry.isDesign, imageEntry.segment, imageEntry.segmentIndex);
+				historyEntry.sequence = historySequence++;
+				
+				int i = history.size();
+				if(historyEntry.isDesign) {
+					historyEntry.lastDesign = i;
+				} else {
+					historyEntry.lastDesign = (i == 0) ? -1 : history.get(i-1).lastDesign;
+				}
+				history.add(historyEntry);
+			}
+			eventHistory.put(entry.getKey(), history);
+			checkpointed.put(entry.getKey(), history.size());
+		}
+		
+		// Releases the EventStorage
+		releaseLock();
+	}
+	
+	/**
+	 * Retrieves and returns all Events up until a particular Version 
+	 * 
+	 * @param toThisVersion	Target Version consisting of a set of EventIDs of each Architect
+	 * @return				List of Events of the target Version, ordered by EventID
+	 */
+	public ArrayList<Event> getEventsFromHistory(Map<String, Tracker> targetVersion) {
+		HistoryReplay 		replay 	= getHistoryReplay(targetVersion);
+		ArrayList<Event> 	ret		= new ArrayList<Event> (replay.size());
+		
+		for(int i = 0; i < replay.size(); i++) {
+			try {
+				ret.add(replay.get(i));
+			} catch (Exception exc) {
+				printMsg("Error: " + exc.getMessage());
+			}
+		}
+		
+		return ret;
+	}
+	
+	/**
+	 * Retrieves all Events up until a particular Version, ordered by EventID, along 
+	 * with the position of the last Design Event among them <p>
+	 * 
+	 * Each architect's History is already ordered, so the Version is read as a prefix 
+	 * of every per-architect History and the prefixes are merged. Only the ordering 
+	 * keys and the checkpoint references are taken while the EventStorage is locked; 
+	 * the checkpoints are read one by one as the replay gets to them.
+	 * 
+	 * @param targetVersion	Target Version consisting of a set of EventIDs of each Architect
+	 * @return				Events of the target Version
+	 */
+	public HistoryReplay getHistoryReplay(Map<String, Tracker> targetVersion) {
+		
+		// Per-architect prefixes of the History to merge
+		PriorityQueue<HistoryCursor> cursors = new PriorityQueue<HistoryCursor> ();
+		
+		// The last Design Event in the target Version
+		HistoryEntry lastDesign = null;
+		
+		// Locks the EventStorage
+		getLock();
+		
+		for(Map.Entry<String, ArrayList<HistoryEntry>> entry : eventHistory.entrySet()) {
+			
 			// Gets the Snapshot info for the particular username
-			int target;
-			if(targetVersion.containsKey(username)) {
-				target = targetVersion.get(username).get_number();
-			} else {
+			Tracker track = targetVersion.get(entry.getKey());
+			if(track == null) {
 				// if it does not have the Snapshot entry, error
 				printMsg("Error: Found an Event whose Username does not have a Snapshot Version Tracker");
 				continue;
 			}
 			
-			// Checks if the event is included in the version
-			if(event_id <= target) {
-				ret.add(e);
+			// Finds the end of the prefix included in the version
+			ArrayList<HistoryEntry> history = entry.getValue();
+			int end = upperBound(history, track.get_number());
+			if(end == 0) {
+				continue;
+			}
+			cursors.add(new HistoryCursor(history, end));
+			
+			// Checks the last Design Event of the prefix
+			int lastDesignIndex = history.get(end-1).lastDesign;
+			if(lastDesignIndex >= 0) {
+				HistoryEntry candidate = history.get(lastDesignIndex);
+				if(lastDesign == null || candidate.compareTo(lastDesign) > 0) {
+					lastDesign = candidate;
+				}
+			}
+		}
+		
+		// Merges the prefixes, copying the entries since a checkpoint may move their Events later on
+		HistoryReplay ret = new HistoryReplay();
+		while(!cursors.isEmpty()) {
+			HistoryCursor cursor = cursors.poll();
+			HistoryEntry entry = cursor.next();
+			
+			if(entry == lastDesign) {
+				ret.lastDesignIndex = ret.entries.size();
+			}
+			if(entry.event != null) {
+				ret.entries.add(new HistoryEntry(entry.eventID, entry.sequence, entry.event));
+			} else {
+				ret.entries.add(new HistoryEntry(entry.eventID, entry.isDesign, entry.segment, entry.segmentIndex));
+				ret.lastUse.put(entry.segment, ret.entries.size() - 1);
+			}
+			
+			if(cursor.hasNext()) {
+				cursors.add(cursor);
 			}
 		}
 		
@@ -565,7 +923,7 @@ public class EventStorage {
 			
 			if(event_id <= target) {
 				ret.add(e);				// Adds the Event to the returning array
-				eventHistory.add(e);	// Adds the Event to the event history
+				appendToHistory(e);		// Adds the Event to the event history
 			} else {
 				newBuffer.add(e);		// Adds the Event to the new buffers
 			}
@@ -573,6 +931,9 @@ public class EventStorage {
 		
 		// Overwrites the buffer with the new buffer
 		eventBuffer = newBuffer;
+		
+		// Checkpoints the committed History
+		checkpoint();
 	
 		// Releases the EventStorage
 		releaseLock();
@@ -585,6 +946,399 @@ public class EventStorage {
 		return ret;
 	}
 	
+	/**
+	 * An Event in the History along with its ordering keys
+	 * 
+	 * @author 				<a href=mailto:jaeyounb@usc.edu>Jae young Bang</a>
+	 * @version				2013.05
+	 */
+	protected static class HistoryEntry implements Comparable<HistoryEntry> {
+		
+		/**
+		 * EventID of the Event
+		 */
+		protected final int 	eventID;
+		
+		/**
+		 * Order in which the Event has been added to the History
+		 */
+		protected long			sequence;
+		
+		/**
+		 * Whether the Event is a Design Event
+		 */
+		protected final boolean	isDesign;
+		
+		/**
+		 * The Event, null once it has been checkpointed
+		 */
+		protected Event			event;
+		
+		/**
+		 * The checkpoint that has the Event, null if it has not been checkpointed
+		 */
+		protected HistorySegment segment;
+		
+		/**
+		 * Position of the Event in its checkpoint
+		 */
+		protected int			segmentIndex;
+		
+		/**
+		 * Index of the last Design Event at or before this entry in the architect's History, -1 if none
+		 */
+		protected int			lastDesign = -1;
+		
+		protected HistoryEntry(int eventID, long sequence, Event event) {
+			this.eventID	= eventID;
+			this.sequence	= sequence;
+			this.event		= event;
+			this.isDesign	= event.name.equals("Design");
+		}
+		
+		/**
+		 * Creates an entry whose Event is in a checkpoint
+		 */
+		protected HistoryEntry(int eventID, boolean isDesign, HistorySegment segment, int index) {
+			this.eventID		= eventID;
+			this.isDesign		= isDesign;
+			this.segment		= segment;
+			this.segmentIndex	= index;
+		}
+		
+		/**
+		 * Lets the Event go as it has been written to a checkpoint
+		 * 
+		 * @param segment		The checkpoint
+		 * @param index			Position of the Event in the checkpoint
+		 */
+		protected void checkpoint(HistorySegment segment, int index) {
+			this.segment 		= segment;
+			this.segmentIndex	= index;
+			this.event			= null;
+		}
+		
+		/**
+		 * Orders entries by EventID first and then by the order they have been added to the History
+		 */
+		@Override
+		public int compareTo(HistoryEntry o) {
+			if(eventID != o.eventID) {
+				return eventID < o.eventID ? -1 : 1;
+			}
+			if(sequence != o.sequence) {
+				return sequence < o.sequence ? -1 : 1;
+			}
+			return 0;
+		}
+	}
+	
+	/**
+	 * A checkpoint of History Events: the Events serialized, compressed, and kept off the heap
+	 * 
+	 * @author 				<a href=mailto:jaeyounb@usc.edu>Jae young Bang</a>
+	 * @version				2013.05
+	 */
+	protected static class HistorySegment {
+		
+		/**
+		 * The compressed Events in a direct buffer
+		 */
+		private final ByteBuffer data;
+		
+		/**
+		 * Writes Events to a new checkpoint
+		 * 
+		 * @param events		Events to write
+		 * @throws IOException	Failed to serialize the Events
+		 */
+		protected HistorySegment(ArrayList<Event> events) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			
+			try (ObjectOutputStream out = new ObjectOutputStream(new DeflaterOutputStream(bytes))) {
+				out.writeObject(events);
+			}
+			
+			data = ByteBuffer.allocateDirect(bytes.size());
+			data.put(bytes.toByteArray());
+			data.flip();
+		}
+		
+		/**
+		 * Reads a checkpoint written by {@link #write(DataOutputStream)}
+		 * 
+		 * @param in			Stream to read from
+		 * @throws IOException	Failed to read the checkpoint
+		 */
+		protected HistorySegment(DataInputStream in) throws IOException {
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			
+			data = ByteBuffer.allocateDirect(bytes.length);
+			data.put(bytes);
+			data.flip();
+		}
+		
+		/**
+		 * Writes the compressed Events as they are
+		 * 
+		 * @param out			Stream to write to
+		 * @throws IOException	Failed to write the checkpoint
+		 */
+		protected void write(DataOutputStream out) throws IOException {
+			byte[] bytes = new byte[data.capacity()];
+			data.duplicate().get(bytes);
+			
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		
+		/**
+		 * Reads the Events back from the checkpoint
+		 * 
+		 * @return				Copies of the Events in the order they have been written
+		 * @throws Exception	Failed to deserialize the Events
+		 */
+		@SuppressWarnings("unchecked")
+		protected ArrayList<Event> read() throws Exception {
+			byte[] bytes = new byte[data.capacity()];
+			data.duplicate().get(bytes);
+			
+			try (ObjectInputStream in = new ObjectInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes)))) {
+				return (ArrayList<Event>) in.readObject();
+			}
+		}
+	}
+	
+	/**
+	 * An image of the History and the Trackers whose every Event is in a checkpoint
+	 * 
+	 * @author 				<a href=mailto:jaeyounb@usc.edu>Jae young Bang</a>
+	 * @version				2013.05
+	 */
+	public static class HistoryImage {
+		
+		/**
+		 * Username-{EventID, Snapshot EventID, Snapshot version} mapping
+		 */
+		protected final Map<String, int[]>						trackers	= new TreeMap<String, int[]> ();
+		
+		/**
+		 * Username-history mapping, ordered the same way as the History
+		 */
+		protected final Map<String, ArrayList<HistoryEntry>>	histories	= new TreeMap<String, ArrayList<HistoryEntry>> ();
+		
+		/**
+		 * Returns the number of Events in the image
+		 */
+		public int size() {
+			int size = 0;
+			for(ArrayList<HistoryEntry> history : histories.values()) {
+				size += history.size();
+			}
+			return size;
+		}
+		
+		/**
+		 * Writes the image; the checkpoints are written compressed as they are
+		 * 
+		 * @param out			Stream to write to
+		 * @throws IOException	Failed to write the image
+		 */
+		public void write(DataOutputStream out) throws IOException {
+			
+			// writes the Trackers
+			out.writeInt(trackers.size());
+			for(Map.Entry<String, int[]> entry : trackers.entrySet()) {
+				out.writeUTF(entry.getKey());
+				for(int number : entry.getValue()) {
+					out.writeInt(number);
+				}
+			}
+			
+			// writes every checkpoint once
+			Map<HistorySegment, Integer> segments = new IdentityHashMap<HistorySegment, Integer> ();
+			for(ArrayList<HistoryEntry> history : histories.values()) {
+				for(HistoryEntry entry : history) {
+					if(!segments.containsKey(entry.segment)) {
+						segments.put(entry.segment, segments.size());
+					}
+				}
+			}
+			HistorySegment[] ordered = new HistorySegment[segments.size()];
+			for(Map.Entry<HistorySegment, Integer> entry : segments.entrySet()) {
+				ordered[entry.getValue()] = entry.getKey();
+			}
+			out.writeInt(ordered.length);
+			for(HistorySegment segment : ordered) {
+				segment.write(out);
+			}
+			
+			// writes the ordering keys of the History
+			out.writeInt(histories.size());
+			for(Map.Entry<String, ArrayList<HistoryEntry>> entry : histories.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeInt(entry.getValue().size());
+				for(HistoryEntry historyEntry : entry.getValue()) {
+					out.writeInt(historyEntry.eventID);
+					out.writeBoolean(historyEntry.isDesign);
+					out.writeInt(segments.get(historyEntry.segment));
+					out.writeInt(historyEntry.segmentIndex);
+				}
+			}
+		}
+		
+		/**
+		 * Reads an image written by {@link #write(DataOutputStream)}
+		 * 
+		 * @param in			Stream to read from
+		 * @return				The image
+		 * @throws IOException	Failed to read the image
+		 */
+		public static HistoryImage read(DataInputStream in) throws IOException {
+			HistoryImage image = new HistoryImage();
+			
+			// reads the Trackers
+			int trackers = in.readInt();
+			for(int i = 0; i < trackers; i++) {
+				String username = in.readUTF();
+				image.trackers.put(username, new int[] { in.readInt(), in.readInt(), in.readInt() });
+			}
+			
+			// reads the checkpoints
+			HistorySegment[] segments = new HistorySegment[in.readInt()];
+			for(int i = 0; i < segments.length; i++) {
+				segments[i] = new HistorySegment(in);
+			}
+			
+			// reads the ordering keys of the History
+			int histories = in.readInt();
+			for(int i = 0; i < histories; i++) {
+				String username = in.readUTF();
+				int size = in.readInt();
+				ArrayList<HistoryEntry> history = new ArrayList<HistoryEntry> (size);
+				for(int j = 0; j < size; j++) {
+					int 	eventID 	= in.readInt();
+					boolean	isDesign	= in.readBoolean();
+					int		segment		= in.readInt();
+					int		index		= in.readInt();
+					if(segment < 0 || segment >= segments.length) {
+						throw new IOException ("Found an Event [EventID:" + eventID + "] of [" + username + "] in an unknown checkpoint [" + segment + "]");
+					}
+					history.add(new HistoryEntry(eventID, isDesign, segments[segment], index));
+				}
+				image.histories.put(username, history);
+			}
+			
+			return image;
+		}
+	}
+	
+	/**
+	 * A read position in a prefix of an architect's History
+	 * 
+	 * @author 				<a href=mailto:jaeyounb@usc.edu>Jae young Bang</a>
+	 * @version				2013.05
+	 */
+	protected static class HistoryCursor implements Comparable<HistoryCursor> {
+		
+		private final ArrayList<HistoryEntry> 	history;
+		private final int 						end;
+		private int 							pos = 0;
+		
+		protected HistoryCursor(ArrayList<HistoryEntry> history, int end) {
+			this.history 	= history;
+			this.end		= end;
+		}
+		
+		protected boolean hasNext() {
+			return pos < end;
+		}
+		
+		protected HistoryEntry next() {
+			return history.get(pos++);
+		}
+		
+		@Override
+		public int compareTo(HistoryCursor o) {
+			return history.get(pos).compareTo(o.history.get(o.pos));
+		}
+	}
+	
+	/**
+	 * Events of a Version retrieved from the History
+	 * 
+	 * @author 				<a href=mailto:jaeyounb@usc.edu>Jae young Bang</a>
+	 * @version				2013.05
+	 */
+	public static class HistoryReplay {
+		
+		/**
+		 * Entries of the Version, ordered by EventID
+		 */
+		protected final ArrayList<HistoryEntry> 				entries 			= new ArrayList<HistoryEntry> ();
+		
+		/**
+		 * Checkpoint-index mapping: the last entry whose Event is in the checkpoint
+		 */
+		protected final Map<HistorySegment, Integer>			lastUse				= new IdentityHashMap<HistorySegment, Integer> ();
+		
+		/**
+		 * Checkpoint-Events mapping: the checkpoints read and still to be used, at most 
+		 * one per architect since each architect's entries come in order
+		 */
+		protected final Map<HistorySegment, ArrayList<Event>>	inflated			= new IdentityHashMap<HistorySegment, ArrayList<Event>> ();
+		
+		/**
+		 * Index of the last Design Event, -1 if there is none
+		 */
+		public int 												lastDesignIndex		= -1;
+		
+		/**
+		 * Returns the number of Events of the Version
+		 */
+		public int size() {
+			return entries.size();
+		}
+		
+		/**
+		 * Returns an Event of the Version, reading its checkpoint when it is the first 
+		 * Event of the checkpoint to be read. The Events are meant to be read in order, 
+		 * and a checkpoint is let go once its last Event has been read.
+		 * 
+		 * @param index			Position of the Event
+		 * @return				The Event
+		 * @throws Exception	Failed to read the checkpoint of the Event
+		 */
+		public Event get(int index) throws Exception {
+			HistoryEntry entry = entries.get(index);
+			if(entry.event != null) {
+				return entry.event;
+			}
+			
+			// reads the checkpoint
+			ArrayList<Event> segment = inflated.get(entry.segment);
+			if(segment == null) {
+				try {
+					segment = entry.segment.read();
+				} catch (Exception exc) {
+					throw new Exception ("Failed to read a checkpoint of the History: " + exc);
+				}
+				inflated.put(entry.segment, segment);
+			}
+			
+			// lets the checkpoint go after its last Event
+			if(lastUse.get(entry.segment) == index) {
+				inflated.remove(entry.segment);
+			}
+			
+			if(entry.segmentIndex >= segment.size()) {
+				throw new Exception ("Found an Event [EventID:" + entry.eventID + "] missing from its checkpoint");
+			}
+			return segment.get(entry.segmentIndex);
+		}
+	}
+	
 	/**
 	 * Event comparator for sorting with two comparators: SenderUsername first and then EventID
 	 * 
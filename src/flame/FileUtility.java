@@ -1,9 +1,15 @@
 package flame;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -97,4 +103,71 @@ public class FileUtility {
 		
 		return filename;
 	}
+	
+	/**
+	 * Computes the SHA-1 hash of a file's content
+	 * 
+	 * @param file			Path to the file
+	 * @return				Hash in lowercase hexadecimal
+	 * @throws IOException
+	 */
+	public static String hashFile (Path file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IOException ("SHA-1 is not available: " + nsae);
+		}
+		
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = Files.newInputStream(file)) {
+			int len;
+			while ((len = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, len);
+			}
+		}
+		
+		return toHex(digest.digest());
+	}
+	
+	/**
+	 * Converts bytes to a lowercase hexadecimal string
+	 * 
+	 * @param bytes			Bytes to convert
+	 * @return				Hexadecimal string
+	 */
+	public static String toHex (byte[] bytes) {
+		char[] digits 	= "0123456789abcdef".toCharArray();
+		char[] hex 		= new char[bytes.length * 2];
+		for(int i = 0; i < bytes.length; i++) {
+			hex[i * 2]		= digits[(bytes[i] >> 4) & 0xf];
+			hex[i * 2 + 1]	= digits[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+	
+	/**
+	 * Deletes a directory and everything under it
+	 * 
+	 * @param directory		Directory to delete
+	 * @throws IOException
+	 */
+	public static void deleteDirectory (Path directory) throws IOException {
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				if(exc != null) {
+					throw exc;
+				}
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
 }
@@ -0,0 +1,884 @@
+package flame;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * FramedConnection owns the streams of a socket for as long as the connection lives, and
+ * sends and receives the messages and files of {@link SocketTransferUtility} over them.<p>
+ *
+ * The buffered streams are created once per socket, so that no bytes buffered for one message
+ * are lost to the next, and so that a message goes out in a single flush. The connection starts
+ * in the legacy framing and switches to the binary framing once it has been negotiated with
+ * {@link #acceptFraming(String)} or {@link #awaitFraming(String[])}.<p>
+ *
+ * Files move with zero-copy channel transfers when the socket was opened through a 
+ * {@link SocketChannel}. A FramedConnection is not thread-safe; one conversation at a time is 
+ * expected on a socket.
+ *
+ * @author 					<a href="mailto:jaeyounb@usc.edu">Jae young Bang</a>
+ * @version					2015.01
+ */
+public class FramedConnection {
+
+///////////////////////////////////////////////
+// Member Variables
+///////////////////////////////////////////////
+
+	/**
+	 * The buffer size of the socket streams
+	 */
+	private static final int		bufferSize		= 64 * 1024;
+	
+	/**
+	 * The largest number of bytes handed to a single transferTo/transferFrom call
+	 */
+	private static final long		transferSize	= 8 * 1024 * 1024;
+	
+	/**
+	 * Suffix of the file a resumable transfer is written to until it completes
+	 */
+	private static final String		partSuffix		= ".part";
+
+	/**
+	 * The socket
+	 */
+	protected Socket				socket;
+
+	/**
+	 * Buffered input stream of the socket
+	 */
+	protected DataInputStream		in;
+
+	/**
+	 * Buffered output stream of the socket
+	 */
+	protected DataOutputStream		out;
+
+	/**
+	 * Reader of the legacy framing; created on the first legacy read
+	 */
+	protected BufferedReader		reader;
+
+	/**
+	 * Writer of the legacy framing; created on the first legacy write
+	 */
+	protected PrintWriter			writer;
+
+	/**
+	 * Framing in use
+	 */
+	protected int					protocol		= SocketTransferUtility.PROTOCOL_LEGACY;
+
+	/**
+	 * Time at which input was last seen on the socket
+	 */
+	protected volatile long			lastInputTime	= System.currentTimeMillis();
+
+///////////////////////////////////////////////
+// Constructors
+///////////////////////////////////////////////
+
+	/**
+	 * Default constructor; the connection starts in the legacy framing
+	 *
+	 * @param socket			Connected socket
+	 * @throws IOException
+	 */
+	public FramedConnection (Socket socket) throws IOException {
+		this.socket	= socket;
+		in			= new DataInputStream(new BufferedInputStream(socket.getInputStream(), bufferSize));
+		out			= new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), bufferSize));
+	}
+
+///////////////////////////////////////////////
+// Member Methods
+///////////////////////////////////////////////
+
+	public Socket getSocket() {
+		return socket;
+	}
+
+	public int getProtocol() {
+		return protocol;
+	}
+
+	public long getLastInputTime() {
+		return lastInputTime;
+	}
+
+	/**
+	 * Closes the socket
+	 */
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	/**
+	 * Waits for input without consuming it, so that a thread that has more to do than reading
+	 * (e.g., sending a cancellation) never blocks on the socket for long
+	 *
+	 * @param timeoutMillis		Time to wait for input
+	 * @return					Whether input is ready to be read
+	 * @throws IOException		The peer closed the connection
+	 */
+	public boolean awaitInput(long timeoutMillis) throws IOException {
+		if(in.available() > 0) {
+			lastInputTime = System.currentTimeMillis();
+			return true;
+		}
+
+		int previousTimeout = socket.getSoTimeout();
+		socket.setSoTimeout((int) Math.max(1, timeoutMillis));
+		try {
+			// a timed out read leaves the buffered stream untouched
+			in.mark(1);
+			if(in.read() < 0) {
+				throw new EOFException ("Connection closed by the peer");
+			}
+			in.reset();
+			lastInputTime = System.currentTimeMillis();
+			return true;
+		} catch (SocketTimeoutException ste) {
+			return false;
+		} finally {
+			socket.setSoTimeout(previousTimeout);
+		}
+	}
+
+	/**
+	 * Waits for a message in the binary framing without consuming it; a Keepalive that arrives
+	 * in the meantime is consumed, and only shows in {@link #getLastInputTime()}
+	 *
+	 * @param timeoutMillis		Time to wait for input
+	 * @return					Whether a message is ready to be read
+	 * @throws IOException		The peer closed the connection
+	 */
+	public boolean awaitMessage(long timeoutMillis) throws IOException {
+		if(!awaitInput(timeoutMillis)) {
+			return false;
+		}
+
+		// peeks the frame type that follows the version byte
+		in.mark(2);
+		in.readByte();
+		byte type = in.readByte();
+		in.reset();
+
+		if(type == SocketTransferUtility.TYPE_KEEPALIVE) {
+			SocketTransferUtility.readFrame(in);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Switches the framing
+	 *
+	 * @param protocol			Framing to use from now on
+	 * @throws IOException		The legacy reader holds bytes that the new framing would miss
+	 */
+	protected void setProtocol(int protocol) throws IOException {
+		if(reader != null && reader.ready()) {
+			throw new IOException ("Unread legacy data while switching to framing version " + protocol);
+		}
+		this.protocol = protocol;
+	}
+
+	/**
+	 * Sends a string
+	 * @param str				The string to send
+	 * @throws IOException
+	 */
+	public void sendString(String str) throws IOException {
+		try {
+			if(protocol == SocketTransferUtility.PROTOCOL_LEGACY) {
+				SocketTransferUtility.write(getWriter(), str);
+			} else {
+				SocketTransferUtility.writeFrame(out, SocketTransferUtility.TYPE_STRING,
+						str.getBytes(Constants.charset), SocketTransferUtility.isChecksumStrings());
+			}
+		} catch (IOException e) {
+			throw new IOException ("Error while sending \"" + str + "\": " + e);
+		}
+	}
+
+	/**
+	 * Receives a string; Keepalive messages are skipped
+	 * @return					The string read
+	 * @throws IOException
+	 */
+	public String receiveString() throws IOException {
+		try {
+			if(protocol == SocketTransferUtility.PROTOCOL_LEGACY) {
+				return SocketTransferUtility.read(getReader());
+			}
+
+			while (true) {
+				SocketTransferUtility.Frame frame = SocketTransferUtility.readFrame(in);
+
+				if (frame.type == SocketTransferUtility.TYPE_KEEPALIVE) {
+					// a Keepalive only shows that the peer is alive
+					lastInputTime = System.currentTimeMillis();
+				} else if (frame.type == SocketTransferUtility.TYPE_STRING) {
+					return new String(frame.payload, Constants.charset);
+				} else {
+					throw new IOException ("Unexpected frame type " + frame.type);
+				}
+			}
+		} catch (IOException e) {
+			throw new IOException ("Error while reading from socket: " + e);
+		}
+	}
+
+	/**
+	 * Sends a message
+	 * @param messageName		The message name
+	 * @param messageStr		The String that the message contains
+	 * @throws IOException
+	 */
+	public void sendMessage(String messageName, String messageStr) throws IOException {
+		try {
+			sendString(messageStr);
+		} catch (IOException ioe) {
+			throw new IOException ("Error while sending " + messageName + " " + messageStr + ": " + ioe);
+		}
+	}
+
+	/**
+	 * Sends a Keepalive message
+	 * @throws IOException
+	 */
+	public void sendKeepalive() throws IOException {
+		try {
+			if(protocol == SocketTransferUtility.PROTOCOL_LEGACY) {
+				SocketTransferUtility.write(getWriter(), "");
+			} else {
+				SocketTransferUtility.writeFrame(out, SocketTransferUtility.TYPE_KEEPALIVE, new byte[0], false);
+			}
+		} catch (IOException ioe) {
+			throw new IOException ("Error while sending Keepalive: " + ioe);
+		}
+	}
+
+	/**
+	 * Receives a message
+	 * @param messageName		The message name
+	 * @return					The received message
+	 * @throws IOException
+	 */
+	public String receiveMessage(String messageName) throws IOException {
+		try {
+			return receiveString();
+		} catch (IOException ioe) {
+			throw new IOException ("Error while receiving " + messageName + ": " + ioe);
+		}
+	}
+
+	/**
+	 * Receives a message and checks whether the received message is the intended message
+	 * @param messageToReceive	The intended message to receive
+	 * @throws IOException
+	 */
+	public void receiveMessageCheck(String messageToReceive) throws IOException {
+		String receivedMessage;
+		try {
+			receivedMessage = receiveString();
+			if(!messageToReceive.equals(receivedMessage)) {
+				throw new IOException ("Unknown message received while waiting for " + messageToReceive);
+			}
+		} catch (IOException ioe) {
+			throw new IOException ("Error while receiving " + messageToReceive + ": " + ioe);
+		}
+	}
+
+	/**
+	 * Sends a file<p>
+	 * 
+	 * The content goes out with {@link FileChannel#transferTo} when the socket has a channel, and 
+	 * through the buffered stream otherwise. From {@link SocketTransferUtility#PROTOCOL_RESUMABLE} on,
+	 * the file size comes with a CRC32 of the whole file, the receiver tells the offset to resume
+	 * from, and the receiver confirms the checksum at the end.
+	 *
+	 * @param file				The file to send
+	 * @throws IOException
+	 */
+	public void sendFile(Path file) throws IOException {
+		boolean resumable = protocol >= SocketTransferUtility.PROTOCOL_RESUMABLE;
+		
+		try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+			long fileSize = fc.size();
+			
+			// sends the file name first
+			sendMessage("file name", file.getFileName().toString());
+	
+			// receives SIZE message
+			receiveMessageCheck(SocketTransferUtility.sizeMessage);
+	
+			// sends the file size second, with the checksum if resumable
+			if(resumable) {
+				sendMessage("file size", fileSize + " " + Long.toHexString(checksum(fc, fileSize)));
+			} else {
+				sendMessage("file size", Long.toString(fileSize));
+			}
+	
+			// receives READY message, with the offset to resume from if resumable
+			long offset = 0;
+			if(resumable) {
+				offset = parseOffset(receiveMessage(SocketTransferUtility.readyMessage), fileSize);
+			} else {
+				receiveMessageCheck(SocketTransferUtility.readyMessage);
+			}
+	
+			// sends the file content
+			try {
+				SocketChannel channel = socket.getChannel();
+				if(channel != null) {
+					out.flush();
+					for(long position = offset; position < fileSize;) {
+						position += fc.transferTo(position, Math.min(transferSize, fileSize - position), channel);
+					}
+				} else {
+					ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+					fc.position(offset);
+					while (fc.read(buffer) > 0) {
+						out.write(buffer.array(), 0, buffer.position());
+						buffer.clear();
+					}
+					out.flush();
+				}
+			} catch (IOException e) {
+				throw new IOException ("Error while sending file " + file.getFileName() + ": " + e);
+			}
+		}
+
+		// receives DONE message; CORRUPT leaves the receiver's ".part" file empty for a clean retry
+		String done = receiveMessage(SocketTransferUtility.doneMessage);
+		if(done.equals(SocketTransferUtility.corruptMessage)) {
+			throw new IOException ("Receiver reported a checksum mismatch on file " + file.getFileName());
+		} else if(!done.equals(SocketTransferUtility.doneMessage)) {
+			throw new IOException ("Unknown message received while waiting for " + SocketTransferUtility.doneMessage);
+		}
+	}
+
+	/**
+	 * Receives a file and stores it in the given directory
+	 *
+	 * @param targetDirectory	Directory in which the received file will be stored
+	 * @return					Path to the received file
+	 * @throws IOException
+	 */
+	public Path receiveFile(Path targetDirectory) throws IOException, NumberFormatException {
+		// receives the file name first
+		String filename = receiveMessage("file name");
+
+		return receiveFile(targetDirectory, filename);
+	}
+
+	/**
+	 * Receives the rest of a file whose name has already been received<p>
+	 * 
+	 * The content comes in with {@link FileChannel#transferFrom} when the socket has a channel and
+	 * no read timeout, since a blocking channel ignores the timeout; otherwise it is read from the
+	 * stream, which gives up on a peer that hangs. From {@link SocketTransferUtility#PROTOCOL_RESUMABLE} on, the content is written to a ".part" 
+	 * file that a later transfer of the same file resumes from, and the file is only moved to its 
+	 * name once its checksum matches the sender's.
+	 *
+	 * @param targetDirectory	Directory in which the received file will be stored
+	 * @param filename			The received file name
+	 * @return					Path to the received file
+	 * @throws IOException
+	 */
+	public Path receiveFile(Path targetDirectory, String filename) throws IOException, NumberFormatException {
+		boolean resumable 	= protocol >= SocketTransferUtility.PROTOCOL_RESUMABLE;
+		Path	file		= targetDirectory.resolve(filename);
+		Path	partFile	= resumable ? targetDirectory.resolve(filename + partSuffix) : file;
+		
+		// sends SIZE
+		sendMessage(SocketTransferUtility.sizeMessage, SocketTransferUtility.sizeMessage);
+
+		// receives the file size second, with the checksum if resumable
+		String fileSizeString 	= receiveMessage("file size");
+		String checksumString	= null;
+		if(resumable) {
+			int index = fileSizeString.indexOf(' ');
+			if(index > 0) {
+				checksumString 	= fileSizeString.substring(index + 1);
+				fileSizeString	= fileSizeString.substring(0, index);
+			}
+		}
+
+		// parses the received file size string
+		long fileSize;
+		long checksum = 0;
+		try {
+			fileSize = Long.parseLong(fileSizeString);
+			if(checksumString != null) {
+				checksum = Long.parseLong(checksumString, 16);
+			}
+		} catch (NumberFormatException nfe) {
+			throw new NumberFormatException ("Error while parsing received file size \"" + fileSizeString + "\": " + nfe);
+		}
+		
+		try (FileChannel fc = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+			// resumes from what an earlier transfer left, unless it cannot be a prefix of this file
+			long offset = 0;
+			if(resumable) {
+				offset = fc.size();
+				if(offset > fileSize) {
+					offset = 0;
+				}
+			}
+			fc.truncate(offset);
+			
+			// the sender is waiting for READY, so anything already readable has broken the conversation;
+			// a read timeout is only honored by the stream
+			SocketChannel channel = (in.available() == 0 && socket.getSoTimeout() == 0) ? socket.getChannel() : null;
+	
+			// sends READY, with the offset to resume from if resumable
+			if(resumable) {
+				sendMessage(SocketTransferUtility.readyMessage, SocketTransferUtility.readyMessage + " " + offset);
+			} else {
+				sendMessage(SocketTransferUtility.readyMessage, SocketTransferUtility.readyMessage);
+			}
+	
+			// receives the file content
+			try {
+				long position = offset;
+				if(channel != null) {
+					while (position < fileSize) {
+						long size = fc.transferFrom(channel, position, Math.min(transferSize, fileSize - position));
+						if(size <= 0) {
+							throw new EOFException ("Connection closed after " + position + "/" + fileSize + " bytes");
+						}
+						position += size;
+					}
+				} else {
+					byte[] buff = new byte[bufferSize];
+					fc.position(position);
+					while (position < fileSize) {
+						int size = in.read(buff, 0, (int) Math.min(bufferSize, fileSize - position));
+						if(size < 0) {
+							throw new EOFException ("Connection closed after " + position + "/" + fileSize + " bytes");
+						}
+						ByteBuffer buffer = ByteBuffer.wrap(buff, 0, size);
+						while (buffer.hasRemaining()) {
+							fc.write(buffer);
+						}
+						position += size;
+					}
+				}
+			} catch (IOException e) {
+				throw new IOException ("Error while receiving file " + file.getFileName() + ": " + e);
+			}
+			
+			// verifies the whole file against the sender's checksum
+			if(checksumString != null && checksum(fc, fileSize) != checksum) {
+				fc.truncate(0);
+				sendMessage(SocketTransferUtility.doneMessage, SocketTransferUtility.corruptMessage);
+				throw new IOException ("Checksum mismatch on received file " + file.getFileName());
+			}
+		}
+		
+		// moves the completed file to its name
+		if(resumable) {
+			Files.move(partFile, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		// sends DONE
+		sendMessage(SocketTransferUtility.doneMessage, SocketTransferUtility.doneMessage);
+
+		return file;
+	}
+	
+	/**
+	 * Streams a ZIP archive of files straight into the connection, without an archive file on 
+	 * either side. Requires {@link SocketTransferUtility#PROTOCOL_STREAMING}.<p>
+	 * 
+	 * The archive name goes first, the archive follows in data frames closed by an end frame,
+	 * and the receiver answers DONE once it has extracted everything. A failure on this side
+	 * aborts the stream instead.
+	 * 
+	 * @param archiveName		Name of the archive
+	 * @param files				Files to put into the archive
+	 * @throws IOException
+	 */
+	public void sendArchive(String archiveName, List<Path> files) throws IOException {
+		Map<String, Path> entries = new LinkedHashMap<>();
+		for(Path file : files) {
+			entries.put(file.getFileName().toString(), file);
+		}
+		sendArchive(archiveName, entries);
+	}
+	
+	/**
+	 * Streams a ZIP archive of files under the given entry names straight into the connection
+	 * 
+	 * @param archiveName		Name of the archive
+	 * @param entries			Entry name-file mapping
+	 * @throws IOException
+	 */
+	public void sendArchive(String archiveName, Map<String, Path> entries) throws IOException {
+		if(protocol < SocketTransferUtility.PROTOCOL_STREAMING) {
+			throw new IOException ("Archive streaming needs framing version " + SocketTransferUtility.PROTOCOL_STREAMING);
+		}
+		
+		// sends the archive name first
+		sendMessage("archive name", archiveName);
+		
+		// archives the files into data frames
+		FrameOutputStream fos = new FrameOutputStream();
+		try {
+			ArchiveUtility.archive(fos, entries);
+			fos.finish();
+		} catch (Exception e) {
+			fos.abort(e.toString());
+			throw new IOException ("Error while streaming archive " + archiveName + ": " + e);
+		}
+		
+		// receives DONE message
+		String done = receiveMessage(SocketTransferUtility.doneMessage);
+		if(done.equals(SocketTransferUtility.corruptMessage)) {
+			throw new IOException ("Receiver failed to extract archive " + archiveName);
+		} else if(!done.equals(SocketTransferUtility.doneMessage)) {
+			throw new IOException ("Unknown message received while waiting for " + SocketTransferUtility.doneMessage);
+		}
+	}
+	
+	/**
+	 * Extracts a streamed ZIP archive straight into a directory. The archive name has to be 
+	 * received with {@link #receiveMessage(String)} beforehand.
+	 * 
+	 * @param targetDirectory	Directory to which the files will be extracted
+	 * @throws IOException
+	 */
+	public void receiveArchive(Path targetDirectory) throws IOException {
+		if(protocol < SocketTransferUtility.PROTOCOL_STREAMING) {
+			throw new IOException ("Archive streaming needs framing version " + SocketTransferUtility.PROTOCOL_STREAMING);
+		}
+		
+		FrameInputStream fis = new FrameInputStream();
+		try {
+			ArchiveUtility.extract(fis, targetDirectory);
+			
+			// skips the trailing bytes that the ZIP reader has left
+			fis.drain();
+		} catch (Exception e) {
+			// an aborted stream has already ended on both sides
+			if(!fis.aborted) {
+				fis.drain();
+				sendMessage(SocketTransferUtility.doneMessage, SocketTransferUtility.corruptMessage);
+			}
+			throw new IOException ("Error while receiving archive stream: " + e);
+		}
+		
+		// sends DONE
+		sendMessage(SocketTransferUtility.doneMessage, SocketTransferUtility.doneMessage);
+	}
+	
+	/**
+	 * Output stream that cuts what is written to it into data frames<p>
+	 * 
+	 * Closing it only flushes; the stream ends with {@link #finish()} or {@link #abort(String)}, so 
+	 * that an archive closed halfway through by an error never looks complete to the receiver.
+	 */
+	protected class FrameOutputStream extends OutputStream {
+		protected byte[]	buffer	= new byte[bufferSize];
+		protected int		count	= 0;
+		
+		@Override
+		public void write(int b) throws IOException {
+			if(count == buffer.length) {
+				flushFrame();
+			}
+			buffer[count++] = (byte) b;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if(count == buffer.length) {
+					flushFrame();
+				}
+				int size = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, size);
+				count 	+= size;
+				off 	+= size;
+				len 	-= size;
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			flushFrame();
+		}
+		
+		/**
+		 * Sends the buffered bytes as a data frame
+		 */
+		protected void flushFrame() throws IOException {
+			if(count > 0) {
+				SocketTransferUtility.writeFrame(out, SocketTransferUtility.TYPE_DATA, buffer, 0, count);
+				count = 0;
+			}
+		}
+		
+		/**
+		 * Ends the stream
+		 */
+		public void finish() throws IOException {
+			flushFrame();
+			SocketTransferUtility.writeFrame(out, SocketTransferUtility.TYPE_END, new byte[0], false);
+		}
+		
+		/**
+		 * Aborts the stream; errors are ignored since the connection is already failing
+		 */
+		public void abort(String reason) {
+			try {
+				count = 0;
+				SocketTransferUtility.writeFrame(out, SocketTransferUtility.TYPE_ABORT, reason.getBytes(Constants.charset), false);
+			} catch (IOException ioe) {
+				// nothing more to do
+			}
+		}
+	}
+	
+	/**
+	 * Input stream that reads the payloads of data frames until an end frame
+	 */
+	protected class FrameInputStream extends InputStream {
+		protected byte[]	payload		= new byte[0];
+		protected int		position	= 0;
+		protected boolean	ended		= false;
+		protected boolean	aborted		= false;
+		
+		@Override
+		public int read() throws IOException {
+			if(!fill()) {
+				return -1;
+			}
+			return payload[position++] & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0) {
+				return 0;
+			}
+			if(!fill()) {
+				return -1;
+			}
+			int size = Math.min(len, payload.length - position);
+			System.arraycopy(payload, position, b, off, size);
+			position += size;
+			return size;
+		}
+		
+		@Override
+		public int available() {
+			return payload.length - position;
+		}
+		
+		@Override
+		public void close() {
+			// the connection outlives the stream
+		}
+		
+		/**
+		 * Reads frames until there are bytes to return or the stream has ended
+		 * 
+		 * @return				Whether there are bytes to return
+		 */
+		protected boolean fill() throws IOException {
+			while (position == payload.length) {
+				if(ended) {
+					return false;
+				}
+				
+				SocketTransferUtility.Frame frame = SocketTransferUtility.readFrame(in);
+				switch (frame.type) {
+					case SocketTransferUtility.TYPE_DATA:
+						payload 	= frame.payload;
+						position	= 0;
+						break;
+					case SocketTransferUtility.TYPE_END:
+						ended		= true;
+						break;
+					case SocketTransferUtility.TYPE_ABORT:
+						ended		= true;
+						aborted		= true;
+						throw new IOException ("Sender aborted the stream: " + new String(frame.payload, Constants.charset));
+					case SocketTransferUtility.TYPE_KEEPALIVE:
+						break;
+					default:
+						throw new IOException ("Unexpected frame type " + frame.type + " in a data stream");
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Skips the rest of the stream
+		 */
+		public void drain() throws IOException {
+			while (fill()) {
+				position = payload.length;
+			}
+		}
+	}
+	
+	/**
+	 * Parses the READY message of a resumable transfer
+	 * 
+	 * @param ready				The received READY message
+	 * @param fileSize			Size of the file being sent
+	 * @return					Offset to resume from
+	 * @throws IOException		The message is not a READY message or the offset is out of range
+	 */
+	protected static long parseOffset(String ready, long fileSize) throws IOException {
+		String prefix = SocketTransferUtility.readyMessage + " ";
+		if(!ready.startsWith(prefix)) {
+			throw new IOException ("Unknown message received while waiting for " + SocketTransferUtility.readyMessage);
+		}
+		
+		long offset;
+		try {
+			offset = Long.parseLong(ready.substring(prefix.length()));
+		} catch (NumberFormatException nfe) {
+			throw new IOException ("Malformed offset in \"" + ready + "\"");
+		}
+		if(offset < 0 || offset > fileSize) {
+			throw new IOException ("Offset " + offset + " is out of range [0, " + fileSize + "]");
+		}
+		
+		return offset;
+	}
+	
+	/**
+	 * Computes the CRC32 of the first bytes of a file
+	 * 
+	 * @param fc				File channel
+	 * @param size				Number of bytes to check
+	 * @return					CRC32 value
+	 * @throws IOException
+	 */
+	protected static long checksum(FileChannel fc, long size) throws IOException {
+		CRC32 		crc 	= new CRC32();
+		ByteBuffer 	buffer 	= ByteBuffer.allocate(bufferSize);
+		
+		for(long position = 0; position < size;) {
+			buffer.clear();
+			buffer.limit((int) Math.min(bufferSize, size - position));
+			int read = fc.read(buffer, position);
+			if(read < 0) {
+				throw new EOFException ("File ended after " + position + "/" + size + " bytes");
+			}
+			crc.update(buffer.array(), 0, read);
+			position += read;
+		}
+		
+		return crc.getValue();
+	}
+
+	/**
+	 * Accepts the framing offered in a received first message, and acknowledges it to the peer
+	 * if it did offer one. Peers that do not offer anything keep the legacy framing and receive
+	 * nothing.
+	 *
+	 * @param firstMessage		The received first message
+	 * @return					The framing to use with the peer
+	 * @throws IOException
+	 */
+	public int acceptFraming(String firstMessage) throws IOException {
+		int offered = SocketTransferUtility.getFramingOffer(firstMessage);
+		if(offered == SocketTransferUtility.PROTOCOL_LEGACY) {
+			return protocol;
+		}
+
+		// picks the highest framing both sides support; the acknowledgement is still in the legacy framing
+		int accepted = Math.min(offered, SocketTransferUtility.PROTOCOL_VERSION);
+		sendMessage("framing acknowledgement", SocketTransferUtility.framingAck + accepted);
+
+		setProtocol(accepted);
+		return protocol;
+	}
+
+	/**
+	 * Waits for the acknowledgement of a framing offer. An older peer does not acknowledge and
+	 * goes straight into the legacy conversation; its first message is handed back in
+	 * firstMessage[0] so that the caller can carry on with it.<p>
+	 *
+	 * The reply is read byte by byte, so that the legacy reader does not buffer any bytes of
+	 * the frames that follow.
+	 *
+	 * @param firstMessage		Receives the first legacy message of an older peer, or null
+	 * @return					The framing to use with the peer
+	 * @throws IOException
+	 */
+	public int awaitFraming(String[] firstMessage) throws IOException {
+		firstMessage[0] = null;
+
+		String reply;
+		try {
+			reply = SocketTransferUtility.readUnbuffered(in);
+		} catch (IOException ioe) {
+			throw new IOException ("Error while receiving framing acknowledgement: " + ioe);
+		}
+
+		if(reply.startsWith(SocketTransferUtility.framingAck)) {
+			try {
+				setProtocol(Integer.parseInt(reply.substring(SocketTransferUtility.framingAck.length())));
+			} catch (NumberFormatException nfe) {
+				throw new IOException ("Malformed framing acknowledgement \"" + reply + "\"");
+			}
+		} else {
+			firstMessage[0] = reply;
+		}
+
+		return protocol;
+	}
+
+	/**
+	 * Returns the legacy reader, which shares the buffered input stream
+	 */
+	protected BufferedReader getReader() {
+		if(reader == null) {
+			reader = new BufferedReader(new InputStreamReader(in));
+		}
+		return reader;
+	}
+
+	/**
+	 * Returns the legacy writer, which shares the buffered output stream
+	 */
+	protected PrintWriter getWriter() {
+		if(writer == null) {
+			writer = new PrintWriter(new OutputStreamWriter(out), true);
+		}
+		return writer;
+	}
+}
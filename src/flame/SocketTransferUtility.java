@@ -1,267 +1,369 @@
 package flame;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.Socket;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
 
 /**
- * SocketTransferUtility class has helper methods that send and receive files over socket connections.
+ * SocketTransferUtility class has helper methods that send and receive files over socket connections.<p>
+ * 
+ * Two framings are supported. The legacy framing ({@link #PROTOCOL_LEGACY}) prefixes each String with 
+ * a 2-char length code and is still used with the FLAME Adaptors and the peers that do not know better.
+ * The binary framing ({@link #PROTOCOL_BINARY}) sends each message as a frame of<br>
+ * 	[1-byte version][1-byte message type][1-byte flags][4-byte length][4-byte CRC32, optional][payload]<br>
+ * over the socket streams. A peer offers the binary framing with {@link #offerFraming(String)} on its 
+ * first legacy message, and the binary framing is only used once the other side has acknowledged it.
+ * The negotiation and the conversation itself are carried out by {@link FramedConnection}, which a
+ * conversation keeps for the life of its socket; there are no helpers taking a bare Socket, since the
+ * buffered streams of a connection must not be recreated in the middle of a conversation.
  * 
  * @author 					<a href="mailto:jaeyounb@usc.edu">Jae young Bang</a>
  * @version					2015.01
  */
 public class SocketTransferUtility {
 	
-	/**
-	 * The buffer size used for sending and receiving files
-	 */
-	private static final int 		bufferSize 		= 1024;
-	
 	/**
 	 * The file size request message exchanged after file name has been exchanged and before sending file size begins
 	 */
-	private static final String		sizeMessage		= "SIZE";
+	static final String				sizeMessage		= "SIZE";
 	
 	/**
 	 * The ready message exchanged after file size has been exchanged and before the file transfer begins
 	 */
-	private static final String		readyMessage	= "READY";
+	static final String				readyMessage	= "READY";
 	
 	/**
 	 * The DONE message exchanged after file transfer is complete
 	 */
-	private static final String 	doneMessage		= "DONE";
+	static final String 			doneMessage		= "DONE";
 	
 	/**
-	 * Sends a file over socket
-	 * 
-	 * @param socket			Socket
-	 * @param file				The file to send
-	 * @throws Exception
+	 * The message sent instead of DONE when a received file does not match its checksum
 	 */
-	public static void sendFile(Socket socket, Path file) throws IOException {
-		// sends the file name first
-		sendMessage(socket, "file name", file.getFileName().toString());
-		//System.out.println("File name sent: " + file.getFileName().toString());
-		
-		// receives SIZE message
-		receiveMessageCheck(socket, sizeMessage);
-		
-		// sends the file size second
-		long fileSize = Files.size(file);
-		sendMessage(socket, "file size", Long.toString(fileSize));
-		//System.out.println("File size sent: " + Long.toString(fileSize));
-		
-		// receives READY message
-		receiveMessageCheck(socket, readyMessage);
+	static final String				corruptMessage	= "CORRUPT";
+	
+	/**
+	 * The legacy framing: 2-char length code over PrintWriter/BufferedReader
+	 */
+	public static final int			PROTOCOL_LEGACY		= 0;
+	
+	/**
+	 * The binary framing: 4-byte length, message type, and optional checksum
+	 */
+	public static final int			PROTOCOL_BINARY		= 1;
+	
+	/**
+	 * The binary framing with resumable, checksummed file transfers
+	 */
+	public static final int			PROTOCOL_RESUMABLE	= 2;
+	
+	/**
+	 * The binary framing with ZIP archives streamed in data frames
+	 */
+	public static final int			PROTOCOL_STREAMING	= 3;
+	
+	/**
+	 * The binary framing with the source manifest exchange before a streamed archive
+	 */
+	public static final int			PROTOCOL_MANIFEST	= 4;
+	
+	/**
+	 * The binary framing with the cancellation of a running simulation
+	 */
+	public static final int			PROTOCOL_CANCEL		= 5;
+	
+	/**
+	 * The binary framing with the heartbeats of a slave running a simulation
+	 */
+	public static final int			PROTOCOL_HEARTBEAT	= 6;
+	
+	/**
+	 * The highest framing version this side supports
+	 */
+	public static final int			PROTOCOL_VERSION	= PROTOCOL_HEARTBEAT;
+	
+	/**
+	 * Binary frame type of a Keepalive message
+	 */
+	public static final byte		TYPE_KEEPALIVE		= 0;
+	
+	/**
+	 * Binary frame type of a String message
+	 */
+	public static final byte		TYPE_STRING			= 1;
+	
+	/**
+	 * Binary frame type of a chunk of streamed data
+	 */
+	public static final byte		TYPE_DATA			= 2;
+	
+	/**
+	 * Binary frame type that ends a data stream
+	 */
+	public static final byte		TYPE_END			= 3;
+	
+	/**
+	 * Binary frame type that aborts a data stream; the payload tells why
+	 */
+	public static final byte		TYPE_ABORT			= 4;
+	
+	/**
+	 * Binary frame flag telling that a CRC32 of the payload follows the length
+	 */
+	public static final byte		FLAG_CHECKSUM		= 0x01;
+	
+	/**
+	 * The largest payload a binary frame may carry
+	 */
+	private static final int		maxFrameLength		= 64 * 1024 * 1024;
+	
+	/**
+	 * Whether String frames are sent with a checksum
+	 */
+	private static volatile boolean	checksumStrings		= true;
+	
+	/**
+	 * Tag appended to the first legacy message to offer the binary framing, followed by the version
+	 */
+	private static final String		framingOffer		= "#FRAMING/";
+	
+	/**
+	 * The acknowledgement of a framing offer, followed by the accepted version
+	 */
+	static final String				framingAck			= "FRAMING/";
+	
+	/**
+	 * The message Slave Manager sends to cancel the simulation a slave is running
+	 */
+	public static final String		cancelMessage		= "CANCEL";
+	
+	/**
+	 * The message Slave Manager sends to a slave it has no room for; the slave comes back only after a long delay
+	 */
+	public static final String		refusalMessage		= "REFUSED";
+	
+	/**
+	 * A received binary frame
+	 */
+	public static class Frame {
+		public final byte		type;
+		public final byte[]		payload;
 		
-		// sends the file content
-		try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file.toFile()))) {
-			BufferedOutputStream 	bos 	= new BufferedOutputStream(socket.getOutputStream());			
-			byte[] 					bytes	= new byte[bufferSize];
-			
-			//long totalSize = 0;
-			for(int size; (size = bis.read(bytes)) > 0;) {
-				bos.write(bytes, 0, size);
-				
-				//totalSize += size;
-				//System.out.println("Sent " + size + "/" + totalSize);
-			}
-			bos.flush();
-		} catch (IOException e) {
-			throw new IOException ("Error while sending file " + file.getFileName() + ": " + e);
+		public Frame(byte type, byte[] payload) {
+			this.type		= type;
+			this.payload	= payload;
 		}
-		
-		// receives DONE message
-		receiveMessageCheck(socket, doneMessage);
 	}
 	
 	/**
-	 * Receives a file from socket and stores it in the given path
+	 * Turns on or off the checksum of the String frames sent by this JVM
+	 * @param enabled			Whether to send a CRC32 with each String frame
+	 */
+	public static void setChecksumStrings(boolean enabled) {
+		checksumStrings = enabled;
+	}
+	
+	/**
+	 * Returns whether String frames are sent with a checksum
+	 */
+	public static boolean isChecksumStrings() {
+		return checksumStrings;
+	}
+	
+	/**
+	 * Writes a binary frame and flushes it; the header and the payload go out in a single write
 	 * 
-	 * @param socket			Socket
-	 * @param targetDirectory	Directory in which the received file will be stored
-	 * @throws Exception
+	 * @param out				Output stream of the socket
+	 * @param type				Message type
+	 * @param payload			Payload
+	 * @param checksum			Whether to append a CRC32 of the payload to the header
+	 * @throws IOException
 	 */
-	public static Path receiveFile(Socket socket, Path targetDirectory) throws IOException, NumberFormatException {
-		// receives the file name first
-		String filename = receiveMessage(socket, "file name");
-		//System.out.println("File name received: " + filename);
-		
-		// sends SIZE
-		sendMessage(socket, sizeMessage, sizeMessage);
-		
-		// receives the file size second
-		String fileSizeString = receiveMessage(socket, "file size");
-		//System.out.println("File size received: " + fileSizeString);
-		
-		// parses the received file size string
-		long fileSize;
-		try {
-			fileSize = Long.parseLong(fileSizeString);
-		} catch (NumberFormatException nfe) {
-			throw new NumberFormatException ("Error while parsing received file size \"" + fileSizeString + "\": " + nfe);
-		}
-		
-		// sends READY
-		sendMessage(socket, readyMessage, readyMessage);
-		
-		// receives the file content
-		Path file = targetDirectory.resolve(filename);
-		try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file.toFile()))) {
-			BufferedInputStream 	bis 	= new BufferedInputStream(socket.getInputStream());
-			byte[] 					buff 	= new byte[bufferSize];
-			
-			int size;
-			long bytesRead = 0;
-			while (true) {
-				// computes the number of bytes to read
-				int bytesToRead;
-				if((fileSize - bytesRead) > bufferSize) {
-					bytesToRead = bufferSize;
-				} else {
-					bytesToRead = (int)(fileSize - bytesRead);
-				}
-				
-				// reads from the socket
-				size = bis.read(buff, 0, bytesToRead);
-				
-				// checks to total received bytes
-				bytesRead += size;
-				
-				//System.out.println("Received " + size + "/" + bytesRead);
-				
-				// writes what's read to the file
-				bos.write(buff, 0, size);
-				
-				if(bytesRead == fileSize) {
-					break;
-				}
-			}
-			bos.flush();
-		} catch (IOException e) {
-			throw new IOException ("Error while receiving file " + file.getFileName() + ": " + e);
+	public static void writeFrame(OutputStream out, byte type, byte[] payload, boolean checksum) throws IOException {
+		if(payload.length > maxFrameLength) {
+			throw new IOException ("Frame of " + payload.length + " bytes exceeds the maximum of " + maxFrameLength);
 		}
 		
-		// sends DONE
-		sendMessage(socket, doneMessage, doneMessage);
+		ByteBuffer frame = ByteBuffer.allocate(7 + (checksum ? 4 : 0) + payload.length);
+		putFrameHeader(frame, type, payload, 0, payload.length, checksum);
+		frame.put(payload);
 		
-		return file;
+		out.write(frame.array(), 0, frame.position());
+		out.flush();
 	}
 	
 	/**
-	 * Sends a message over a socket
-	 * @param socket			Socket
-	 * @param messageName		The message name
-	 * @param messageStr		The String that the message contains
+	 * Writes a binary frame of a part of a buffer without flushing it; used for bulk data 
+	 * that goes out in a series of frames over a buffered stream
+	 * 
+	 * @param out				Buffered output stream of the socket
+	 * @param type				Message type
+	 * @param payload			Buffer that holds the payload
+	 * @param offset			Offset of the payload in the buffer
+	 * @param length			Length of the payload
 	 * @throws IOException
 	 */
-	public static void sendMessage(Socket socket, String messageName, String messageStr) throws IOException {
-		try {
-			sendString(socket, messageStr);
-		} catch (IOException ioe) {
-			throw new IOException ("Error while sending " + messageName + " " + messageStr + ": " + ioe);
+	public static void writeFrame(OutputStream out, byte type, byte[] payload, int offset, int length) throws IOException {
+		if(length > maxFrameLength) {
+			throw new IOException ("Frame of " + length + " bytes exceeds the maximum of " + maxFrameLength);
 		}
+		
+		ByteBuffer header = ByteBuffer.allocate(7);
+		putFrameHeader(header, type, payload, offset, length, false);
+		
+		out.write(header.array(), 0, header.position());
+		out.write(payload, offset, length);
 	}
 	
 	/**
-	 * Sends a Keepalive message over a socket
-	 * @param socket			Socket
-	 * @throws IOException
+	 * Puts a binary frame header into a buffer
 	 */
-	public static void sendKeepalive(Socket socket) throws IOException {
-		try {
-			sendString(socket, "");
-		} catch (IOException ioe) {
-			throw new IOException ("Error while sending Keepalive: " + ioe);
+	private static void putFrameHeader(ByteBuffer frame, byte type, byte[] payload, int offset, int length, boolean checksum) {
+		frame.put((byte) PROTOCOL_BINARY);
+		frame.put(type);
+		frame.put(checksum ? FLAG_CHECKSUM : 0);
+		frame.putInt(length);
+		if(checksum) {
+			CRC32 crc = new CRC32();
+			crc.update(payload, offset, length);
+			frame.putInt((int) crc.getValue());
 		}
 	}
 	
 	/**
-	 * Receives a message over a socket
-	 * @param socket			Socket
-	 * @param messageName		The message name
-	 * @return					The received message
-	 * @throws IOException
+	 * Reads a binary frame; blocks until the whole frame has arrived
+	 * 
+	 * @param in				Input stream of the socket
+	 * @return					The received frame
+	 * @throws IOException		The stream ended, or the frame is malformed or corrupted
 	 */
-	public static String receiveMessage(Socket socket, String messageName) throws IOException {
-		String receivedMessage;
-		try {
-			while (true) {
-				receivedMessage = receiveString(socket);
-				
-				if(receivedMessage == null) {
-					
-				} else {
-					break;
-				}
+	public static Frame readFrame(InputStream in) throws IOException {
+		DataInputStream dis = new DataInputStream(in);
+		
+		// reads the header
+		int version = dis.readUnsignedByte();
+		if(version != PROTOCOL_BINARY) {
+			throw new IOException ("Unsupported frame version " + version);
+		}
+		byte type	= dis.readByte();
+		byte flags	= dis.readByte();
+		int length	= dis.readInt();
+		if(length < 0 || length > maxFrameLength) {
+			throw new IOException ("Invalid frame length " + length);
+		}
+		int checksum = (flags & FLAG_CHECKSUM) != 0 ? dis.readInt() : 0;
+		
+		// reads the payload; readFully loops until the buffer is full
+		byte[] payload = new byte[length];
+		dis.readFully(payload);
+		
+		// verifies the payload
+		if((flags & FLAG_CHECKSUM) != 0) {
+			CRC32 crc = new CRC32();
+			crc.update(payload, 0, length);
+			if((int) crc.getValue() != checksum) {
+				throw new IOException ("Frame checksum mismatch");
 			}
-			
-		} catch (IOException ioe) {
-			throw new IOException ("Error while receiving " + messageName + ": " + ioe);
 		}
 		
-		return receivedMessage;
+		return new Frame(type, payload);
 	}
 	
 	/**
-	 * Receives a message and checks whether the received message is the intended message
-	 * @param socket			Socket
-	 * @param messageToReceive	The intended message to receive
-	 * @throws IOException
+	 * Appends the binary framing offer to the first legacy message of a connection
+	 * 
+	 * @param firstMessage		The first message (e.g., the slave name)
+	 * @return					The first message with the offer
 	 */
-	public static void receiveMessageCheck(Socket socket, String messageToReceive) throws IOException {
-		String receivedMessage;
-		try {
-			receivedMessage = receiveString(socket);
-			if(!receivedMessage.equals(messageToReceive)) {
-				throw new IOException ("Unknown message received while waiting for " + messageToReceive);
-			}
-		} catch (IOException ioe) {
-			throw new IOException ("Error while receiving " + messageToReceive + ": " + ioe);
-		}
+	public static String offerFraming(String firstMessage) {
+		return firstMessage + framingOffer + PROTOCOL_VERSION;
 	}
 	
 	/**
-	 * Sends a string over socket
-	 * @param socket			Socket
-	 * @param str				The string to send
-	 * @throws Exception
+	 * Strips the framing offer from a received first message
+	 * 
+	 * @param firstMessage		The received first message
+	 * @return					The first message without the offer
 	 */
-	public static void sendString(Socket socket, String str) throws IOException {
-		try {
-			PrintWriter pw	= new PrintWriter(socket.getOutputStream(), true);
-			SocketTransferUtility.write(pw, str);
-		} catch (IOException e) {
-			throw new IOException ("Error while sending \"" + str + "\": " + e);
-		}
+	public static String stripFramingOffer(String firstMessage) {
+		int index = firstMessage.lastIndexOf(framingOffer);
+		return index < 0 ? firstMessage : firstMessage.substring(0, index);
 	}
 	
 	/**
-	 * Receives a string from socket
-	 * @param socket			Socket
-	 * @return					The string read
-	 * @throws Exception
+	 * Returns the framing version offered in a received first message
+	 * 
+	 * @param firstMessage		The received first message
+	 * @return					The offered version; {@link #PROTOCOL_LEGACY} if none
 	 */
-	public static String receiveString(Socket socket) throws IOException {
-		String line = null;
+	public static int getFramingOffer(String firstMessage) {
+		int index = firstMessage.lastIndexOf(framingOffer);
+		if(index < 0) {
+			return PROTOCOL_LEGACY;
+		}
 		
 		try {
-			BufferedReader br 	= new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			line 				= SocketTransferUtility.read(br);
-		} catch (IOException e) {
-			throw new IOException ("Error while reading from socket: " + e);
+			return Math.max(PROTOCOL_LEGACY, Integer.parseInt(firstMessage.substring(index + framingOffer.length())));
+		} catch (NumberFormatException nfe) {
+			return PROTOCOL_LEGACY;
 		}
+	}
+	
+	/**
+	 * Reads a legacy-framed ASCII String from a byte stream without a decoding reader
+	 * 
+	 * @param in				Input stream of the socket
+	 * @return					Received String
+	 * @throws IOException
+	 */
+	protected static String readUnbuffered(InputStream in) throws IOException {
+		DataInputStream dis = new DataInputStream(in);
 		
-		return line;
+		while (true) {
+			// ASCII chars are single bytes, and so are the length codes of messages up to 16K
+			int length = dis.readUnsignedByte() * 128 + dis.readUnsignedByte();
+			
+			// 0 length means it is a Keepalive message
+			if (length == 0) {
+				continue;
+			}
+			
+			byte[] buffer = new byte[length];
+			dis.readFully(buffer);
+			for(byte b : buffer) {
+				if(b < 0) {
+					throw new IOException ("Non-ASCII legacy message");
+				}
+			}
+			
+			return new String(buffer, "US-ASCII");
+		}
+	}
+	
+	/**
+	 * Reads from a Reader until the buffer is full
+	 * 
+	 * @param in				Reader
+	 * @param buffer			Buffer to fill
+	 * @param length			Number of chars to read
+	 * @throws IOException		The stream ended before the buffer is full
+	 */
+	private static void readFully(Reader in, char[] buffer, int length) throws IOException {
+		int offset = 0;
+		while (offset < length) {
+			int size = in.read(buffer, offset, length - offset);
+			if (size < 0) {
+				throw new EOFException ("Stream ended after " + offset + "/" + length + " chars");
+			}
+			offset += size;
+		}
 	}
 	
 	/**
@@ -285,9 +387,7 @@ public class SocketTransferUtility {
 		try {
 			while (true) {
 				// reads the first two bytes that say how long the following message is
-				if (in.read(len_buf, 0, 2) != 2) {
-					throw new IOException ("Error while reading the length code");
-				}
+				readFully(in, len_buf, 2);
 				
 				// decodes the length
 				length = ((int) (len_buf[0])) * 128 + ((int) len_buf[1]);
@@ -304,9 +404,7 @@ public class SocketTransferUtility {
 			buffer = new char[length];
 			
 			// reads the message
-			if (in.read(buffer, 0, length) != length) {
-				throw new IOException ("Received message is too short");
-			}
+			readFully(in, buffer, length);
 		} catch (IOException ioe) {
 			throw new IOException ("Error while reading a message: " + ioe);
 		}
@@ -6,6 +6,7 @@ import java.nio.file.Paths;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Date;
 import java.util.Properties;
 
 public class Utility {
@@ -24,17 +25,53 @@ public class Utility {
 	public static final String excelDateFormat = "MM/dd/yyyy HH:mm:ss";
 	
 	/**
-	 * Converts the time from milliseconds to human-readable format
+	 * FLAME date format of each thread, since SimpleDateFormat is not thread-safe
+	 */
+	private static final ThreadLocal<SimpleDateFormat> flameDateFormatter = new ThreadLocal<SimpleDateFormat> () {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat(flameDateFormat);
+		}
+	};
+	
+	/**
+	 * A second and its human-readable time
+	 */
+	private static final class ConvertedDate {
+		private final long 		second;
+		private final String	text;
+		
+		private ConvertedDate(long second, String text) {
+			this.second = second;
+			this.text	= text;
+		}
+	}
+	
+	/**
+	 * The last converted second, replaced as a whole
+	 */
+	private static volatile ConvertedDate lastConvertedDate = new ConvertedDate(Long.MIN_VALUE, "");
+	
+	/**
+	 * Converts the time from milliseconds to human-readable format<p>
+	 * 
+	 * The format has a resolution of a second, so the string of the last second is reused.
+	 * 
 	 * @param millisecs			Current system time in milliseconds
 	 * @return					Human-readable time in "yyyyMMdd_kkmm_ss" format
 	 */
 	public static String convertDate (long millisecs) {
-		SimpleDateFormat date_format = new SimpleDateFormat(flameDateFormat);
+		long 			second 	= (millisecs >= 0) ? millisecs / 1000 : (millisecs - 999) / 1000;
+		ConvertedDate	last	= lastConvertedDate;
 		
-		Calendar c = Calendar.getInstance();
-		c.setTimeInMillis(millisecs);
+		if(last.second == second) {
+			return last.text;
+		}
+		
+		String converted = flameDateFormatter.get().format(new Date(millisecs));
+		lastConvertedDate = new ConvertedDate(second, converted);
 		
-	    return date_format.format(c.getTime());
+	    return converted;
 	}
 	
 	/**
@@ -226,7 +226,10 @@ public class FLAMEClient extends AbstractImplementationForClient {
 								int 	tracker_port,
 								boolean	xteamGUISwitch) throws Exception {
 		this (componentName, modelPath, modelsDirPath, GMEPath, xteamGUISwitch);
-		ports				= new PortNumberTracker(tracker_port, getScreenLogger());
+		ports				= new PortNumberTracker(tracker_port, 
+													Integer.parseInt(props.getProperty("TRACKER_THREADS", String.valueOf(PortNumberTracker.DEFAULT_HANDLER_THREADS))),
+													Integer.parseInt(props.getProperty("TRACKER_QUEUE_SIZE", String.valueOf(PortNumberTracker.DEFAULT_HANDLER_QUEUE))),
+													getScreenLogger());
 	}
 	
 
@@ -585,6 +588,25 @@ public class FLAMEClient extends AbstractImplementationForClient {
 					
 					
 					
+					break;
+							
+				//////////////////////////////////
+				// handling History events -- a batch of the initial update Events
+				//////////////////////////////////
+					
+				case "History":
+					
+					// handles the Events one by one as they were sent individually
+					for(Event evt : getHistoryEvents(e)) {
+						handle(evt);
+					}
+					
+					// lets FLAME Server send the next batch
+					sendHistoryAck(username, e);
+					
+					// asks for the history again if the replay has been aborted
+					checkHistoryEnd(username, e);
+					
 					break;
 							
 				//////////////////////////////////
@@ -709,6 +731,11 @@ public class FLAMEClient extends AbstractImplementationForClient {
 			return;
 		}
 		
+		// the GUIs present the final results only, since they take the totals as the conflicts
+		if(e.hasParameter("Partial") && (Boolean) e.getParameter("Partial")) {
+			return;
+		}
+		
 		// present the info on the screen
 		flameGUI.presentXTEAMInfo(e.replicate());
 	}
@@ -2,13 +2,15 @@ package flame.detectors.slave;
 
 import java.net.Socket;
 
+import flame.FramedConnection;
+
 public class SlaveInfo {
 	
 ///////////////////////////////////////////////
 // Member Variables
 ///////////////////////////////////////////////
 	
-	private Socket					socket;
+	private FramedConnection		connection;
 	
 	private String					name 		= null;
 	
@@ -16,9 +18,9 @@ public class SlaveInfo {
 // Constructors
 ///////////////////////////////////////////////
 	
-	public SlaveInfo (String name, Socket socket) throws Exception {
-		this.name	= name;
-		this.socket = socket;
+	public SlaveInfo (String name, FramedConnection connection) throws Exception {
+		this.name		= name;
+		this.connection = connection;
 	}
 	
 ///////////////////////////////////////////////
@@ -26,10 +28,25 @@ public class SlaveInfo {
 ///////////////////////////////////////////////	
 
 	public Socket getSocket() {
-		return socket;
+		return connection.getSocket();
+	}
+	
+	public FramedConnection getConnection() {
+		return connection;
 	}
 	
 	public String getName() {
 		return name;
 	}
+	
+	/**
+	 * Returns the name of the machine; the slots of a multi-slot slave are named "node/index"
+	 */
+	public String getNodeName() {
+		int index = name.lastIndexOf('/');
+		if(index > 0 && name.substring(index + 1).matches("[0-9]+")) {
+			return name.substring(0, index);
+		}
+		return name;
+	}
 }
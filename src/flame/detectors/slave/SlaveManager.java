@@ -1,20 +1,27 @@
 package flame.detectors.slave;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import flame.ArchiveUtility;
 import flame.FileUtility;
+import flame.FramedConnection;
 import flame.ScreenLogger;
 import flame.SocketTransferUtility;
 import flame.detectors.slave.xteam.XTEAMSlave;
@@ -27,6 +34,13 @@ import flame.detectors.xteam.distributed.XTEAMDistributedSimulation;
  * a request was made, the earlier it would be served) or in the reverse order (the earlier
  * a request was made, the later it would be served).<p>
  * 
+ * In the coalescing mode, a new simulation request of an architect supersedes the queued ones 
+ * of the same architect, and optionally cancels the one a slave is running.<p>
+ * 
+ * A slave that fails while running a simulation, or that stops sending heartbeats, is 
+ * dropped, and the simulation is dispatched to another slave until its retry budget runs out.
+ * The slave reconnects on its own once it is back.<p>
+ * 
  * @author 					<a href="mailto:jaeyounb@usc.edu">Jae young Bang</a>
  * @version					2015.01
  *
@@ -41,26 +55,27 @@ public class SlaveManager {
 	 * Queue of simulation requests. XTEAMEngine adds simulation requests in this queue, while
 	 * Slave Manager continuously pops the head element, runs the simulation to the point right
 	 * before compilation. If a compilation is necessary, Slave Manager will put the request into
-	 * the compilationRequests deque. 
+	 * the scheduler. 
 	 */
 	protected BlockingQueue<XTEAMDistributedSimulation>
 										simulationRequests		= new ArrayBlockingQueue<>(100, true);
 	
 	/**
-	 * Queue of compilation requests. It is a Deque for the Slave Manager to be able to "take" 
-	 * from the head or the tail depending on the configuration. Slave Manager has a separate thread
-	 * that continuously pops the head (or the tail, depending on the configuration) and creates a 
-	 * new thread that recruits an available slave, assigns the slave to run the compilation (and 
-	 * execution), and waits until the slave finishes working.
+	 * Scheduler of the compilation requests. Slave Manager has a thread per connected slave that
+	 * continuously takes a compilation request for the slave from the scheduler, assigns the slave
+	 * to run the compilation (and execution), and waits until the slave finishes working.
 	 */
-	protected BlockingDeque<XTEAMDistributedSimulation> 		
-										compilationRequests 	= new LinkedBlockingDeque<>();
+	protected SlaveScheduler			scheduler;
 	
 	/**
-	 * Queue of available slaves; only the slaves in this list are available for new
-	 * simulation requests
+	 * Pool of the threads serving the connected slaves; a slave beyond maxSlaves is turned away
 	 */
-	protected BlockingQueue<SlaveInfo>	availableSlaves			= new ArrayBlockingQueue<>(100, true);
+	protected ThreadPoolExecutor		slaveRunners;
+	
+	/**
+	 * Maximum number of slaves (slots) served at once
+	 */
+	protected int						maxSlaves				= 64;
 	
 	/**
 	 * Port number that will wait for slaves to connect to
@@ -86,6 +101,26 @@ public class SlaveManager {
 	 * The amount of time in minutes between each Keepalive message
 	 */
 	protected final int					keepaliveTimeMin		= 2;
+	
+	/**
+	 * The amount of time in milliseconds between each check for a cancelled simulation
+	 */
+	protected final int					cancelCheckTimeMs		= 200;
+	
+	/**
+	 * The amount of time in milliseconds a newly connected slave has to complete its handshake
+	 */
+	protected final int					handshakeTimeoutMs		= 10000;
+	
+	/**
+	 * The amount of time in seconds a slave may stay silent while running a simulation
+	 */
+	protected int						heartbeatTimeoutSec		= 60;
+	
+	/**
+	 * Number of times a simulation is dispatched again after its slave failed
+	 */
+	protected int						maxRetries				= 2;
 
 ///////////////////////////////////////////////
 // Constructors
@@ -100,9 +135,58 @@ public class SlaveManager {
 	public SlaveManager (	int 			slaveManagerPort,
 							boolean			reverse,
 							ScreenLogger 	screenLogger) {
+		this(slaveManagerPort, reverse, false, false, screenLogger);
+	}
+	
+	/**
+	 * Constructor with the coalescing mode
+	 * @param slaveManagerPort		Port that will wait for slaves to connect to
+	 * @param reverse				Switch to run later simulation requests first
+	 * @param coalesce				Switch to let a new request supersede the queued requests of the same architect
+	 * @param cancelRunning			Switch to cancel the running request of the architect as well
+	 * @param screenLogger			Screen Logger instance
+	 */
+	public SlaveManager (	int 			slaveManagerPort,
+							boolean			reverse,
+							boolean			coalesce,
+							boolean			cancelRunning,
+							ScreenLogger 	screenLogger) {
 		this.slaveManagerPort	= slaveManagerPort;
 		this.reverse			= reverse;
 		this.screenLogger 		= screenLogger;
+		this.scheduler			= new SlaveScheduler(reverse, coalesce, cancelRunning);
+	}
+	
+	/**
+	 * Sets how failed slaves are handled
+	 * @param maxRetries			Number of times a simulation is dispatched again after its slave failed
+	 * @param heartbeatTimeoutSec	Time in seconds a slave may stay silent while running a simulation
+	 */
+	public void setFaultTolerance (int maxRetries, int heartbeatTimeoutSec) {
+		this.maxRetries				= maxRetries;
+		this.heartbeatTimeoutSec	= heartbeatTimeoutSec;
+	}
+	
+	/**
+	 * Sets the maximum number of slaves served at once; takes effect at {@link #launch()}
+	 * @param maxSlaves				Maximum number of slaves (slots)
+	 */
+	public void setMaxSlaves (int maxSlaves) {
+		this.maxSlaves = Math.max(1, maxSlaves);
+	}
+	
+	/**
+	 * Returns the number of slaves being served
+	 */
+	public int getActiveSlaveCount () {
+		return slaveRunners == null ? 0 : slaveRunners.getActiveCount();
+	}
+	
+	/**
+	 * Returns the number of simulation requests waiting for a syntax check or for a slave
+	 */
+	public int getQueuedRequestCount () {
+		return simulationRequests.size() + scheduler.getQueuedCount();
 	}
 	
 ///////////////////////////////////////////////
@@ -116,21 +200,11 @@ public class SlaveManager {
 			Socket clientSocket;
 			
 			printMsgTarget(threadName, "Accepting slave connections ...");
-			while (true) {			
-				String slaveName;
-				
+			while (true) {
+				// accepts the connection; only a failure of the server socket ends the loop
 				try {
-					// accepts the connection
 					clientSocket = serverSocket.accept();
-					clientSocket.setSoTimeout(0);
-					clientSocket.setKeepAlive(true);
-					
-					// receives the slave name
-					slaveName = SocketTransferUtility.receiveString(clientSocket);
-					
-					// puts the SlaveInfo instance in the available slave queue
-					availableSlaves.put(new SlaveInfo(slaveName, clientSocket));
-				} catch (Exception e) {
+				} catch (IOException e) {
 					printMsgTarget(threadName, "Error while accepting a new slave: " + e);
 					
 					// closes the server socket
@@ -143,9 +217,69 @@ public class SlaveManager {
 					break;
 				}
 				
-				printMsgActivityTarget(threadName, slaveName, "Accepted a new slave.");
+				// a slave that fails its handshake is dropped alone
+				try {
+					handshake(clientSocket);
+				} catch (Exception e) {
+					printMsgTarget(threadName, "Error while accepting a new slave from " + clientSocket.getRemoteSocketAddress() + ": " + e);
+					try {
+						clientSocket.close();
+					} catch (IOException ioe) {
+						printMsgTarget(threadName, "Error while closing the slave socket" + ioe);
+					}
+				}
 			}
 		}
+		
+		/**
+		 * Receives the name of a connected slave, negotiates the framing, and hands the slave to
+		 * a SlaveRunner; a slave that does not complete the handshake in time is dropped
+		 * 
+		 * @param clientSocket		The accepted socket
+		 * @throws Exception		The handshake failed
+		 */
+		protected void handshake(Socket clientSocket) throws Exception {
+			clientSocket.setSoTimeout(handshakeTimeoutMs);
+			clientSocket.setKeepAlive(true);
+			
+			// the connection keeps the socket streams for the life of the slave
+			FramedConnection connection = new FramedConnection(clientSocket);
+			
+			// receives the slave name, which may carry a framing offer
+			String hello 		= connection.receiveString();
+			String slaveName	= SocketTransferUtility.stripFramingOffer(hello);
+			
+			// negotiates the framing with the slave
+			connection.acceptFraming(hello);
+			
+			// a slave that sends heartbeats is dropped when it stays silent for too long
+			if(connection.getProtocol() >= SocketTransferUtility.PROTOCOL_HEARTBEAT) {
+				clientSocket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(heartbeatTimeoutSec));
+			} else {
+				clientSocket.setSoTimeout(0);
+			}
+			
+			// starts serving the slave, and adds it to the scheduler once served
+			SlaveInfo slave = new SlaveInfo(slaveName, connection);
+			try {
+				slaveRunners.execute(new SlaveRunner(slave));
+			} catch (RejectedExecutionException ree) {
+				printMsgActivityTarget(threadName, slaveName, "Turned away; " + maxSlaves + " slaves are being served.");
+				
+				// tells the slave to back off; older slaves only see the connection close
+				if(connection.getProtocol() >= SocketTransferUtility.PROTOCOL_STREAMING) {
+					try {
+						connection.sendMessage("refusal", SocketTransferUtility.refusalMessage);
+					} catch (IOException ioe) {
+						printMsgActivityTarget(threadName, slaveName, "Error while refusing: " + ioe);
+					}
+				}
+				connection.close();
+				return;
+			}
+			
+			printMsgActivityTarget(threadName, slaveName, "Accepted a new slave.");
+		}
 	}
 	
 ///////////////////////////////////////////////
@@ -175,16 +309,17 @@ public class SlaveManager {
 				printMsgActivityTarget(threadName, simulationName, numErrors + " syntax errors found.");
 				
 				if(numErrors == 0) {
-					try {
-						// sends simulation beginning notification
-						simulation.sendSimulationBeginningNotification();
-						
-						// puts it in the compilation request queue
-						compilationRequests.put(simulation);
-						printMsgActivityTarget(threadName, simulationName, "Compilation request created.");
-					} catch (InterruptedException ie) {
-						printMsgTarget(threadName, "Interrupted while waiting to put a compilation request");
-						return;
+					// sends simulation beginning notification
+					simulation.sendSimulationBeginningNotification();
+					
+					// queues it at the slave expected to finish it first
+					List<XTEAMDistributedSimulation> superseded = scheduler.submit(simulation);
+					printMsgActivityTarget(threadName, simulationName, "Compilation request created (" + getQueuedRequestCount() + " queued, " + getActiveSlaveCount() + " slaves).");
+					
+					// the superseded requests will never run; closes them for the architect
+					for(XTEAMDistributedSimulation stale : superseded) {
+						printMsgActivityTarget(threadName, stale.getSimulationPath().getFileName().toString(), "Superseded by " + simulationName + ".");
+						stale.sendSimulationCompletionNotification();
 					}
 				}
 			}
@@ -193,27 +328,25 @@ public class SlaveManager {
 	}
 	
 ///////////////////////////////////////////////
-// Compilation Request Handling Thread
+// Slave Serving Thread
 ///////////////////////////////////////////////
 	
-	public class CompilationRequestHandler extends Thread {
-		protected final String threadName = "CompHndler";
+	public class SlaveRunner implements Runnable {
+		protected final	String 		threadName = "SlvRun";
+		private 		SlaveInfo	slave;
+		private			String		slaveName;
+		
+		public SlaveRunner (SlaveInfo slave) {
+			this.slave 	= slave;
+			slaveName	= slave.getName();
+		}
 		
 		@Override
 		public void run() {
+			scheduler.addSlave(slave);
+			
 			while (true) {
-				// waits for a slave to become available
-				SlaveInfo slave;
-				try {
-					slave = availableSlaves.take();
-				} catch (InterruptedException e1) {
-					printMsgTarget(threadName, "Interrupted while waiting to recruit a FLAME slave.");
-					return;
-				}
-				String 		slaveName	= slave.getName();
-				printMsgActivityTarget(threadName, slaveName, "A slave has been recruited.");
-
-				// takes a compilation request
+				// takes a compilation request for the slave
 				XTEAMDistributedSimulation compilation;
 				try {
 					/* 
@@ -222,123 +355,82 @@ public class SlaveManager {
 					 * send a KEEPALIVE message and retry
 					 */
 					while (true) {
-						if(reverse == false) {
-							// if reverse conflict detection is off, takes the head of the queue
-							compilation = compilationRequests.pollFirst(keepaliveTimeMin, TimeUnit.MINUTES);
-						} else {
-							// if reverse conflict detection is on, takes the tail of the queue
-							compilation = compilationRequests.pollLast(keepaliveTimeMin, TimeUnit.MINUTES);
-						}
+						compilation = scheduler.take(slave, TimeUnit.MINUTES.toMillis(keepaliveTimeMin));
 						
 						// if there was a compilation request
 						if(compilation != null) {
 							break;
 						} else {
-							SocketTransferUtility.sendKeepalive(slave.getSocket());
+							slave.getConnection().sendKeepalive();
 							printMsgActivityTarget(threadName, slaveName, "Keepalive sent.");
 						}
 					}
-					
 				} catch (InterruptedException ie) {
 					printMsgTarget(threadName, "Interrupted while waiting to take a compilation request");
+					dropSlave();
 					return;
 				} catch (Exception e) {
-					printMsgTarget(threadName, e.getMessage());
+					printMsgActivityTarget(threadName, slaveName, "Slave is gone: " + e.getMessage());
+					dropSlave();
 					return;
 				}
 				
-				CompileRequest cr = new CompileRequest(slave, compilation);
-				cr.start();
+				String compilationName = compilation.getSimulationPath().getFileName().toString();
+				int attempt = compilation.addAttempt();
+				printMsgActivityTarget(threadName, compilationName, "Compilation request taken by " + slaveName + " (attempt " + attempt + ").");
+				
+				// compiles and runs simulation
+				long startTime = System.currentTimeMillis();
+				try {
+					handleSimulationRequest(slave, compilation);
+				} catch (Exception e) {
+					printMsgActivityTarget(threadName, slaveName, "Slave failed: " + e);
+					scheduler.complete(slave, compilation, System.currentTimeMillis() - startTime, false);
+					dropSlave();
+					redispatch(compilation);
+					return;
+				}
+				
+				// analyzes the result; an analysis error is not the slave's fault
+				analyzeSimulationResult(compilation);
+				scheduler.complete(slave, compilation, System.currentTimeMillis() - startTime, true);
+				
+				printMsgActivityTarget(threadName, slaveName, "Slave has been released.");
 			}
 		}
-	}
-	
-	public class CompileRequest extends Thread {
-		protected final	String 						threadName = "CompHndl";
-		private 		SlaveInfo					slave;
-		private			String						slaveName;
-		private 		XTEAMDistributedSimulation 	compilation;
 		
-		public CompileRequest (SlaveInfo slave, XTEAMDistributedSimulation compilation) {
-			this.slave 			= slave;
-			slaveName			= slave.getName();
-			this.compilation	= compilation;
+		/**
+		 * Removes the slave from the scheduler and closes its connection
+		 */
+		protected void dropSlave() {
+			scheduler.removeSlave(slave);
+			try {
+				slave.getConnection().close();
+			} catch (IOException ioe) {
+				printMsgActivityTarget(threadName, slaveName, "Error while closing the connection: " + ioe);
+			}
 		}
 		
-		@Override
-		public void run() {
-			String compilationName = compilation.getSimulationPath().getFileName().toString();
-			printMsgActivityTarget(threadName, compilationName, "Compilation request taken.");
+		/**
+		 * Dispatches a simulation of a failed slave to another slave, or gives up on it when it 
+		 * has been cancelled, superseded, or has failed too many times 
+		 */
+		protected void redispatch(XTEAMDistributedSimulation simulation) {
+			String simulationName = simulation.getSimulationPath().getFileName().toString();
 			
-			// compiles and runs simulation
-			try {
-				handleSimulationRequest(slave, compilation);
-			} catch (Exception e) {
-				printMsg("Error while handling simulation request: " + e);
+			if(simulation.isCancelled()) {
+				printMsgActivityTarget(threadName, simulationName, "Sim was cancelled; not dispatched again.");
+			} else if(simulation.getAttempts() > maxRetries) {
+				printMsgActivityTarget(threadName, simulationName, "Sim failed " + simulation.getAttempts() + " times; giving up.");
+			} else if(scheduler.resubmit(simulation)) {
+				printMsgActivityTarget(threadName, simulationName, "Sim dispatched again.");
 				return;
+			} else {
+				printMsgActivityTarget(threadName, simulationName, "Sim was superseded; not dispatched again.");
 			}
 			
-			// puts the slave back into the available slaves list
-			try {
-				availableSlaves.put(slave);
-			} catch (InterruptedException e) {
-				printMsgActivityTarget(threadName, slaveName, "Interrupted while waiting to release a slave.");
-				return;
-			}		
-			printMsgActivityTarget(threadName, slaveName, "Slave has been released.");
-		}
-	}
-	
-	
-///////////////////////////////////////////////
-// Keepalive Thread
-///////////////////////////////////////////////
-	
-	public class Keepalive extends Thread {
-		protected final String threadName = "Keepalive";
-		
-		@Override
-		public void run() {
-			while (true) {
-				// sleeps first
-				try {
-					Thread.sleep(keepaliveTimeMin * 1000 * 60);
-				} catch (InterruptedException e) {
-					printMsgTarget(threadName, e.getMessage());
-					return;
-				}
-				
-				// queue of slaves to which a Keepalive has been sent
-				List<SlaveInfo> doneSlaves = new ArrayList<>();
-				
-				// pops slaves until the queue is empty and sends keepalive
-				while (true) {
-					SlaveInfo slave = availableSlaves.poll();
-					
-					if (slave == null) {
-						break;
-					} else {
-						try {
-							SocketTransferUtility.sendKeepalive(slave.getSocket());
-							printMsgActivityTarget(threadName, slave.getName(), "Keepalive sent.");
-						} catch (Exception e) {
-							printMsgTarget(threadName, e.getMessage());
-							return;
-						}
-						doneSlaves.add(slave);
-					}
-				}
-				
-				// pushes slaves back to the available slaves queue
-				for (SlaveInfo slave : doneSlaves) {
-					try {
-						availableSlaves.put(slave);
-					} catch (InterruptedException e) {
-						printMsgActivityTarget(threadName, slave.getName(), "Interrupted while waiting to release a slave.");
-						return;
-					}
-				}
-			}
+			// the simulation will never run again; closes it for the architect
+			simulation.sendSimulationCompletionNotification();
 		}
 	}
 	
@@ -352,13 +444,18 @@ public class SlaveManager {
 	public void launch () throws Exception {
 		// opens the server socket
 		try {
-			serverSocket = new ServerSocket(slaveManagerPort);
+			// opens the socket through a channel so that the accepted sockets can transfer files with zero-copy
+			serverSocket = ServerSocketChannel.open().socket();
+			serverSocket.bind(new InetSocketAddress(slaveManagerPort));
 		} catch(Exception e) {
 			throw new Exception ("Error while opening up the server socket: " + e);
 		}
 		
 		printMsg("Socket initialization completed at port " + serverSocket.getLocalPort() + ".");
 		
+		// creates the pool of the threads serving the slaves; a thread lives as long as its slave
+		slaveRunners = new ThreadPoolExecutor(0, maxSlaves, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+		
 		// launches the SlaveAccepter thread
 		SlaveAccepter sa = new SlaveAccepter();
 		sa.start();
@@ -367,13 +464,6 @@ public class SlaveManager {
 		SimulationRequestHandler srh = new SimulationRequestHandler();
 		srh.start();
 		
-		// launches the CompilationRequestHandler thread
-		CompilationRequestHandler crh = new CompilationRequestHandler();
-		crh.start();	
-		
-		// launches the Keepalive thread
-		Keepalive keep = new Keepalive();
-		keep.start();
 	}
 	
 	/**
@@ -390,10 +480,10 @@ public class SlaveManager {
 	}
 	
 	/**
-	 * Handles a simulation request
+	 * Handles a simulation request: sends the source code to a slave and receives the result
 	 * 
 	 * @param simulation				Simulation instance 
-	 * @throws Exception
+	 * @throws Exception				The slave failed; its connection is no longer usable
 	 */
 	protected void handleSimulationRequest (SlaveInfo slave, 
 											XTEAMDistributedSimulation simulation) throws Exception {
@@ -404,6 +494,11 @@ public class SlaveManager {
 		List<Path> filesToSend	= new ArrayList<>();
 		try {
 			printMsgTarget(simulationName, "Handling sim request begins.");
+			
+			// clears what a failed slave may have left behind
+			if(simulation.getAttempts() > 1 && Files.isDirectory(resultDirectory)) {
+				FileUtility.deleteDirectory(resultDirectory);
+			}
 
 			// makes the list of source code files to send
 			List<Path> headerFiles 	= FileUtility.findFilesWithExtension(sourceCodeDirectory, "h");
@@ -413,16 +508,41 @@ public class SlaveManager {
 			
 			printMsgTarget(simulationName, 	"Sim code files list created.");
 			
-			// makes a ZIP archive of the files to send
-			Path sourceCodeArchive = sourceCodeDirectory.resolve(simulationName + ".zip");
-			ArchiveUtility.archive(sourceCodeArchive, filesToSend);
-			
-			printMsgTarget(simulationName, "Sim code archive created.");
-			
-			// requests the simulation to a slave
-			requestSimulation(slave, simulationName, sourceCodeArchive, resultDirectory);
+			if(slave.getConnection().getProtocol() >= SocketTransferUtility.PROTOCOL_STREAMING) {
+				// streams the simulation to the slave without archive files
+				streamSimulation(slave, simulation, filesToSend, resultDirectory);
+			} else {
+				// makes a ZIP archive of the files to send
+				Path sourceCodeArchive = sourceCodeDirectory.resolve(simulationName + ".zip");
+				ArchiveUtility.archive(sourceCodeArchive, filesToSend);
+				
+				printMsgTarget(simulationName, "Sim code archive created.");
+				
+				// requests the simulation to a slave
+				requestSimulation(slave, simulationName, sourceCodeArchive, resultDirectory);
+			}
 			
 			printMsgTarget(simulationName, "Sim has completed.");
+			
+		} catch (Exception e) {
+			throw new Exception ("Error while handling a simulation request: " + e);
+		}
+	}
+	
+	/**
+	 * Analyzes the received result of a simulation and sends the completion notification
+	 * 
+	 * @param simulation				Simulation instance 
+	 */
+	protected void analyzeSimulationResult (XTEAMDistributedSimulation simulation) {
+		String simulationName = simulation.getSimulationPath().getFileName().toString();
+		
+		try {
+			// the result of a cancelled simulation is not worth analyzing
+			if(simulation.isCancelled()) {
+				printMsgTarget(simulationName, "Sim was cancelled; its result is discarded.");
+				return;
+			}
 
 			// analyzes the received simulation result
 			simulation.analyze();
@@ -430,7 +550,7 @@ public class SlaveManager {
 			printMsgTarget(simulationName, "Sim result analysis has completed.");
 			
 		} catch (Exception e) {
-			throw new Exception ("Error while handling a simulation request: " + e);
+			printMsgTarget(simulationName, "Error while analyzing sim result: " + e);
 		} finally {
 			// sends simulation completion notification
 			simulation.sendSimulationCompletionNotification();
@@ -453,7 +573,7 @@ public class SlaveManager {
 		// sends the selected slave the source code archive
 		printMsgTarget(simulationName, "Sending sim code archive begins ...");
 		try {
-			SocketTransferUtility.sendFile(slave.getSocket(), sourceCodeArchive);
+			slave.getConnection().sendFile(sourceCodeArchive);
 		} catch (Exception e) {
 			throw new Exception ("Error while sending simulation archive: " + e);
 		}
@@ -471,7 +591,7 @@ public class SlaveManager {
 		printMsgTarget(simulationName, "Waiting for sim result archive ...");
 		Path simulationResultArchive;
 		try {
-			simulationResultArchive = SocketTransferUtility.receiveFile(slave.getSocket(), resultDirectory);
+			simulationResultArchive = slave.getConnection().receiveFile(resultDirectory);
 		} catch (Exception e) {
 			throw new Exception ("Error while receiving simulation result archive: " + e);
 		}
@@ -484,6 +604,131 @@ public class SlaveManager {
 	}
 
 	
+	/**
+	 * Makes a simulation request to a slave that streams archives: the source code is zipped
+	 * straight into the socket, and the result is unzipped straight from the socket
+	 * 
+	 * @param simulation				Simulation instance
+	 * @param filesToSend				Simulation source code files
+	 * @param resultDirectory			Path to the simulation result directory 
+	 * @throws Exception
+	 */
+	public void streamSimulation (	SlaveInfo					slave,
+									XTEAMDistributedSimulation	simulation,
+									List<Path>					filesToSend,
+									Path						resultDirectory ) throws Exception {
+		String simulationName = simulation.getSimulationPath().getFileName().toString();
+		
+		// creates the simulation result directory
+		try {
+			Files.createDirectories(resultDirectory);
+		} catch (Exception e) {
+			throw new Exception ("Directory " + resultDirectory + " cannot be created");
+		}
+		printMsgTarget(simulationName, "sim result dir created: " + resultDirectory.getFileName().toString());
+		
+		// streams the source code archive to the selected slave
+		printMsgTarget(simulationName, "Streaming sim code archive begins ...");
+		try {
+			if(slave.getConnection().getProtocol() >= SocketTransferUtility.PROTOCOL_MANIFEST) {
+				sendSourceManifest(slave, simulationName, filesToSend);
+			} else {
+				slave.getConnection().sendArchive(simulationName + ".zip", filesToSend);
+			}
+		} catch (Exception e) {
+			throw new Exception ("Error while streaming simulation archive: " + e);
+		}
+		printMsgTarget(simulationName, "Streaming sim code archive completed.");
+		
+		// extracts the result as it arrives
+		printMsgTarget(simulationName, "Waiting for sim result archive stream ...");
+		try {
+			if(slave.getConnection().getProtocol() >= SocketTransferUtility.PROTOCOL_CANCEL) {
+				awaitResult(slave, simulation);
+			}
+			slave.getConnection().receiveMessage("archive name");
+			slave.getConnection().receiveArchive(resultDirectory);
+		} catch (Exception e) {
+			throw new Exception ("Error while receiving simulation result archive stream: " + e);
+		}
+		printMsgTarget(simulationName, "Receiving sim result archive stream completed.");
+	}
+	
+	/**
+	 * Waits for a slave to start sending the result, and tells the slave to stop if the 
+	 * simulation gets cancelled in the meantime. The same thread sends the cancellation and 
+	 * reads the result, so that the connection is never used by two threads at once.<p>
+	 * 
+	 * A slave that sends heartbeats is given up on when none arrives for heartbeatTimeoutSec.
+	 * 
+	 * @param simulation				Simulation instance
+	 * @throws IOException
+	 */
+	protected void awaitResult (SlaveInfo slave, XTEAMDistributedSimulation simulation) throws IOException {
+		FramedConnection	connection		= slave.getConnection();
+		boolean				heartbeats		= connection.getProtocol() >= SocketTransferUtility.PROTOCOL_HEARTBEAT;
+		long				timeoutMs		= TimeUnit.SECONDS.toMillis(heartbeatTimeoutSec);
+		long				waitStart		= System.currentTimeMillis();
+		boolean				cancelSent		= false;
+		
+		while(heartbeats ? !connection.awaitMessage(cancelCheckTimeMs) : !connection.awaitInput(cancelCheckTimeMs)) {
+			if(!cancelSent && simulation.isCancelled()) {
+				connection.sendMessage("cancellation", SocketTransferUtility.cancelMessage);
+				cancelSent = true;
+				printMsgTarget(simulation.getSimulationPath().getFileName().toString(), "Sim cancellation sent to " + slave.getName() + ".");
+			}
+			
+			// a heartbeat counts only when it arrived during this wait
+			if(heartbeats) {
+				long lastHeard = Math.max(waitStart, connection.getLastInputTime());
+				if(System.currentTimeMillis() - lastHeard > timeoutMs) {
+					throw new IOException("No heartbeat from " + slave.getName() + " for " + heartbeatTimeoutSec + " seconds");
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Sends the simulation source code through the slave's {@link SourceCache}: the manifest
+	 * of file hashes goes first, and only the files whose hashes the slave lacks follow
+	 * 
+	 * @param simulationName			Name of the simulation (FLAME timestamp)
+	 * @param filesToSend				Simulation source code files
+	 * @throws Exception
+	 */
+	protected void sendSourceManifest (	SlaveInfo	slave,
+										String		simulationName,
+										List<Path>	filesToSend ) throws Exception {
+		FramedConnection connection = slave.getConnection();
+		
+		// hashes the files
+		Map<String, String> manifest 	= new LinkedHashMap<>();
+		Map<String, Path>	blobs		= new HashMap<>();
+		for(Path file : filesToSend) {
+			String hash = FileUtility.hashFile(file);
+			manifest.put(file.getFileName().toString(), hash);
+			blobs.put(hash, file);
+		}
+		
+		// sends the manifest and receives the hashes the slave lacks
+		connection.sendMessage("archive name", simulationName + ".zip");
+		connection.sendMessage("manifest", SourceCache.encodeManifest(manifest));
+		List<String> missing = SourceCache.decodeHashes(connection.receiveMessage("missing hashes"));
+		
+		// streams only the missing files, named by their hashes
+		Map<String, Path> missingBlobs = new LinkedHashMap<>();
+		for(String hash : missing) {
+			Path file = blobs.get(hash);
+			if(file == null) {
+				throw new Exception ("Slave asked for an unknown hash " + hash);
+			}
+			missingBlobs.put(hash, file);
+		}
+		connection.sendArchive(simulationName + "_blobs.zip", missingBlobs);
+		
+		printMsgTarget(simulationName, missingBlobs.size() + " of " + manifest.size() + " sim code files sent.");
+	}
+	
 ///////////////////////////////////////////////
 // Utility Member Methods
 ///////////////////////////////////////////////
@@ -0,0 +1,386 @@
+package flame.detectors.slave;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import flame.detectors.xteam.distributed.XTEAMDistributedSimulation;
+
+/**
+ * SlaveScheduler assigns the compilation requests to the slave machines connected to
+ * {@link SlaveManager}.<p>
+ *
+ * Every machine (node) has a queue of its own. A new request is queued at the node with the
+ * least expected completion time, which is estimated from<br>
+ * 	(1) the number of requests queued at and running on the node per slot,<br>
+ * 	(2) the recent duration of the requests on the node, and<br>
+ * 	(3) cache affinity: the node that ran the previous request of the same architect still has
+ * 		most of its source files and object files cached, and is expected to finish sooner.<p>
+ *
+ * An idle slot takes the next request from the queue of its own node, and steals one from the
+ * longest queue of the other nodes when its own is empty. The requests are taken from the head
+ * of a queue, or from the tail when the later requests are to be served first.<p>
+ *
+ * In the coalescing mode, a new request of an architect supersedes the queued requests of the
+ * same architect, since only the result of the newest design matters. The running requests of
+ * the architect can be marked as cancelled as well.
+ *
+ * @author 					<a href="mailto:jaeyounb@usc.edu">Jae young Bang</a>
+ * @version					2015.01
+ */
+public class SlaveScheduler {
+
+///////////////////////////////////////////////
+// Member Variables
+///////////////////////////////////////////////
+
+	/**
+	 * Weight of the latest duration in the moving average of a node
+	 */
+	protected static final double	DURATION_WEIGHT		= 0.3;
+
+	/**
+	 * Factor applied to the expected duration on the node that has the architect's previous build
+	 */
+	protected static final double	AFFINITY_FACTOR		= 0.5;
+
+	/**
+	 * Node name-state mapping
+	 */
+	protected final Map<String, Node>	nodes			= new LinkedHashMap<>();
+
+	/**
+	 * Architect-node mapping of the previous requests
+	 */
+	protected final Map<String, String>	affinity		= new HashMap<>();
+
+	/**
+	 * Requests queued while no slave is connected
+	 */
+	protected final LinkedList<XTEAMDistributedSimulation>
+										unassigned		= new LinkedList<>();
+
+	/**
+	 * Switch to run later simulation requests first
+	 */
+	protected final boolean				reverse;
+
+	/**
+	 * Switch to let a new request supersede the queued requests of the same architect
+	 */
+	protected final boolean				coalesce;
+
+	/**
+	 * Switch to cancel the running requests of the architect as well when coalescing
+	 */
+	protected final boolean				cancelRunning;
+
+	/**
+	 * Slave-request mapping of the running requests
+	 */
+	protected final Map<SlaveInfo, XTEAMDistributedSimulation>
+										running			= new HashMap<>();
+
+	/**
+	 * State of a slave machine
+	 */
+	protected static class Node {
+		protected final String								name;
+		protected final LinkedList<XTEAMDistributedSimulation>	queue		= new LinkedList<>();
+		protected int										slots		= 0;
+		protected int										busy		= 0;
+		protected double									duration	= -1;
+
+		protected Node (String name) {
+			this.name = name;
+		}
+	}
+
+///////////////////////////////////////////////
+// Constructors
+///////////////////////////////////////////////
+
+	/**
+	 * Default constructor
+	 *
+	 * @param reverse				Switch to run later simulation requests first
+	 * @param coalesce				Switch to let a new request supersede the queued requests of the same architect
+	 * @param cancelRunning			Switch to cancel the running requests of the architect as well
+	 */
+	public SlaveScheduler (boolean reverse, boolean coalesce, boolean cancelRunning) {
+		this.reverse		= reverse;
+		this.coalesce		= coalesce;
+		this.cancelRunning	= coalesce && cancelRunning;
+	}
+
+///////////////////////////////////////////////
+// Member Methods
+///////////////////////////////////////////////
+
+	/**
+	 * Adds a slot of a slave machine
+	 *
+	 * @param slave					The slave that connected
+	 */
+	public synchronized void addSlave (SlaveInfo slave) {
+		getNode(slave.getNodeName()).slots++;
+		notifyAll();
+	}
+
+	/**
+	 * Removes a slot of a slave machine; its queued requests move to the other nodes
+	 *
+	 * @param slave					The slave that is gone
+	 */
+	public synchronized void removeSlave (SlaveInfo slave) {
+		Node node = getNode(slave.getNodeName());
+		node.slots = Math.max(0, node.slots - 1);
+
+		if(node.slots == 0) {
+			LinkedList<XTEAMDistributedSimulation> orphans = new LinkedList<>(node.queue);
+			node.queue.clear();
+			for(XTEAMDistributedSimulation simulation : orphans) {
+				assign(simulation);
+			}
+		}
+	}
+
+	/**
+	 * Queues a compilation request at the node with the least expected completion time
+	 *
+	 * @param simulation			The compilation request
+	 * @return						The queued requests it superseded; they will never be taken
+	 */
+	public synchronized List<XTEAMDistributedSimulation> submit (XTEAMDistributedSimulation simulation) {
+		List<XTEAMDistributedSimulation> superseded = new ArrayList<>();
+		
+		if(coalesce) {
+			String username = simulation.getUsername();
+			
+			// removes the queued requests of the architect
+			removeRequests(unassigned, username, superseded);
+			for(Node node : nodes.values()) {
+				removeRequests(node.queue, username, superseded);
+			}
+			
+			// marks the running requests of the architect; their slaves are told to stop
+			if(cancelRunning) {
+				for(XTEAMDistributedSimulation runningSimulation : running.values()) {
+					if(username.equals(runningSimulation.getUsername())) {
+						runningSimulation.cancel();
+					}
+				}
+			}
+		}
+		
+		assign(simulation);
+		notifyAll();
+		
+		return superseded;
+	}
+
+	/**
+	 * Queues a compilation request again after its slave failed, unless a newer request of the
+	 * same architect has superseded it in the meantime
+	 *
+	 * @param simulation			The compilation request
+	 * @return						Whether the request has been queued
+	 */
+	public synchronized boolean resubmit (XTEAMDistributedSimulation simulation) {
+		if(coalesce) {
+			String username = simulation.getUsername();
+			if(containsRequest(unassigned, username)) {
+				return false;
+			}
+			for(Node node : nodes.values()) {
+				if(containsRequest(node.queue, username)) {
+					return false;
+				}
+			}
+		}
+		
+		assign(simulation);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Takes the next compilation request for an idle slot: from its own node, from the requests
+	 * not yet assigned, or stolen from the longest queue
+	 *
+	 * @param slave					The idle slave
+	 * @param timeoutMillis			Time to wait for a request
+	 * @return						The compilation request, or null after the timeout
+	 * @throws InterruptedException
+	 */
+	public synchronized XTEAMDistributedSimulation take (SlaveInfo slave, long timeoutMillis) throws InterruptedException {
+		Node	own			= getNode(slave.getNodeName());
+		long	deadline	= System.currentTimeMillis() + timeoutMillis;
+
+		while (true) {
+			XTEAMDistributedSimulation simulation = poll(own.queue);
+			if(simulation == null) {
+				simulation = poll(unassigned);
+			}
+			if(simulation == null) {
+				simulation = steal(own);
+			}
+			if(simulation != null) {
+				own.busy++;
+				running.put(slave, simulation);
+				return simulation;
+			}
+
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0) {
+				return null;
+			}
+			wait(remaining);
+		}
+	}
+
+	/**
+	 * Records a finished compilation request
+	 *
+	 * @param slave					The slave that ran the request
+	 * @param simulation			The compilation request
+	 * @param durationMillis		Time the request took
+	 * @param succeeded				Whether the slave returned a result
+	 */
+	public synchronized void complete (SlaveInfo slave, XTEAMDistributedSimulation simulation, long durationMillis, boolean succeeded) {
+		Node node = getNode(slave.getNodeName());
+		node.busy = Math.max(0, node.busy - 1);
+		running.remove(slave);
+
+		// a failed or cancelled request says nothing about how fast the node is
+		if(succeeded && !simulation.isCancelled()) {
+			if(node.duration < 0) {
+				node.duration = durationMillis;
+			} else {
+				node.duration = DURATION_WEIGHT * durationMillis + (1 - DURATION_WEIGHT) * node.duration;
+			}
+			affinity.put(simulation.getUsername(), node.name);
+		}
+	}
+
+	/**
+	 * Returns the number of requests waiting to be taken
+	 */
+	public synchronized int getQueuedCount () {
+		int count = unassigned.size();
+		for(Node node : nodes.values()) {
+			count += node.queue.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Queues a request at the node with the least expected completion time
+	 */
+	protected void assign (XTEAMDistributedSimulation simulation) {
+		String	preferred	= affinity.get(simulation.getUsername());
+		double	fallback	= getAverageDuration();
+		Node	best		= null;
+		double	bestTime	= Double.MAX_VALUE;
+
+		for(Node node : nodes.values()) {
+			if(node.slots == 0) {
+				continue;
+			}
+
+			// waits for the work ahead, spread over the slots, then runs the request
+			double duration = node.duration < 0 ? fallback : node.duration;
+			double expected = (double) (node.queue.size() + node.busy) / node.slots * duration;
+			expected += node.name.equals(preferred) ? duration * AFFINITY_FACTOR : duration;
+
+			if(expected < bestTime) {
+				best		= node;
+				bestTime	= expected;
+			}
+		}
+
+		if(best == null) {
+			unassigned.add(simulation);
+		} else {
+			best.queue.add(simulation);
+		}
+	}
+
+	/**
+	 * Moves the requests of an architect from a queue to a list
+	 */
+	protected static void removeRequests (	LinkedList<XTEAMDistributedSimulation> 	queue,
+											String 									username,
+											List<XTEAMDistributedSimulation> 		removed) {
+		for(Iterator<XTEAMDistributedSimulation> it = queue.iterator(); it.hasNext(); ) {
+			XTEAMDistributedSimulation simulation = it.next();
+			if(username.equals(simulation.getUsername())) {
+				it.remove();
+				removed.add(simulation);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether a queue has a request of an architect
+	 */
+	protected static boolean containsRequest (LinkedList<XTEAMDistributedSimulation> queue, String username) {
+		for(XTEAMDistributedSimulation simulation : queue) {
+			if(username.equals(simulation.getUsername())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Steals a request from the longest queue of the other nodes
+	 */
+	protected XTEAMDistributedSimulation steal (Node thief) {
+		Node victim = null;
+		for(Node node : nodes.values()) {
+			if(node != thief && !node.queue.isEmpty() && (victim == null || node.queue.size() > victim.queue.size())) {
+				victim = node;
+			}
+		}
+		return victim == null ? null : poll(victim.queue);
+	}
+
+	/**
+	 * Takes a request from the head of a queue, or from the tail in the reverse order
+	 */
+	protected XTEAMDistributedSimulation poll (LinkedList<XTEAMDistributedSimulation> queue) {
+		return reverse ? queue.pollLast() : queue.pollFirst();
+	}
+
+	/**
+	 * Returns the average of the known node durations; 1 when none is known yet
+	 */
+	protected double getAverageDuration () {
+		double	sum		= 0;
+		int		count	= 0;
+		for(Node node : nodes.values()) {
+			if(node.duration >= 0) {
+				sum += node.duration;
+				count++;
+			}
+		}
+		return count == 0 ? 1 : sum / count;
+	}
+
+	/**
+	 * Returns the state of a node, creating it on the first use
+	 */
+	protected Node getNode (String name) {
+		Node node = nodes.get(name);
+		if(node == null) {
+			node = new Node(name);
+			nodes.put(name, node);
+		}
+		return node;
+	}
+}
@@ -0,0 +1,368 @@
+package flame.detectors.slave;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+
+import flame.FileUtility;
+
+/**
+ * SourceCache is a content-addressed store of simulation source files on a FLAME Slave.<p>
+ *
+ * Before a simulation is sent, {@link SlaveManager} sends a manifest of (SHA-1 hash, filename)
+ * lines. The slave replies with the hashes its cache lacks, receives only those files named by
+ * their hashes, and materializes the simulation source code from the cache. Since most generated
+ * files do not change between two design events, most of them never cross the network again.<p>
+ *
+ * The cache keeps up to a number of blobs, and forgets the least recently used ones beyond that.
+ *
+ * @author 					<a href="mailto:jaeyounb@usc.edu">Jae young Bang</a>
+ * @version					2015.01
+ */
+public class SourceCache {
+
+///////////////////////////////////////////////
+// Member Variables
+///////////////////////////////////////////////
+
+	/**
+	 * Default number of blobs the cache keeps
+	 */
+	public static final int			DEFAULT_MAX_BLOBS	= 20000;
+
+	/**
+	 * Directory in which the blobs are stored, each named by its hash
+	 */
+	protected Path					cacheDirectory;
+
+	/**
+	 * Directory in which received blobs wait to be verified
+	 */
+	protected Path					stagingDirectory;
+
+	/**
+	 * Number of blobs the cache keeps
+	 */
+	protected int					maxBlobs;
+
+	/**
+	 * Number of blobs in the cache
+	 */
+	protected int					blobCount;
+
+	/**
+	 * Binary semaphore for the blobs
+	 */
+	protected final Semaphore		mSemaphore			= new Semaphore(1, true);
+
+///////////////////////////////////////////////
+// Constructors
+///////////////////////////////////////////////
+
+	/**
+	 * Default constructor
+	 *
+	 * @param cacheDirectory		Directory in which the blobs are stored
+	 * @param maxBlobs				Number of blobs the cache keeps
+	 * @throws Exception
+	 */
+	public SourceCache (Path cacheDirectory, int maxBlobs) throws Exception {
+		this.cacheDirectory		= cacheDirectory;
+		this.stagingDirectory	= cacheDirectory.resolve("staging");
+		this.maxBlobs			= Math.max(1, maxBlobs);
+
+		// creates the directories; leftovers of an earlier run are not trusted
+		try {
+			Files.createDirectories(stagingDirectory);
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(stagingDirectory)) {
+				for(Path dir : ds) {
+					deleteDirectory(dir);
+				}
+			}
+		} catch (IOException ioe) {
+			throw new Exception ("Source cache directory " + cacheDirectory + " cannot be prepared: " + ioe);
+		}
+
+		blobCount = listBlobs().size();
+	}
+
+///////////////////////////////////////////////
+// Member Methods
+///////////////////////////////////////////////
+
+	/**
+	 * Finds the hashes that the cache lacks. The blobs found are marked as recently used, so
+	 * that storing the missing ones does not prune them before they are materialized.
+	 *
+	 * @param hashes				Hashes of a manifest
+	 * @return						Hashes not in the cache, without duplicates
+	 * @throws IOException
+	 */
+	public List<String> findMissing (Collection<String> hashes) throws IOException {
+		FileTime 	now 	= FileTime.fromMillis(System.currentTimeMillis());
+		Set<String> missing = new LinkedHashSet<>();
+
+		getLock();
+		try {
+			for(String hash : hashes) {
+				Path blob = cacheDirectory.resolve(hash);
+				if(Files.exists(blob)) {
+					Files.setLastModifiedTime(blob, now);
+				} else {
+					missing.add(hash);
+				}
+			}
+		} finally {
+			releaseLock();
+		}
+
+		return new ArrayList<>(missing);
+	}
+
+	/**
+	 * Creates a directory for a batch of received blobs
+	 *
+	 * @return						Path to the staging directory
+	 * @throws IOException
+	 */
+	public Path createStagingDirectory () throws IOException {
+		return Files.createDirectories(stagingDirectory.resolve(UUID.randomUUID().toString()));
+	}
+
+	/**
+	 * Verifies the received blobs against their names and moves them into the cache
+	 *
+	 * @param staging				Staging directory that holds the received blobs
+	 * @throws IOException			A blob does not match its hash
+	 */
+	public void store (Path staging) throws IOException {
+		try {
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(staging)) {
+				for(Path blob : ds) {
+					String hash = blob.getFileName().toString();
+					if(!FileUtility.hashFile(blob).equals(hash)) {
+						throw new IOException ("Received blob does not match its hash " + hash);
+					}
+
+					getLock();
+					try {
+						boolean isNew = !Files.exists(cacheDirectory.resolve(hash));
+						Files.move(blob, cacheDirectory.resolve(hash), StandardCopyOption.REPLACE_EXISTING);
+						if(isNew) {
+							blobCount++;
+						}
+					} finally {
+						releaseLock();
+					}
+				}
+			}
+		} finally {
+			deleteDirectory(staging);
+		}
+
+		prune();
+	}
+
+	/**
+	 * Materializes the files of a manifest from the cache
+	 *
+	 * @param manifest				Filename-hash mapping
+	 * @param targetDirectory		Directory in which the files will be created
+	 * @throws IOException			A blob is missing from the cache
+	 */
+	public void materialize (Map<String, String> manifest, Path targetDirectory) throws IOException {
+		getLock();
+		try {
+			for(Map.Entry<String, String> entry : manifest.entrySet()) {
+				Path blob = cacheDirectory.resolve(entry.getValue());
+				Path file = targetDirectory.resolve(entry.getKey()).normalize();
+				if(!file.startsWith(targetDirectory.normalize())) {
+					throw new IOException ("Manifest entry outside the target directory: " + entry.getKey());
+				}
+
+				// copies rather than links so that the build can never alter a blob
+				Files.copy(blob, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			releaseLock();
+		}
+	}
+
+	/**
+	 * Forgets the least recently used blobs beyond the maximum number
+	 */
+	protected void prune () throws IOException {
+		getLock();
+		try {
+			if(blobCount > maxBlobs) {
+				blobCount = pruneLeastRecentlyUsed(listBlobs(), maxBlobs);
+			}
+		} finally {
+			releaseLock();
+		}
+	}
+
+	/**
+	 * Deletes the least recently modified files down to 90% of a maximum number, to leave
+	 * room before the next prune
+	 *
+	 * @param files					Files of a cache
+	 * @param maxFiles				Number of files the cache keeps
+	 * @return						Number of files left
+	 * @throws IOException
+	 */
+	public static int pruneLeastRecentlyUsed (List<Path> files, int maxFiles) throws IOException {
+		// sorts the files from the least recently used one
+		final Map<Path, Long> lastUsed = new HashMap<>();
+		for(Path file : files) {
+			lastUsed.put(file, Files.getLastModifiedTime(file).toMillis());
+		}
+		List<Path> sorted = new ArrayList<>(files);
+		Collections.sort(sorted, new Comparator<Path>() {
+			@Override
+			public int compare(Path a, Path b) {
+				return Long.compare(lastUsed.get(a), lastUsed.get(b));
+			}
+		});
+
+		int toDelete = Math.max(0, sorted.size() - maxFiles * 9 / 10);
+		for(int i = 0; i < toDelete; i++) {
+			Files.deleteIfExists(sorted.get(i));
+		}
+		return sorted.size() - toDelete;
+	}
+
+	/**
+	 * Lists the blobs in the cache
+	 */
+	protected List<Path> listBlobs () throws IOException {
+		List<Path> blobs = new ArrayList<>();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(cacheDirectory)) {
+			for(Path blob : ds) {
+				if(Files.isRegularFile(blob)) {
+					blobs.add(blob);
+				}
+			}
+		}
+		return blobs;
+	}
+
+	/**
+	 * Deletes a staging directory and the blobs in it
+	 */
+	protected static void deleteDirectory (Path directory) throws IOException {
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory)) {
+			for(Path file : ds) {
+				Files.deleteIfExists(file);
+			}
+		}
+		Files.deleteIfExists(directory);
+	}
+
+	/**
+	 * Locks the blobs
+	 */
+	protected void getLock() {
+		try {
+			mSemaphore.acquire();	// get the semaphore
+		} catch (InterruptedException ie) {
+			System.out.println("Thread interrupted while waiting for the semaphore");
+		}
+	}
+
+	/**
+	 * Releases the blobs
+	 */
+	protected void releaseLock() {
+		mSemaphore.release();
+	}
+
+///////////////////////////////////////////////
+// Manifest Encoding
+///////////////////////////////////////////////
+
+	/**
+	 * Encodes a manifest into "hash filename" lines
+	 *
+	 * @param manifest				Filename-hash mapping
+	 * @return						Encoded manifest
+	 */
+	public static String encodeManifest (Map<String, String> manifest) {
+		StringBuilder sb = new StringBuilder();
+		for(Map.Entry<String, String> entry : manifest.entrySet()) {
+			sb.append(entry.getValue()).append(' ').append(entry.getKey()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Decodes "hash filename" lines into a manifest
+	 *
+	 * @param encoded				Encoded manifest
+	 * @return						Filename-hash mapping
+	 * @throws IOException			A line is malformed
+	 */
+	public static Map<String, String> decodeManifest (String encoded) throws IOException {
+		Map<String, String> manifest = new LinkedHashMap<>();
+		for(String line : encoded.split("\n")) {
+			if(line.isEmpty()) {
+				continue;
+			}
+			int index = line.indexOf(' ');
+			if(index <= 0 || index == line.length() - 1) {
+				throw new IOException ("Malformed manifest line \"" + line + "\"");
+			}
+			String hash = line.substring(0, index);
+			if(!hash.matches("[0-9a-f]{40}")) {
+				throw new IOException ("Malformed hash in manifest line \"" + line + "\"");
+			}
+			manifest.put(line.substring(index + 1), hash);
+		}
+		return manifest;
+	}
+
+	/**
+	 * Encodes a list of hashes, one per line
+	 *
+	 * @param hashes				Hashes
+	 * @return						Encoded hashes
+	 */
+	public static String encodeHashes (List<String> hashes) {
+		StringBuilder sb = new StringBuilder();
+		for(String hash : hashes) {
+			sb.append(hash).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Decodes a list of hashes, one per line
+	 *
+	 * @param encoded				Encoded hashes
+	 * @return						Hashes
+	 */
+	public static List<String> decodeHashes (String encoded) {
+		List<String> hashes = new ArrayList<>();
+		for(String line : encoded.split("\n")) {
+			if(!line.isEmpty()) {
+				hashes.add(line);
+			}
+		}
+		return hashes;
+	}
+}
@@ -0,0 +1,127 @@
+package flame.detectors.slave.xteam;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * CpuScheduler runs the jobs of the execution slots of an {@link XTEAMSlave} machine through a
+ * pipeline of two stages, compilation and execution, and shares the cores between them.<p>
+ *
+ * Each stage admits a bounded number of jobs at once; the other jobs wait for the stage in the
+ * order they arrived. A simulation execution is single-threaded, so the execution stage admits
+ * one job per core. The compilation stage admits a few jobs, and a compilation runs "make" with
+ * the cores the executions leave idle, shared among the running compilations; it gets the whole
+ * machine when no simulation is executing, and a single core when every core is executing.
+ * A job therefore compiles while the jobs ahead of it execute, as long as the slave has more
+ * slots than cores.
+ *
+ * @author 					<a href="mailto:jaeyounb@usc.edu">Jae young Bang</a>
+ * @version					2015.01
+ */
+public class CpuScheduler {
+
+	/**
+	 * Number of cores this machine has
+	 */
+	protected final int			cores;
+
+	/**
+	 * Number of jobs the compilation stage admits at once
+	 */
+	protected final int			compileWorkers;
+
+	/**
+	 * Permits of the compilation stage
+	 */
+	protected final Semaphore	compileStage;
+
+	/**
+	 * Permits of the execution stage, one per core
+	 */
+	protected final Semaphore	executeStage;
+
+	/**
+	 * Number of jobs in the compilation stage
+	 */
+	protected int				compiling		= 0;
+
+	/**
+	 * Number of jobs in the execution stage
+	 */
+	protected int				executing		= 0;
+
+	/**
+	 * Default constructor
+	 *
+	 * @param cores				Number of cores this machine has
+	 * @param compileWorkers	Number of jobs the compilation stage admits at once; 0 or less for the default
+	 */
+	public CpuScheduler (int cores, int compileWorkers) {
+		this.cores			= Math.max(1, cores);
+		this.compileWorkers	= compileWorkers > 0 ? compileWorkers : getDefaultCompileWorkers(this.cores);
+		compileStage		= new Semaphore(this.compileWorkers, true);
+		executeStage		= new Semaphore(this.cores, true);
+	}
+
+	/**
+	 * Returns the default number of jobs the compilation stage admits: half the cores, since
+	 * every compilation runs "make" with several jobs
+	 *
+	 * @param cores				Number of cores
+	 */
+	public static int getDefaultCompileWorkers (int cores) {
+		return Math.max(1, cores / 2);
+	}
+
+	/**
+	 * Returns the number of slots that keep both stages busy
+	 */
+	public int getPipelineDepth () {
+		return cores + compileWorkers;
+	}
+
+	/**
+	 * Waits for the compilation stage
+	 *
+	 * @return					Number of cores the compilation may use
+	 * @throws InterruptedException
+	 */
+	public int acquireCompilation () throws InterruptedException {
+		compileStage.acquire();
+		synchronized (this) {
+			compiling++;
+			return Math.max(1, (cores - executing) / compiling);
+		}
+	}
+
+	/**
+	 * Leaves the compilation stage
+	 */
+	public void releaseCompilation () {
+		synchronized (this) {
+			compiling--;
+		}
+		compileStage.release();
+	}
+
+	/**
+	 * Waits for a core in the execution stage
+	 *
+	 * @throws InterruptedException
+	 */
+	public void acquireExecution () throws InterruptedException {
+		executeStage.acquire();
+		synchronized (this) {
+			executing++;
+		}
+	}
+
+	/**
+	 * Leaves the execution stage
+	 */
+	public void releaseExecution () {
+		synchronized (this) {
+			executing--;
+		}
+		executeStage.release();
+	}
+}
@@ -0,0 +1,301 @@
+package flame.detectors.slave.xteam;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import flame.FileUtility;
+
+/**
+ * LibraryCache is a persistent cache of the scaffold project with the Adevs and Newran libraries
+ * already compiled, so that a restarted or newly added {@link XTEAMSlave} does not compile the
+ * libraries again.<p>
+ *
+ * A built scaffold is keyed on the scaffold tree (the path, size, and modification time of every
+ * file) and the toolchain (the make program and the versions "make" and "g++" report), so that
+ * a changed scaffold or an upgraded compiler gets a build of its own. A slave restores a cached
+ * build into its simulation directory with hard links, which falls back to copying when the
+ * file system cannot link.<p>
+ *
+ * The cache keeps up to a number of builds, and forgets the least recently used ones beyond that.
+ *
+ * @author 					<a href="mailto:jaeyounb@usc.edu">Jae young Bang</a>
+ * @version					2015.01
+ */
+public class LibraryCache {
+
+///////////////////////////////////////////////
+// Member Variables
+///////////////////////////////////////////////
+
+	/**
+	 * Default number of builds the cache keeps
+	 */
+	public static final int			DEFAULT_MAX_VERSIONS	= 3;
+
+	/**
+	 * Layout version of the cached builds; changing it invalidates all of them
+	 */
+	protected static final String	LAYOUT_VERSION			= "1";
+
+	/**
+	 * File that marks a build as complete; it is written last, and dated when the build is used
+	 */
+	protected static final String	completeMarker			= ".complete";
+
+	/**
+	 * Directory in which the builds are stored, each named by its key
+	 */
+	protected final Path			cacheDirectory;
+
+	/**
+	 * Number of builds the cache keeps
+	 */
+	protected final int				maxVersions;
+
+///////////////////////////////////////////////
+// Constructors
+///////////////////////////////////////////////
+
+	/**
+	 * Default constructor
+	 *
+	 * @param cacheDirectory		Directory in which the builds are stored
+	 * @param maxVersions			Number of builds the cache keeps
+	 * @throws IOException
+	 */
+	public LibraryCache (Path cacheDirectory, int maxVersions) throws IOException {
+		this.cacheDirectory	= cacheDirectory;
+		this.maxVersions	= Math.max(1, maxVersions);
+
+		Files.createDirectories(cacheDirectory);
+	}
+
+///////////////////////////////////////////////
+// Member Methods
+///////////////////////////////////////////////
+
+	/**
+	 * Computes the key of the build of a scaffold project with a toolchain
+	 *
+	 * @param scaffoldDirectory		The scaffold project
+	 * @param makePath				Path to the make program
+	 * @return						The key in lowercase hexadecimal
+	 * @throws IOException
+	 */
+	public static String computeKey (final Path scaffoldDirectory, Path makePath) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append(LAYOUT_VERSION).append('\n');
+
+		// the toolchain
+		sb.append(makePath.toAbsolutePath()).append('\n');
+		if(Files.exists(makePath)) {
+			sb.append(Files.size(makePath)).append(' ').append(Files.getLastModifiedTime(makePath).toMillis()).append('\n');
+		}
+		sb.append(readVersion(makePath.toString(), "--version"));
+		sb.append(readVersion("g++", "--version"));
+
+		// the scaffold tree
+		final TreeSet<String> scaffoldFiles = new TreeSet<>();
+		Files.walkFileTree(scaffoldDirectory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				scaffoldFiles.add(scaffoldDirectory.relativize(file) + " " + attrs.size() + " " + attrs.lastModifiedTime().toMillis());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		for(String entry : scaffoldFiles) {
+			sb.append(entry).append('\n');
+		}
+
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			return FileUtility.toHex(digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IOException ("SHA-1 is not available: " + nsae);
+		}
+	}
+
+	/**
+	 * Restores a cached build into a directory
+	 *
+	 * @param key					Key of the build
+	 * @param targetDirectory		Directory to restore the build into
+	 * @return						Whether the cache had the build
+	 * @throws IOException			The build was found but could not be restored
+	 */
+	public boolean restore (String key, final Path targetDirectory) throws IOException {
+		final Path build = cacheDirectory.resolve(key);
+		if(!Files.exists(build.resolve(completeMarker))) {
+			return false;
+		}
+
+		Files.walkFileTree(build, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Files.createDirectories(targetDirectory.resolve(build.relativize(dir).toString()));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if(file.getParent().equals(build) && file.getFileName().toString().equals(completeMarker)) {
+					return FileVisitResult.CONTINUE;
+				}
+
+				// links the file, so that the restore takes no time; copies it if links are not supported
+				Path target = targetDirectory.resolve(build.relativize(file).toString());
+				try {
+					Files.createLink(target, file);
+				} catch (UnsupportedOperationException | IOException e) {
+					Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				if(exc != null) {
+					throw exc;
+				}
+				Files.setLastModifiedTime(targetDirectory.resolve(build.relativize(dir).toString()), Files.getLastModifiedTime(dir));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		// dates the build as recently used
+		Files.setLastModifiedTime(build.resolve(completeMarker), FileTime.fromMillis(System.currentTimeMillis()));
+		return true;
+	}
+
+	/**
+	 * Stores a build into the cache; the build appears at once, so that another slave on the
+	 * same machine never sees it half-copied
+	 *
+	 * @param key					Key of the build
+	 * @param sourceDirectory		Directory that has the build
+	 * @throws IOException
+	 */
+	public void store (String key, final Path sourceDirectory) throws IOException {
+		Path build		= cacheDirectory.resolve(key);
+		Path staging	= cacheDirectory.resolve(key + ".tmp-" + UUID.randomUUID());
+
+		copyTree(sourceDirectory, staging);
+		Files.write(staging.resolve(completeMarker), new byte[0]);
+
+		try {
+			Files.move(staging, build, StandardCopyOption.ATOMIC_MOVE);
+		} catch (FileAlreadyExistsException faee) {
+			// another slave stored the same build first
+			FileUtility.deleteDirectory(staging);
+		} catch (IOException ioe) {
+			// a directory that is not empty cannot be replaced either
+			FileUtility.deleteDirectory(staging);
+			if(!Files.exists(build.resolve(completeMarker))) {
+				throw ioe;
+			}
+		}
+
+		prune();
+	}
+
+	/**
+	 * Forgets the least recently used builds beyond the maximum number
+	 */
+	protected void prune () throws IOException {
+		final Map<Path, Long> lastUsed = new HashMap<>();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(cacheDirectory)) {
+			for(Path build : ds) {
+				Path marker = build.resolve(completeMarker);
+				if(Files.exists(marker)) {
+					lastUsed.put(build, Files.getLastModifiedTime(marker).toMillis());
+				}
+			}
+		}
+
+		List<Path> sorted = new ArrayList<>(lastUsed.keySet());
+		Collections.sort(sorted, new Comparator<Path>() {
+			@Override
+			public int compare(Path a, Path b) {
+				return Long.compare(lastUsed.get(a), lastUsed.get(b));
+			}
+		});
+
+		for(int i = 0; i < sorted.size() - maxVersions; i++) {
+			FileUtility.deleteDirectory(sorted.get(i));
+		}
+	}
+
+	/**
+	 * Copies a directory tree with the file attributes
+	 */
+	protected static void copyTree (final Path from, final Path to) throws IOException {
+		Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Files.createDirectories(to.resolve(from.relativize(dir).toString()));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.copy(file, to.resolve(from.relativize(file).toString()), StandardCopyOption.COPY_ATTRIBUTES);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				if(exc != null) {
+					throw exc;
+				}
+				Files.setLastModifiedTime(to.resolve(from.relativize(dir).toString()), Files.getLastModifiedTime(dir));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Reads what a program reports as its version; empty if the program cannot be run
+	 */
+	protected static String readVersion (String... command) {
+		StringBuilder sb = new StringBuilder();
+		try {
+			ProcessBuilder pb = new ProcessBuilder(command);
+			pb.redirectErrorStream(true);
+			Process proc = pb.start();
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(proc.getInputStream(), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					sb.append(line).append('\n');
+				}
+			}
+			proc.waitFor();
+		} catch (IOException ioe) {
+			return "";
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return "";
+		}
+		return sb.toString();
+	}
+}
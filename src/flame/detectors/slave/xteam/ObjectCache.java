@@ -0,0 +1,396 @@
+package flame.detectors.slave.xteam;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import flame.Constants;
+import flame.FileUtility;
+import flame.detectors.slave.SourceCache;
+
+/**
+ * ObjectCache is a persistent cache of the object files compiled on an {@link XTEAMSlave}.<p>
+ *
+ * An object file is keyed on what the compiler sees of its translation unit: the content of
+ * the .cpp file, the content of the local headers it includes (transitively), and a salt that
+ * stands for the compiler flags and the toolchain (the "makefile" template, the make program,
+ * and the scaffold libraries). Before "make" runs, the cached object files of the unchanged
+ * translation units are restored into the object directory and dated after their sources, so
+ * that "make" only compiles the changed components and links from the cached objects.<p>
+ *
+ * The cache keeps up to a number of objects, and forgets the least recently used ones beyond that.
+ *
+ * @author 					<a href="mailto:jaeyounb@usc.edu">Jae young Bang</a>
+ * @version					2015.01
+ */
+public class ObjectCache {
+
+///////////////////////////////////////////////
+// Member Variables
+///////////////////////////////////////////////
+
+	/**
+	 * Default number of object files the cache keeps
+	 */
+	public static final int			DEFAULT_MAX_OBJECTS	= 5000;
+
+	/**
+	 * Pattern of a local include directive
+	 */
+	protected static final Pattern	includePattern		= Pattern.compile("^\\s*#\\s*include\\s*\"([^\"]+)\"");
+
+	/**
+	 * Pattern of the OBJ_DIR assignment in a "makefile" template
+	 */
+	protected static final Pattern	objectDirPattern	= Pattern.compile("^\\s*OBJ_DIR\\s*[:?]?=\\s*(\\S+)\\s*$");
+
+	/**
+	 * Directory in which the object files are stored, each named by its key
+	 */
+	protected Path					cacheDirectory;
+
+	/**
+	 * Object directory relative to the "makefile" directory
+	 */
+	protected Path					objectDirectory;
+
+	/**
+	 * Hash of the compiler flags and the toolchain, mixed into every key
+	 */
+	protected String				salt;
+
+	/**
+	 * Number of object files the cache keeps
+	 */
+	protected int					maxObjects;
+
+	/**
+	 * Number of object files in the cache
+	 */
+	protected int					objectCount;
+
+	/**
+	 * Binary semaphore for the object files
+	 */
+	protected final Semaphore		mSemaphore			= new Semaphore(1, true);
+
+///////////////////////////////////////////////
+// Constructors
+///////////////////////////////////////////////
+
+	/**
+	 * Default constructor
+	 *
+	 * @param cacheDirectory		Directory in which the object files are stored
+	 * @param maxObjects			Number of object files the cache keeps
+	 * @param objectDirectory		Object directory relative to the "makefile" directory
+	 * @param salt					Hash of the compiler flags and the toolchain
+	 * @throws Exception
+	 */
+	public ObjectCache (Path cacheDirectory, int maxObjects, Path objectDirectory, String salt) throws Exception {
+		this.cacheDirectory		= cacheDirectory;
+		this.objectDirectory	= objectDirectory;
+		this.salt				= salt;
+		this.maxObjects			= Math.max(1, maxObjects);
+
+		// creates the directory; half-written objects of an earlier run are not trusted
+		try {
+			Files.createDirectories(cacheDirectory);
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(cacheDirectory, "*.tmp")) {
+				for(Path file : ds) {
+					Files.deleteIfExists(file);
+				}
+			}
+			objectCount = listObjects().size();
+		} catch (IOException ioe) {
+			throw new Exception ("Object cache directory " + cacheDirectory + " cannot be prepared: " + ioe);
+		}
+	}
+
+///////////////////////////////////////////////
+// Member Methods
+///////////////////////////////////////////////
+
+	/**
+	 * Restores the cached object files of the unchanged translation units into the object
+	 * directory, and dates the source files before them so that "make" does not rebuild them
+	 *
+	 * @param sourceCodeDirectory	The directory in which the source code and the "makefile" are
+	 * @return						Object file-key mapping of the translation units to compile
+	 * @throws IOException
+	 */
+	public Map<Path, String> restore (Path sourceCodeDirectory) throws IOException {
+		Map<Path, String>	keys		= computeKeys(sourceCodeDirectory);
+		Map<Path, String>	misses		= new LinkedHashMap<>();
+		Path				objectDir	= sourceCodeDirectory.resolve(objectDirectory);
+		FileTime			now			= FileTime.fromMillis(System.currentTimeMillis());
+
+		// dates the sources an hour back so that every restored object is newer than them
+		FileTime past = FileTime.fromMillis(now.toMillis() - 60 * 60 * 1000);
+		for(Path file : listSources(sourceCodeDirectory)) {
+			Files.setLastModifiedTime(file, past);
+		}
+
+		Files.createDirectories(objectDir);
+		getLock();
+		try {
+			for(Map.Entry<Path, String> entry : keys.entrySet()) {
+				Path cached = cacheDirectory.resolve(entry.getValue() + ".o");
+				Path object = entry.getKey();
+				if(Files.exists(cached)) {
+					Files.copy(cached, object, StandardCopyOption.REPLACE_EXISTING);
+					Files.setLastModifiedTime(object, now);
+					Files.setLastModifiedTime(cached, now);
+				} else {
+					misses.put(object, entry.getValue());
+				}
+			}
+		} finally {
+			releaseLock();
+		}
+
+		return misses;
+	}
+
+	/**
+	 * Stores the object files compiled by "make"
+	 *
+	 * @param compiled				Object file-key mapping returned by {@link #restore(Path)}
+	 * @throws IOException
+	 */
+	public void store (Map<Path, String> compiled) throws IOException {
+		for(Map.Entry<Path, String> entry : compiled.entrySet()) {
+			Path object = entry.getKey();
+			if(!Files.isRegularFile(object)) {
+				continue;
+			}
+
+			// copies next to the cache first so that a crash never leaves a truncated object
+			Path temp = cacheDirectory.resolve(UUID.randomUUID().toString() + ".tmp");
+			Files.copy(object, temp, StandardCopyOption.REPLACE_EXISTING);
+
+			getLock();
+			try {
+				Path cached = cacheDirectory.resolve(entry.getValue() + ".o");
+				boolean isNew = !Files.exists(cached);
+				Files.move(temp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				if(isNew) {
+					objectCount++;
+				}
+			} finally {
+				releaseLock();
+			}
+		}
+
+		prune();
+	}
+
+	/**
+	 * Computes the key of every translation unit in a source code directory
+	 *
+	 * @param sourceCodeDirectory	The directory in which the source code is
+	 * @return						Object file-key mapping
+	 * @throws IOException
+	 */
+	protected Map<Path, String> computeKeys (Path sourceCodeDirectory) throws IOException {
+		// hashes every file once, and finds the local headers each of them includes
+		Map<String, String>			hashes		= new HashMap<>();
+		Map<String, List<String>>	includes	= new HashMap<>();
+		for(Path file : listSources(sourceCodeDirectory)) {
+			String filename = file.getFileName().toString();
+			hashes.put(filename, FileUtility.hashFile(file));
+			includes.put(filename, findIncludes(file));
+		}
+
+		Map<Path, String> keys = new LinkedHashMap<>();
+		for(Path sourceFile : FileUtility.findFilesWithExtension(sourceCodeDirectory, "cpp")) {
+			String filename = sourceFile.getFileName().toString();
+
+			// walks the local include graph of the translation unit
+			TreeMap<String, String>	closure	= new TreeMap<>();
+			Deque<String>			pending	= new ArrayDeque<>();
+			pending.add(filename);
+			while(!pending.isEmpty()) {
+				String name = pending.poll();
+				if(closure.containsKey(name) || !hashes.containsKey(name)) {
+					continue;
+				}
+				closure.put(name, hashes.get(name));
+				pending.addAll(includes.get(name));
+			}
+
+			// mixes the salt, the translation unit, and its headers into the key
+			StringBuilder sb = new StringBuilder(salt).append('\n').append(filename).append('\n');
+			for(Map.Entry<String, String> entry : closure.entrySet()) {
+				sb.append(entry.getValue()).append(' ').append(entry.getKey()).append('\n');
+			}
+
+			Path object = sourceCodeDirectory.resolve(objectDirectory).resolve(FileUtility.getFilenameWithoutExtension(filename) + ".o");
+			keys.put(object, hash(sb.toString()));
+		}
+
+		return keys;
+	}
+
+	/**
+	 * Finds the local headers a file includes
+	 *
+	 * @param file					Source or header file
+	 * @return						Filenames of the included local headers
+	 * @throws IOException
+	 */
+	protected static List<String> findIncludes (Path file) throws IOException {
+		List<String> includes = new ArrayList<>();
+		for(String line : Files.readAllLines(file, Constants.charset)) {
+			Matcher m = includePattern.matcher(line);
+			if(m.find()) {
+				// the generated code is flat; only the filename part can match a local header
+				includes.add(Paths.get(m.group(1)).getFileName().toString());
+			}
+		}
+		return includes;
+	}
+
+	/**
+	 * Lists the source and header files of a source code directory
+	 */
+	protected static List<Path> listSources (Path sourceCodeDirectory) throws IOException {
+		List<Path> files = new ArrayList<>();
+		files.addAll(FileUtility.findFilesWithExtension(sourceCodeDirectory, "h"));
+		files.addAll(FileUtility.findFilesWithExtension(sourceCodeDirectory, "cpp"));
+		return files;
+	}
+
+	/**
+	 * Forgets the least recently used object files beyond the maximum number
+	 */
+	protected void prune () throws IOException {
+		getLock();
+		try {
+			if(objectCount > maxObjects) {
+				objectCount = SourceCache.pruneLeastRecentlyUsed(listObjects(), maxObjects);
+			}
+		} finally {
+			releaseLock();
+		}
+	}
+
+	/**
+	 * Lists the object files in the cache
+	 */
+	protected List<Path> listObjects () throws IOException {
+		List<Path> objects = new ArrayList<>();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(cacheDirectory, "*.o")) {
+			for(Path object : ds) {
+				objects.add(object);
+			}
+		}
+		return objects;
+	}
+
+	/**
+	 * Locks the object files
+	 */
+	protected void getLock() {
+		try {
+			mSemaphore.acquire();	// get the semaphore
+		} catch (InterruptedException ie) {
+			System.out.println("Thread interrupted while waiting for the semaphore");
+		}
+	}
+
+	/**
+	 * Releases the object files
+	 */
+	protected void releaseLock() {
+		mSemaphore.release();
+	}
+
+///////////////////////////////////////////////
+// Salt and Template Helpers
+///////////////////////////////////////////////
+
+	/**
+	 * Finds the object directory that a "makefile" template assigns to OBJ_DIR
+	 *
+	 * @param template				Lines of the "makefile" template
+	 * @return						Object directory, or null if it is not a plain path
+	 */
+	public static Path findObjectDirectory (List<String> template) {
+		for(String line : template) {
+			Matcher m = objectDirPattern.matcher(line);
+			if(m.find() && !m.group(1).contains("$")) {
+				return Paths.get(m.group(1));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Computes the salt of the toolchain: the "makefile" template that holds the compiler
+	 * flags, the make program, and the files of the scaffold project by path, size, and date
+	 *
+	 * @param template				Lines of the "makefile" template
+	 * @param makePath				Path to the GNU Make program
+	 * @param scaffoldDirectory		Directory where the scaffold project is
+	 * @return						Salt
+	 * @throws IOException
+	 */
+	public static String computeSalt (List<String> template, Path makePath, final Path scaffoldDirectory) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		for(String line : template) {
+			sb.append(line).append('\n');
+		}
+		sb.append(makePath.toAbsolutePath()).append('\n');
+
+		// the scaffold headers and libraries are not hashed by content; their metadata is enough
+		final TreeSet<String> scaffoldFiles = new TreeSet<>();
+		Files.walkFileTree(scaffoldDirectory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				scaffoldFiles.add(scaffoldDirectory.relativize(file) + " " + attrs.size() + " " + attrs.lastModifiedTime().toMillis());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		for(String entry : scaffoldFiles) {
+			sb.append(entry).append('\n');
+		}
+
+		return hash(sb.toString());
+	}
+
+	/**
+	 * Hashes a string with SHA-1
+	 */
+	protected static String hash (String s) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			return FileUtility.toHex(digest.digest(s.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IOException ("SHA-1 is not available: " + nsae);
+		}
+	}
+}
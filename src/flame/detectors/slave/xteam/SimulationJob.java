@@ -0,0 +1,56 @@
+package flame.detectors.slave.xteam;
+
+/**
+ * SimulationJob is a simulation request being handled by an {@link XTEAMSlave} slot. It keeps
+ * the process the request is currently waiting for ("make" or the simulation binary), so that
+ * a cancellation from Slave Manager can kill it.
+ *
+ * @author 					<a href="mailto:jaeyounb@usc.edu">Jae young Bang</a>
+ * @version					2015.01
+ */
+public class SimulationJob {
+
+	/**
+	 * The process the job is waiting for; null in between the processes
+	 */
+	protected Process		process		= null;
+
+	/**
+	 * Switch set when Slave Manager cancels the job
+	 */
+	protected boolean		cancelled	= false;
+
+	/**
+	 * Registers the process the job is about to wait for; kills it at once if the job has
+	 * already been cancelled
+	 *
+	 * @param process			The launched process
+	 */
+	public synchronized void attach (Process process) {
+		this.process = process;
+		if(cancelled) {
+			process.destroy();
+		}
+	}
+
+	/**
+	 * Forgets the process the job has finished waiting for
+	 */
+	public synchronized void detach () {
+		process = null;
+	}
+
+	/**
+	 * Cancels the job and kills its current process
+	 */
+	public synchronized void cancel () {
+		cancelled = true;
+		if(process != null) {
+			process.destroy();
+		}
+	}
+
+	public synchronized boolean isCancelled () {
+		return cancelled;
+	}
+}
@@ -8,24 +8,32 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import flame.ArchiveUtility;
 import flame.Constants;
 import flame.FileUtility;
+import flame.FramedConnection;
 import flame.ScreenLogger;
 import flame.SocketTransferUtility;
 import flame.Utility;
 import flame.detectors.slave.SlaveManager;
+import flame.detectors.slave.SourceCache;
 import flame.detectors.xteam.FileCopier;
 
 /**
@@ -100,9 +108,45 @@ public class XTEAMSlave {
 	protected	int				slaveManagerPort;		
 	
 	/**
-	 * The socket to use to connect to Slave Manager
+	 * Number of execution slots; each slot has its own connection to Slave Manager
 	 */
-	protected	Socket			clientSocket;
+	protected	int				slots;
+	
+	/**
+	 * Scheduler that runs the jobs of the slots through the compilation and execution stages
+	 */
+	protected	CpuScheduler	cpuScheduler;
+	
+	/**
+	 * Content-addressed cache of the received simulation source files
+	 */
+	protected	SourceCache		sourceCache;
+	
+	/**
+	 * Cache of the compiled object files; null when the "makefile" template names no plain object directory
+	 */
+	protected	ObjectCache		objectCache;
+	
+	/**
+	 * The amount of time in milliseconds between each check for a cancellation
+	 */
+	protected	final int		cancelCheckTimeMs	= 200;
+	
+	/**
+	 * The amount of time in seconds between each heartbeat sent while running a simulation
+	 */
+	protected	final int		heartbeatTimeSec	= 10;
+	
+	/**
+	 * The amount of time in minutes Slave Manager may stay silent before the slot reconnects;
+	 * Slave Manager sends a Keepalive every two minutes to an idle slot
+	 */
+	protected	final int		managerTimeoutMin	= 10;
+	
+	/**
+	 * The longest wait in seconds between reconnection attempts
+	 */
+	protected	final int		maxReconnectDelaySec	= 60;
 	
 	/**
 	 * Screen Logger instance
@@ -126,6 +170,12 @@ public class XTEAMSlave {
 	 * @param executableFile
 	 * @param errorsFilename
 	 * @param cores
+	 * @param slots						Number of slots; 0 or less for as many as keep both stages busy
+	 * @param compileWorkers				Number of compilations at once; 0 or less for the default
+	 * @param nodeNameFile
+	 * @param sourceCacheDirectory
+	 * @param objectCacheDirectory
+	 * @param libraryCacheDirectory
 	 * @param slaveManagerHostAddress
 	 * @param slaveManagerPort
 	 * @throws Exception
@@ -140,7 +190,12 @@ public class XTEAMSlave {
 						Path		executableFile,
 						Path		errorsFilename,
 						int			cores,
+						int			slots,
+						int			compileWorkers,
 						Path		nodeNameFile,
+						Path		sourceCacheDirectory,
+						Path		objectCacheDirectory,
+						Path		libraryCacheDirectory,
 						String 		slaveManagerHostAddress,
 						int			slaveManagerPort) throws Exception {
 		
@@ -150,6 +205,8 @@ public class XTEAMSlave {
 		this.executableFile				= executableFile;
 		this.errorsFilename				= errorsFilename;
 		this.cores						= cores;
+		this.cpuScheduler				= new CpuScheduler(cores, compileWorkers);
+		this.slots						= slots > 0 ? slots : cpuScheduler.getPipelineDepth();
 		this.nodeNameFile				= nodeNameFile;
 		this.slaveManagerHostAddress	= slaveManagerHostAddress;
 		this.slaveManagerPort			= slaveManagerPort;
@@ -157,11 +214,14 @@ public class XTEAMSlave {
 		// creates the necessary directories
 		createDirectories(receivedArchivesDirectory, simulationsDirectory);
 		
-		// copies the scaffold code to the simulation directory
-		copyScaffold();
+		// opens the source cache, which outlives the runs
+		sourceCache = new SourceCache(sourceCacheDirectory, SourceCache.DEFAULT_MAX_BLOBS);
 		
-		// compiles the Adevs and Newran libraries
-		compileLibraries(adevsMakefileDirectory, newranMakefileDirectory);
+		// opens the object cache, which outlives the runs as well
+		objectCache = createObjectCache(objectCacheDirectory);
+		
+		// prepares the scaffold code with the compiled Adevs and Newran libraries
+		prepareScaffold(libraryCacheDirectory, adevsMakefileDirectory, newranMakefileDirectory);
 	}
 	
 ///////////////////////////////////////////////
@@ -216,6 +276,85 @@ public class XTEAMSlave {
 	}
 	
 	
+	/**
+	 * Creates the object cache keyed on the "makefile" template and the scaffold project
+	 * 
+	 * @param objectCacheDirectory		Directory in which the object files are cached
+	 * @return							The object cache, or null if the template names no plain OBJ_DIR
+	 * @throws Exception
+	 */
+	protected ObjectCache createObjectCache (Path objectCacheDirectory) throws Exception {
+		List<String> template;
+		String		 salt;
+		try {
+			template	= Files.readAllLines(makefileTemplate, Constants.charset);
+			salt		= ObjectCache.computeSalt(template, makePath, scaffoldDirectory);
+		} catch (IOException ioe) {
+			throw new Exception ("Error while preparing the object cache: " + ioe);
+		}
+		
+		// the restored objects have to land where "make" looks for them
+		Path objectDirectory = ObjectCache.findObjectDirectory(template);
+		if(objectDirectory == null) {
+			printMsg("The \"makefile\" template has no plain OBJ_DIR; the object cache is disabled.");
+			return null;
+		}
+		
+		return new ObjectCache(objectCacheDirectory, ObjectCache.DEFAULT_MAX_OBJECTS, objectDirectory, salt);
+	}
+	
+	/**
+	 * Prepares the scaffold project with the compiled libraries in the simulation directory: 
+	 * restores it from the {@link LibraryCache}, or copies and compiles it and stores the build
+	 * 
+	 * @param libraryCacheDirectory		Directory in which the builds are cached
+	 * @param adevsMakefileDirectory	The directory where the Adevs "makefile" file is
+	 * @param newranMakefileDirectory	The directory where the Newran "makefile" file is
+	 * @throws Exception
+	 */
+	protected void prepareScaffold (	Path libraryCacheDirectory, 
+										Path adevsMakefileDirectory, 
+										Path newranMakefileDirectory) throws Exception {
+		LibraryCache	libraryCache;
+		String			key;
+		try {
+			libraryCache	= new LibraryCache(libraryCacheDirectory, LibraryCache.DEFAULT_MAX_VERSIONS);
+			key				= LibraryCache.computeKey(scaffoldDirectory, makePath);
+		} catch (IOException ioe) {
+			throw new Exception ("Error while opening the library cache: " + ioe);
+		}
+		
+		// restores the build if the scaffold and the toolchain have been built before
+		try {
+			if(libraryCache.restore(key, simulationDirectory)) {
+				printMsg("Scaffold code and libraries have been restored from the library cache.");
+				return;
+			}
+		} catch (IOException ioe) {
+			printMsg("Error while restoring from the library cache; compiling the libraries instead: " + ioe);
+			try {
+				FileUtility.deleteDirectory(simulationDirectory);
+				Files.createDirectories(simulationDirectory);
+			} catch (IOException cleanup) {
+				throw new Exception ("Directory " + simulationDirectory + " cannot be cleaned up: " + cleanup);
+			}
+		}
+		
+		// copies the scaffold code to the simulation directory
+		copyScaffold();
+		
+		// compiles the Adevs and Newran libraries
+		compileLibraries(adevsMakefileDirectory, newranMakefileDirectory);
+		
+		// stores the build for the next launch
+		try {
+			libraryCache.store(key, simulationDirectory);
+			printMsg("Scaffold code and libraries have been stored in the library cache.");
+		} catch (IOException ioe) {
+			printMsg("Error while storing into the library cache: " + ioe);
+		}
+	}
+	
 	/**
 	 * Copies the scaffold project into the target directory
 	 */
@@ -249,7 +388,7 @@ public class XTEAMSlave {
 	}
 	
 	/**
-	 * Compiles a library; invokes "make"
+	 * Compiles a library with all the cores; invokes "make"
 	 * 
 	 * @param name						The name of the component being compiled
 	 * @param makefileDirectory			The directory where the "makefile" file is
@@ -257,6 +396,20 @@ public class XTEAMSlave {
 	 * @throws Exception				Unexpected error during the compilation
 	 */
 	protected List<String> compile (String name, Path makefileDirectory) throws Exception {
+		return compile(name, makefileDirectory, cores, new SimulationJob());
+	}
+	
+	/**
+	 * Compiles a library; invokes "make"
+	 * 
+	 * @param name						The name of the component being compiled
+	 * @param makefileDirectory			The directory where the "makefile" file is
+	 * @param compileCores				Number of cores the compilation may use
+	 * @param job						The job that can kill "make" when cancelled
+	 * @return							List of errors; empty when the compilation succeeded
+	 * @throws Exception				Unexpected error during the compilation
+	 */
+	protected List<String> compile (String name, Path makefileDirectory, int compileCores, SimulationJob job) throws Exception {
 		List<String>	errorsList 				= new ArrayList<>();
 		Path			compilationErrorLogFile	= makefileDirectory.resolve("error_log_" + name + "_compilation");
 		
@@ -265,16 +418,18 @@ public class XTEAMSlave {
 								"-C", 
 								makefileDirectory.toString(), 
 								"-j", 
-								Integer.toString((int)(cores * 1.5))};
+								Integer.toString(Math.max(1, (int)(compileCores * 1.5)))};
 		
 		printMsgTarget(name, "Compilation begins ...");
 		
 		try {
 			// executes "make"
 			Process proc = Runtime.getRuntime().exec(runCmd);
+			job.attach(proc);
 			
 			// waits until the compilation ends
 			proc.waitFor();
+			job.detach();
 			
 			// reads the error output of the "make" process
 			try (BufferedReader in = new BufferedReader(new InputStreamReader(proc.getErrorStream()))) {
@@ -334,19 +489,6 @@ public class XTEAMSlave {
 	 * Launches the {@link XTEAMSlave}
 	 */
 	public void launch() throws Exception {
-		// connects to the Slave Manager
-		try {
-			clientSocket = new Socket(slaveManagerHostAddress, slaveManagerPort);
-			clientSocket.setSoTimeout(0);
-			clientSocket.setKeepAlive(true);
-		} catch (UnknownHostException uhe) {
-			throw new Exception ("Error while connecting to Slave Manager: host address unknown: " + uhe);
-		} catch (IOException ioe) {
-			throw new Exception ("Error while connecting to Slave Manager: unknown issue: " + ioe);
-		}
-		
-		printMsg("Connecting to Slave Manager completed.");
-		
 		// reads slave name
 		String slaveName = "";
 		if(Files.exists(nodeNameFile, new LinkOption[]{LinkOption.NOFOLLOW_LINKS})) {
@@ -361,34 +503,209 @@ public class XTEAMSlave {
 			slaveName = UUID.randomUUID().toString();
 		}
 		
-		// sends slave name
-		try {
-			SocketTransferUtility.sendString(clientSocket, slaveName);
-		} catch (Exception e) {
-			throw new Exception ("Error while sending slave name to Slave Manager: " + e);
+		printMsg(slots + " slots share " + cores + " cores; " + cpuScheduler.compileWorkers + " of them can compile at once.");
+		
+		// connects every slot to the Slave Manager, which sees each slot as a slave
+		List<Slot> slotThreads = new ArrayList<>();
+		for(int i = 0; i < slots; i++) {
+			Slot slot = new Slot(i, slots == 1 ? slaveName : slaveName + "/" + i);
+			slot.connect();
+			slotThreads.add(slot);
+		}
+		
+		// runs the slots
+		for(Slot slot : slotThreads) {
+			slot.start();
+		}
+		for(Slot slot : slotThreads) {
+			slot.join();
+		}
+	}
+	
+///////////////////////////////////////////////
+// Execution Slot Thread
+///////////////////////////////////////////////
+	
+	/**
+	 * An execution slot that runs one simulation at a time over its own connection
+	 */
+	public class Slot extends Thread {
+		/**
+		 * Name under which the slot connects to Slave Manager
+		 */
+		protected final	String				slotName;
+		
+		/**
+		 * Directory where the slot receives the simulation source code archive files
+		 */
+		protected final	Path				slotReceivedDirectory;
+		
+		/**
+		 * The connection to Slave Manager that keeps the socket streams
+		 */
+		protected		FramedConnection	connection;
+		
+		/**
+		 * The first file name sent by an older Slave Manager during the framing negotiation
+		 */
+		protected final	String[]			pendingFilename	= new String[1];
+		
+		public Slot (int index, String slotName) throws Exception {
+			this.slotName	= slotName;
+			
+			// the slots do not share the received directory so that their partial files never collide
+			if(slots == 1) {
+				slotReceivedDirectory = receivedDirectory;
+			} else {
+				slotReceivedDirectory = receivedDirectory.resolve("slot" + index);
+				try { 
+					Files.createDirectories(slotReceivedDirectory);
+				} catch (Exception e) {
+					throw new Exception ("Directory " + slotReceivedDirectory + " cannot be created");
+				}
+			}
 		}
 		
-		printMsg("Slave name \"" + slaveName +"\" has been sent.");
+		/**
+		 * Connects to the Slave Manager and negotiates the framing
+		 */
+		public void connect() throws Exception {
+			// connects to the Slave Manager
+			try {
+				// connects through a channel so that the socket can transfer files with zero-copy
+				InetSocketAddress address = new InetSocketAddress(slaveManagerHostAddress, slaveManagerPort);
+				if(address.isUnresolved()) {
+					throw new UnknownHostException (slaveManagerHostAddress);
+				}
+				Socket clientSocket = SocketChannel.open(address).socket();
+				clientSocket.setSoTimeout(0);
+				clientSocket.setKeepAlive(true);
+				connection = new FramedConnection(clientSocket);
+			} catch (UnknownHostException uhe) {
+				throw new Exception ("Error while connecting to Slave Manager: host address unknown: " + uhe);
+			} catch (IOException ioe) {
+				throw new Exception ("Error while connecting to Slave Manager: unknown issue: " + ioe);
+			}
+			
+			printMsg("Connecting to Slave Manager completed.");
+			
+			// sends slave name with the binary framing offer
+			try {
+				connection.sendString(SocketTransferUtility.offerFraming(slotName));
+			} catch (Exception e) {
+				throw new Exception ("Error while sending slave name to Slave Manager: " + e);
+			}
+			
+			printMsg("Slave name \"" + slotName +"\" has been sent.");
+			
+			// waits for the framing acknowledgement; an older Slave Manager sends the first file name instead
+			try {
+				connection.awaitFraming(pendingFilename);
+			} catch (IOException ioe) {
+				throw new Exception ("Error while negotiating framing with Slave Manager: " + ioe);
+			}
+			
+			printMsg("Framing version " + connection.getProtocol() + " is in use.");
+			
+			// a Slave Manager that sends Keepalives is given up on when it stays silent for too long
+			if(connection.getProtocol() >= SocketTransferUtility.PROTOCOL_HEARTBEAT) {
+				connection.getSocket().setSoTimeout((int) TimeUnit.MINUTES.toMillis(managerTimeoutMin));
+			}
+		}
 		
-		while (true) {
+		/**
+		 * Closes the connection and connects again, waiting longer after every failed attempt
+		 * 
+		 * @param delayMs		Milliseconds to wait before the first attempt
+		 */
+		protected void reconnect(long delayMs) throws InterruptedException {
 			try {
-				// receives a simulation source code archive (ZIP)
-				printMsg("Waiting for simulation code archive ...");
-				Path receivedSimulationArchive = SocketTransferUtility.receiveFile(clientSocket, receivedDirectory);
-				printMsg("Received simluation code: " + receivedSimulationArchive.getFileName());
-
-				// handles the simulation request
-				Path simulationResultArchive = handleRequest(receivedSimulationArchive);
-
-				// sends the simulation result archive (ZIP)
-				printMsg("Sending simulation result: " + simulationResultArchive.getFileName());
-				SocketTransferUtility.sendFile(clientSocket, simulationResultArchive);
-				printMsg("Sending " + simulationResultArchive.getFileName() + " has been completed.");
+				connection.close();
 			} catch (IOException ioe) {
-				printMsg("Kill the slave due to an error: " + ioe);
-				System.exit(1);
-			} 
+				printMsg("Error while closing the connection: " + ioe);
+			}
+			
+			while (true) {
+				printMsg("Reconnecting to Slave Manager in " + delayMs / 1000 + " seconds ...");
+				Thread.sleep(delayMs);
+				try {
+					pendingFilename[0] = null;
+					connect();
+					return;
+				} catch (Exception e) {
+					printMsg("Reconnecting failed: " + e.getMessage());
+					delayMs = Math.min(delayMs * 2, TimeUnit.SECONDS.toMillis(maxReconnectDelaySec));
+				}
+			}
 		}
+		
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					// streams the simulation in and out without archive files if Slave Manager can
+					if(connection.getProtocol() >= SocketTransferUtility.PROTOCOL_STREAMING) {
+						handleStreamedRequest(connection);
+						continue;
+					}
+					
+					// receives a simulation source code archive (ZIP)
+					printMsg("Waiting for simulation code archive ...");
+					Path receivedSimulationArchive;
+					if(pendingFilename[0] != null) {
+						receivedSimulationArchive = connection.receiveFile(slotReceivedDirectory, pendingFilename[0]);
+						pendingFilename[0] = null;
+					} else {
+						receivedSimulationArchive = connection.receiveFile(slotReceivedDirectory);
+					}
+					printMsg("Received simluation code: " + receivedSimulationArchive.getFileName());
+	
+					// handles the simulation request
+					Path simulationResultArchive = handleRequest(receivedSimulationArchive);
+	
+					// sends the simulation result archive (ZIP)
+					printMsg("Sending simulation result: " + simulationResultArchive.getFileName());
+					connection.sendFile(simulationResultArchive);
+					printMsg("Sending " + simulationResultArchive.getFileName() + " has been completed.");
+				} catch (SlotRefusedException sre) {
+					// the runners of dead connections may still be holding the room, so tries again later
+					printMsg("Slave Manager has no room for this slot for now.");
+					try {
+						reconnect(TimeUnit.SECONDS.toMillis(maxReconnectDelaySec));
+					} catch (InterruptedException ie) {
+						printMsg("Interrupted while reconnecting to Slave Manager");
+						return;
+					}
+				} catch (Exception e) {
+					printMsg("Lost Slave Manager due to an error: " + e);
+					try {
+						reconnect(TimeUnit.SECONDS.toMillis(1));
+					} catch (InterruptedException ie) {
+						printMsg("Interrupted while reconnecting to Slave Manager");
+						return;
+					}
+				} 
+			}
+		}
+		
+		/**
+		 * Prints a message of this slot to screen
+		 * @param msg			Message to print
+		 */
+		protected void printMsg(String msg) {
+			if(slots == 1) {
+				XTEAMSlave.this.printMsg(msg);
+			} else {
+				screenLogger.printMsg("Slave/" + slotName, msg);
+			}
+		}
+	}
+	
+	/**
+	 * Thrown when the Slave Manager refuses a slot, which then reconnects only after the longest delay
+	 */
+	protected static class SlotRefusedException extends Exception {
+		private static final long serialVersionUID = 1L;
 	}
 	
 	/**
@@ -410,23 +727,224 @@ public class XTEAMSlave {
 		Path sourceCodeDirectory 		= extractSourceCode(sourceCodeArchive);
 		printMsgTarget(simulationName, "Extracting source code archive completed.");
 		
+		// compiles and executes the simulation
+		Path simulationResultDirectory	= runSimulation(simulationName, sourceCodeDirectory, new SimulationJob());
+		
+		// archives the errors file + simulation results
+		printMsgTarget(simulationName, "Archiving the simulation result begins ...");
+		resultArchive = archiveSimulationResult(simulationName, simulationResultDirectory);
+		printMsgTarget(simulationName, resultArchive.getFileName().toString() + " has been created.");
+		
+		printMsgTarget(simulationName, "Simulation request handling completed.");
+		
+		return resultArchive;
+	}
+	
+	/**
+	 * Handles a simulation request from a Slave Manager that streams archives: the source code
+	 * is unzipped straight from the socket, and the result is zipped straight into it
+	 * 
+	 * @param connection				The connection to Slave Manager
+	 * @throws Exception
+	 */
+	public void handleStreamedRequest(FramedConnection connection) throws Exception {
+		// receives the source code archive name
+		printMsg("Waiting for simulation code archive stream ...");
+		String archiveName		= connection.receiveMessage("archive name");
+		
+		// a cancellation that crossed the result of its simulation on the wire is stale
+		while(archiveName.equals(SocketTransferUtility.cancelMessage)) {
+			archiveName			= connection.receiveMessage("archive name");
+		}
+		
+		// a Slave Manager that already serves as many slaves as it can turns this one away for now
+		if(archiveName.equals(SocketTransferUtility.refusalMessage)) {
+			throw new SlotRefusedException();
+		}
+		String simulationName	= FileUtility.getFilenameWithoutExtension(archiveName);
+		printMsgTarget(simulationName, "Simulation request handling begins ...");
+		
+		// extracts the streamed source code to a source code directory
+		Path sourceCodeDirectory = createSourceCodeDirectory(archiveName);
+		if(connection.getProtocol() >= SocketTransferUtility.PROTOCOL_MANIFEST) {
+			receiveSourceManifest(connection, simulationName, sourceCodeDirectory);
+		} else {
+			connection.receiveArchive(sourceCodeDirectory);
+		}
+		printMsgTarget(simulationName, "Extracting source code archive stream completed.");
+		
+		// compiles and executes the simulation while watching for a cancellation
+		SimulationJob	job		= new SimulationJob();
+		CancelWatcher	watcher	= null;
+		if(connection.getProtocol() >= SocketTransferUtility.PROTOCOL_CANCEL) {
+			watcher = new CancelWatcher(connection, job, simulationName);
+			watcher.start();
+		}
+		Path simulationResultDirectory;
+		try {
+			simulationResultDirectory = runSimulation(simulationName, sourceCodeDirectory, job);
+		} finally {
+			if(watcher != null) {
+				watcher.finish();
+			}
+		}
+		
+		// streams the errors file + simulation results
+		printMsgTarget(simulationName, "Streaming the simulation result begins ...");
+		connection.sendArchive(simulationName + "_result.zip", findResultFiles(simulationResultDirectory));
+		printMsgTarget(simulationName, "Streaming the simulation result completed.");
+		
+		printMsgTarget(simulationName, "Simulation request handling completed.");
+	}
+	
+	/**
+	 * Thread that watches the connection for a cancellation while a slot runs a simulation, and
+	 * sends the heartbeats that tell Slave Manager the slot is alive; the slot does not use the
+	 * connection until it has stopped the watcher
+	 */
+	protected class CancelWatcher extends Thread {
+		private final		FramedConnection	connection;
+		private final		SimulationJob		job;
+		private final		String				simulationName;
+		private volatile	boolean				done		= false;
+		
+		public CancelWatcher (FramedConnection connection, SimulationJob job, String simulationName) {
+			this.connection		= connection;
+			this.job			= job;
+			this.simulationName	= simulationName;
+		}
+		
+		@Override
+		public void run() {
+			boolean	heartbeats		= connection.getProtocol() >= SocketTransferUtility.PROTOCOL_HEARTBEAT;
+			long	heartbeatMs		= TimeUnit.SECONDS.toMillis(heartbeatTimeSec);
+			long	lastHeartbeat	= System.currentTimeMillis();
+			
+			while (!done) {
+				try {
+					if(heartbeats && System.currentTimeMillis() - lastHeartbeat >= heartbeatMs) {
+						connection.sendKeepalive();
+						lastHeartbeat = System.currentTimeMillis();
+					}
+					
+					if(connection.awaitInput(cancelCheckTimeMs)) {
+						String message = connection.receiveMessage("cancellation");
+						if(message.equals(SocketTransferUtility.cancelMessage)) {
+							job.cancel();
+							printMsgTarget(simulationName, "Simulation has been cancelled by Slave Manager.");
+						}
+					}
+				} catch (IOException ioe) {
+					// nobody is waiting for the result any more
+					printMsgTarget(simulationName, "Connection lost while running the simulation: " + ioe);
+					job.cancel();
+					return;
+				}
+			}
+		}
+		
+		/**
+		 * Stops watching and waits until the watcher leaves the connection alone
+		 */
+		public void finish() throws InterruptedException {
+			done = true;
+			join();
+		}
+	}
+	
+	/**
+	 * Receives the simulation source code through the {@link SourceCache}: replies to the
+	 * manifest with the hashes the cache lacks, stores the streamed missing files, and 
+	 * materializes the source code from the cache
+	 * 
+	 * @param connection				The connection to Slave Manager
+	 * @param simulationName			Name of the simulation
+	 * @param sourceCodeDirectory		The directory in which the source code will be
+	 * @throws Exception
+	 */
+	protected void receiveSourceManifest(FramedConnection connection, String simulationName, Path sourceCodeDirectory) throws Exception {
+		// receives the manifest and replies with the missing hashes
+		Map<String, String> manifest 	= SourceCache.decodeManifest(connection.receiveMessage("manifest"));
+		List<String>		missing		= sourceCache.findMissing(manifest.values());
+		connection.sendMessage("missing hashes", SourceCache.encodeHashes(missing));
+		
+		// receives the missing files into the cache
+		connection.receiveMessage("archive name");
+		Path staging = sourceCache.createStagingDirectory();
+		connection.receiveArchive(staging);
+		sourceCache.store(staging);
+		
+		// materializes the source code
+		sourceCache.materialize(manifest, sourceCodeDirectory);
+		printMsgTarget(simulationName, missing.size() + " of " + manifest.size() + " source files received, the rest from the source cache.");
+	}
+	
+	/**
+	 * Compiles and executes a simulation, and writes the errors file
+	 * 
+	 * @param simulationName			Name of the simulation
+	 * @param sourceCodeDirectory		The directory in which the source code is
+	 * @param job						The job that can kill "make" or the simulation when cancelled
+	 * @return							Path to the simulation result directory
+	 * @throws Exception
+	 */
+	protected Path runSimulation(String simulationName, Path sourceCodeDirectory, SimulationJob job) throws Exception {
 		// generates a "makefile" file
 		generateMakefile(sourceCodeDirectory);
 		printMsgTarget(simulationName, "The \"makefile\" generation completed.");	
 		
-		// compiles the source code
-		List<String> errors = compile(simulationName, sourceCodeDirectory);
+		// restores the object files of the unchanged components; a cache failure only costs a full build
+		Map<Path, String> objectsToCompile = null;
+		if(objectCache != null) {
+			try {
+				int sourceCount		= FileUtility.findFilesWithExtension(sourceCodeDirectory, "cpp").size();
+				objectsToCompile	= objectCache.restore(sourceCodeDirectory);
+				printMsgTarget(simulationName, (sourceCount - objectsToCompile.size()) + " of " + sourceCount + " object files restored from the object cache.");
+			} catch (IOException ioe) {
+				printMsgTarget(simulationName, "Error while restoring cached object files: " + ioe);
+			}
+		}
+		
+		// compiles the source code with the cores the executing slots leave idle
+		List<String> 	errors;
+		int				compileCores = cpuScheduler.acquireCompilation();
+		try {
+			errors = compile(simulationName, sourceCodeDirectory, compileCores, job);
+		} finally {
+			cpuScheduler.releaseCompilation();
+		}
+		
+		// caches the newly compiled object files; a killed compilation may have left partial ones
+		if(objectsToCompile != null && errors.size() == 0 && !job.isCancelled()) {
+			try {
+				objectCache.store(objectsToCompile);
+			} catch (IOException ioe) {
+				printMsgTarget(simulationName, "Error while caching object files: " + ioe);
+			}
+		}
 		
 		// in case there was no compilation error
 		Path simulationExecutable 		= sourceCodeDirectory.resolve(executableFile);
 		Path simulationResultDirectory 	= simulationExecutable.getParent();
-		if(errors.size() == 0) {
+		if(job.isCancelled()) {
+			// the result of a cancelled simulation only tells why it is missing
+			errors.add(new String("Simulation was cancelled by Slave Manager."));
+		} else if(errors.size() == 0) {
 			// executes the compiled binary
 			printMsgTarget(simulationName, "Simulation execution begins ...");
-			execute(simulationExecutable);
+			cpuScheduler.acquireExecution();
+			try {
+				execute(simulationExecutable, job);
+			} finally {
+				cpuScheduler.releaseExecution();
+			}
 			
 			// in case the execution finished right; looks for "Simulation_Completion.txt"
-			if(Files.exists(simulationResultDirectory.resolve("Simulation_Completion.txt"), new LinkOption[]{LinkOption.NOFOLLOW_LINKS})) {
+			if(job.isCancelled()) {
+				errors.add(new String("Simulation was cancelled by Slave Manager."));
+				
+				printMsgTarget(simulationName, "Simulation execution was cancelled.");
+			} else if(Files.exists(simulationResultDirectory.resolve("Simulation_Completion.txt"), new LinkOption[]{LinkOption.NOFOLLOW_LINKS})) {
 				printMsgTarget(simulationName, "Simulation execution successfully completed.");
 			} else {
 				// adds the error to the errors list
@@ -446,14 +964,7 @@ public class XTEAMSlave {
 			Files.write(errorsFile, (error+"\n").getBytes(), StandardOpenOption.APPEND);
 		}
 		
-		// archives the errors file + simulation results
-		printMsgTarget(simulationName, "Archiving the simulation result begins ...");
-		resultArchive = archiveSimulationResult(simulationName, simulationResultDirectory);
-		printMsgTarget(simulationName, resultArchive.getFileName().toString() + " has been created.");
-		
-		printMsgTarget(simulationName, "Simulation request handling completed.");
-		
-		return resultArchive;
+		return simulationResultDirectory;
 	}
 	
 	/**
@@ -464,12 +975,7 @@ public class XTEAMSlave {
 	 */
 	protected Path extractSourceCode (Path sourceCodeArchive) throws Exception {
 		// creates a directory with the source code name under the simulation directory 
-		Path sourceCodeDirectory = simulationDirectory.resolve("simulation_code/" + sourceCodeArchive.getFileName());
-		try { 
-			Files.createDirectories(sourceCodeDirectory);
-		} catch (Exception e) {
-			throw new Exception ("Directory " + sourceCodeDirectory + " cannot be created");
-		}
+		Path sourceCodeDirectory = createSourceCodeDirectory(sourceCodeArchive.getFileName().toString());
 		
 		// extracts the source code archive
 		ArchiveUtility.extract(sourceCodeArchive, sourceCodeDirectory);
@@ -477,6 +983,31 @@ public class XTEAMSlave {
 		return sourceCodeDirectory;
 	}
 	
+	/**
+	 * Creates the directory to extract a source code archive into
+	 * 
+	 * @param archiveName				Name of the source code archive
+	 * @return							Path to the directory in which the source code will be
+	 */
+	protected Path createSourceCodeDirectory (String archiveName) throws Exception {
+		Path codeDirectory			= simulationDirectory.resolve("simulation_code");
+		Path sourceCodeDirectory	= codeDirectory.resolve(archiveName);
+		try { 
+			Files.createDirectories(codeDirectory);
+			
+			// every job gets a directory of its own, even when a slot receives an archive name again
+			for(int i = 1; ; i++) {
+				try {
+					return Files.createDirectory(sourceCodeDirectory);
+				} catch (FileAlreadyExistsException faee) {
+					sourceCodeDirectory = codeDirectory.resolve(archiveName + "_" + i);
+				}
+			}
+		} catch (IOException e) {
+			throw new Exception ("Directory " + sourceCodeDirectory + " cannot be created");
+		}
+	}
+	
 	/**
 	 * Generates the "makefile" file for the source code
 	 * 
@@ -546,9 +1077,10 @@ public class XTEAMSlave {
 	/**
 	 * Executes the simulation
 	 * @param executableFile		Path to the simulation's executable file
+	 * @param job					The job that can kill the simulation when cancelled
 	 * @throws Exception
 	 */
-	protected void execute (Path executableFile) throws Exception {
+	protected void execute (Path executableFile, SimulationJob job) throws Exception {
 		// checks if the execution file exists
 		if(Files.notExists(executableFile, new LinkOption[]{LinkOption.NOFOLLOW_LINKS})) {
 			throw new Exception ("Execution file does not exist: " + executableFile.toString());
@@ -559,9 +1091,11 @@ public class XTEAMSlave {
 		
 		// executes "simulation"
 		Process proc = Runtime.getRuntime().exec(runCmd, null, executableFile.getParent().toFile());
+		job.attach(proc);
 
 		// waits until the compilation ends
 		proc.waitFor();
+		job.detach();
 	}
 	
 	/**
@@ -573,19 +1107,28 @@ public class XTEAMSlave {
 	protected Path archiveSimulationResult (String simulationName, Path resultDirectory) throws Exception {
 		Path resultArchive = resultDirectory.resolve(simulationName + "_result.zip");
 		
-		// finds all .csv and .txt files
-		List<Path> filesToArchive = new ArrayList<>(); 
-		List<Path> csvFiles = FileUtility.findFilesWithExtension(resultDirectory, "csv");
-		List<Path> txtFiles = FileUtility.findFilesWithExtension(resultDirectory, "txt");
-		filesToArchive.addAll(csvFiles);
-		filesToArchive.addAll(txtFiles);
-		
 		// creates the archive
-		ArchiveUtility.archive(resultArchive, filesToArchive);
+		ArchiveUtility.archive(resultArchive, findResultFiles(resultDirectory));
 				
 		return resultArchive;
 	}
 	
+	/**
+	 * Finds the result files (.csv and .txt) to send back
+	 * 
+	 * @param resultDirectory			The result directory
+	 * @return							List of the result files
+	 */
+	protected List<Path> findResultFiles (Path resultDirectory) throws Exception {
+		List<Path> resultFiles = new ArrayList<>(); 
+		List<Path> csvFiles = FileUtility.findFilesWithExtension(resultDirectory, "csv");
+		List<Path> txtFiles = FileUtility.findFilesWithExtension(resultDirectory, "txt");
+		resultFiles.addAll(csvFiles);
+		resultFiles.addAll(txtFiles);
+		
+		return resultFiles;
+	}
+	
 	/**
 	 * Prints a message to screen
 	 * @param msg			Message to print
@@ -658,7 +1201,12 @@ public class XTEAMSlave {
 		Path		executableFile;
 		Path		errorsFilename;
 		int			cores;
+		int			slots;
+		int			compileWorkers;
 		Path		nodeNameFile;
+		Path		sourceCacheDirectory;
+		Path		objectCacheDirectory;
+		Path		libraryCacheDirectory;
 		String 		slaveManagerHostAddress;
 		int			slaveManagerPort;
 		try {
@@ -672,9 +1220,17 @@ public class XTEAMSlave {
 			executableFile				= Utility.getPathProperty	(props, "SLAVE_EXECUTABLE_FILE");
 			errorsFilename				= Utility.getPathProperty	(props, "SLAVE_ERRORS_FILENAME");
 			cores						= Utility.getIntProperty	(props, "SLAVE_CORES");
+			slots						= Integer.parseInt(props.getProperty("SLAVE_SLOTS", "1"));
+			compileWorkers				= Integer.parseInt(props.getProperty("SLAVE_COMPILE_WORKERS", "0"));
 			nodeNameFile				= Utility.getPathProperty	(props, "SLAVE_NODE_NAME_FILE");
+			sourceCacheDirectory		= Paths.get(props.getProperty("SLAVE_SOURCE_CACHE_DIR", "./source_cache"));
+			objectCacheDirectory		= Paths.get(props.getProperty("SLAVE_OBJECT_CACHE_DIR", "./object_cache"));
+			libraryCacheDirectory		= Paths.get(props.getProperty("SLAVE_LIBRARY_CACHE_DIR", "./library_cache"));
 			slaveManagerHostAddress		= Utility.getProperty		(props, "SERVER");
 			slaveManagerPort			= Utility.getIntProperty	(props, "SM_PORT");
+			
+			ArchiveUtility.setParallelExtraction(	Long.parseLong(props.getProperty("ARCHIVE_PARALLEL_THRESHOLD", String.valueOf(ArchiveUtility.DEFAULT_PARALLEL_THRESHOLD))),
+													Integer.parseInt(props.getProperty("ARCHIVE_PARALLEL_THREADS", "0")));
 		}  catch (Exception e) {
 			System.out.println("[Slave]: Error: " + e);
 			return;
@@ -704,7 +1260,12 @@ public class XTEAMSlave {
 									executableFile,
 									errorsFilename,
 									cores,
+									slots,
+									compileWorkers,
 									nodeNameFile,
+									sourceCacheDirectory,
+									objectCacheDirectory,
+									libraryCacheDirectory,
 									slaveManagerHostAddress, 
 									slaveManagerPort );
 		} catch (Exception e) {
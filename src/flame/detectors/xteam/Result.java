@@ -206,4 +206,39 @@ public class Result {
 		// increases the overall number of successes
 		overall_numberOfSuccesses += numberOfSuccesses;
 	}
+	
+	/**
+	 * Sets per-component analysis result, replacing the result the component had so far, so
+	 * that the analysis of a component can be updated while its simulation output grows
+	 * @param componentName	Component name
+	 * @param value			Analysis value
+	 */
+	public void setComponentAnalysis(	String 	componentName, 
+										double 	totalValue, 
+										double	maxTime,
+										double 	maxValue,
+										int		numberOfValues,
+										int		numberOfSuccesses) {
+		
+		// takes the previous result of the component out of the overall values
+		if(perComponentTotalValues.containsKey(componentName)) {
+			overall_totalValue 			-= perComponentTotalValues.get(componentName);
+			overall_numberOfValues 		-= perComponentNumberOfValues.get(componentName);
+			overall_numberOfSuccesses 	-= perComponentNumberOfSuccesses.get(componentName);
+			numberOfComponents--;
+			
+			// finds the max. value among the other components, only if the component had it and it shrinks
+			MaxValue previous = perComponentMaxValues.remove(componentName);
+			if(previous.getMaxValue() >= overall_maxValue && maxValue < previous.getMaxValue()) {
+				overall_maxValue = 0;
+				for(MaxValue max : perComponentMaxValues.values()) {
+					if(overall_maxValue < max.getMaxValue()) {
+						overall_maxValue = max.getMaxValue();
+					}
+				}
+			}
+		}
+		
+		addComponentAnalysis(componentName, totalValue, maxTime, maxValue, numberOfValues, numberOfSuccesses);
+	}
 }
@@ -0,0 +1,721 @@
+package flame.detectors.xteam;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import flame.FileUtility;
+import flame.ScreenLogger;
+import flame.Utility;
+
+/**
+ * ResultAnalyzer analyzes the .csv files an XTEAM simulation writes, incrementally, so that
+ * the files can be tailed while the simulation still runs.<p>
+ *
+ * Every poll reads only what has been appended to each file since the previous poll, and only
+ * up to the last complete line; the rest waits for the next poll. The aggregates of a file are
+ * kept in between the polls and put into the {@link Result} of its analysis type each time the
+ * file grows, so that the {@link Results} are up to date when the simulation completes and the
+ * last poll only reads the tail of the files.<p>
+ *
+ * The analysis is the same as reading every file once after the simulation: a file is read up
+ * to the first line beyond the target time, and "-" values are missing values.<p>
+ *
+ * The files of a poll are read in parallel on a fork-join pool that all the analyzers share,
+ * and are merged into the {@link Results} in the calling thread once all of them have been read.
+ * A file is read through a large buffer of the reading thread and its lines are parsed right
+ * there in bytes, so that a line costs no objects unless a value has to be parsed the slow way.
+ *
+ * @author 					<a href="mailto:jaeyounb@usc.edu">Jae young Bang</a>
+ * @version					2015.01
+ */
+public class ResultAnalyzer {
+
+///////////////////////////////////////////////
+// Member Variables
+///////////////////////////////////////////////
+
+	/**
+	 * Size of the buffer the files are read through
+	 */
+	protected static final int			READ_BUFFER_SIZE	= 256 * 1024;
+
+	/**
+	 * Largest mantissa a double has exactly
+	 */
+	protected static final long			MAX_EXACT_MANTISSA	= 1L << 53;
+
+	/**
+	 * Powers of ten a double has exactly
+	 */
+	protected static final double[]		EXACT_POWERS_OF_TEN	= {	1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+																	1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19,
+																	1e20, 1e21, 1e22 };
+
+	/**
+	 * Pool of the threads that read the files, shared by all the analyzers
+	 */
+	protected static final ForkJoinPool	readers				= new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Buffer each thread reads the files through
+	 */
+	protected static final ThreadLocal<ByteBuffer>	readBuffers	= new ThreadLocal<ByteBuffer> () {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(READ_BUFFER_SIZE);
+		}
+	};
+
+	/**
+	 * Mapping from analysis name to the target value index in the simulation result file
+	 */
+	protected final Map<String, Integer>	targetValueIndex;
+
+	/**
+	 * Target time (logical time) to which the simulation analysis runs
+	 */
+	protected final double				targetTime;
+
+	/**
+	 * The analysis results so far
+	 */
+	protected final Results				results			= new Results();
+
+	/**
+	 * File name-state mapping of the .csv files seen so far
+	 */
+	protected final Map<String, ResultFile>	files		= new HashMap<>();
+
+	/**
+	 * Names of the files that are not results of this simulation
+	 */
+	protected final Set<String>			ignored			= new HashSet<>();
+
+	/**
+	 * The first failure of the analysis; the analysis stops there
+	 */
+	protected Exception					failure			= null;
+
+	/**
+	 * ScreenLogger instance
+	 */
+	protected final ScreenLogger		sl;
+
+	/**
+	 * Name the messages are printed with
+	 */
+	protected final String				loggerName;
+
+	/**
+	 * State of the analysis of a .csv file
+	 */
+	protected static class ResultFile {
+		protected final String					filename;
+		protected final String					componentName;
+		protected final Result					result;
+		protected final int						index;
+		protected byte[]						pending				= null;		// the incomplete line read so far
+		protected int							pendingLength		= 0;
+		protected long							position			= 0;		// bytes read so far
+		protected boolean						ended				= false;	// reached beyond the target time
+		protected boolean						reported			= false;	// put into the Result at least once
+		protected double						totalValue			= 0;		// the summation of all values
+		protected double						maxTime				= 0;		// the time that has the maximum value
+		protected double						maxValue			= 0;		// the maximum of all values
+		protected int							count				= 0;		// line count
+		protected int							success				= 0;		// success count
+		protected double						current_time		= 0;		// max value time cursor
+		protected double						current_cum_value	= 0;		// cumulative value for the time so far
+
+		protected ResultFile (String filename, String componentName, Result result, int index) {
+			this.filename		= filename;
+			this.componentName	= componentName;
+			this.result			= result;
+			this.index			= index;
+		}
+
+		protected void appendPending (byte[] bytes, int from, int length) {
+			if(length == 0) {
+				return;
+			}
+			if(pending == null) {
+				pending = new byte[Math.max(256, length)];
+			} else if(pendingLength + length > pending.length) {
+				pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+			}
+			System.arraycopy(bytes, from, pending, pendingLength, length);
+			pendingLength += length;
+		}
+	}
+
+	/**
+	 * Task that reads a range of the files of a poll, splitting the range down to single files
+	 */
+	protected class FileReadTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		protected final List<Path>			paths;
+		protected final List<ResultFile>	resultFiles;
+		protected final boolean				complete;
+		protected final boolean[]			grew;
+		protected final Exception[]			failures;
+		protected final int					from;
+		protected final int					to;
+
+		protected FileReadTask (List<Path> paths, List<ResultFile> resultFiles, boolean complete,
+								boolean[] grew, Exception[] failures, int from, int to) {
+			this.paths			= paths;
+			this.resultFiles	= resultFiles;
+			this.complete		= complete;
+			this.grew			= grew;
+			this.failures		= failures;
+			this.from			= from;
+			this.to				= to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(	new FileReadTask(paths, resultFiles, complete, grew, failures, from, middle),
+							new FileReadTask(paths, resultFiles, complete, grew, failures, middle, to));
+				return;
+			}
+
+			try {
+				grew[from] = readFile(paths.get(from), resultFiles.get(from), complete);
+			} catch (Exception exc) {
+				failures[from] = exc;
+			}
+		}
+	}
+
+///////////////////////////////////////////////
+// Constructors
+///////////////////////////////////////////////
+
+	/**
+	 * Default constructor
+	 *
+	 * @param targetValueIndex	Mapping from analysis name to the target value index in the result file
+	 * @param targetTime		Target time (logical time) to which the simulation analysis runs
+	 * @param screenLogger		ScreenLogger instance
+	 * @param loggerName		Name the messages are printed with
+	 */
+	public ResultAnalyzer (Map<String, Integer> targetValueIndex, double targetTime, ScreenLogger screenLogger, String loggerName) {
+		this.targetValueIndex	= targetValueIndex;
+		this.targetTime			= targetTime;
+		sl						= screenLogger;
+		this.loggerName			= loggerName;
+
+		// adds the analysis types that are defined in the XTEAMInfo.dat file
+		for(String key : targetValueIndex.keySet()) {
+			results.createResult(key);
+		}
+	}
+
+///////////////////////////////////////////////
+// Member Methods
+///////////////////////////////////////////////
+
+	/**
+	 * Ignores files of a directory, e.g. those that were there before the simulation
+	 *
+	 * @param filenames			Names of the files
+	 */
+	public void ignore (Set<String> filenames) {
+		ignored.addAll(filenames);
+	}
+
+	/**
+	 * Reads the complete lines that have been appended to the .csv files of a directory
+	 *
+	 * @param directory			Directory the simulation writes the files in
+	 * @return					Whether any result has changed
+	 */
+	public boolean poll (Path directory) {
+		if(failure != null) {
+			return false;
+		}
+
+		try {
+			return read(directory, false);
+		} catch (Exception exc) {
+			// the failure is reported when the analysis finishes
+			failure = exc;
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the rest of the .csv files of a directory after the simulation has completed
+	 *
+	 * @param directory			Directory that has the simulation result; the files may have been
+	 * 							moved there from the directory that has been polled
+	 * @return					The analysis results
+	 * @throws Exception		Cannot complete the analysis
+	 */
+	public Results finish (Path directory) throws Exception {
+		if(failure == null) {
+			read(directory, true);
+		}
+		if(failure != null) {
+			throw failure;
+		}
+
+		return results;
+	}
+
+	/**
+	 * Returns the analysis results so far
+	 */
+	public Results getResults () {
+		return results;
+	}
+
+	/**
+	 * Reads the .csv files of a directory from where the previous read stopped
+	 *
+	 * @param directory			Directory that has the files
+	 * @param complete			Whether the files are complete, so that the last line is read as well
+	 * @return					Whether any result has changed
+	 * @throws Exception		Cannot complete the analysis
+	 */
+	protected boolean read (Path directory, boolean complete) throws Exception {
+		List<Path>			paths		= new ArrayList<>();
+		List<ResultFile>	resultFiles	= new ArrayList<>();
+
+		// Iterates through the simulation directory to find .csv files
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory)) {
+			for (Path file : ds) {
+				String filename	= file.getFileName().toString();
+
+				// If the extension is not .csv, skips the file
+				if(ignored.contains(filename) || !FileUtility.getExtension(file).toLowerCase().equals("csv")) {
+					continue;
+				}
+
+				ResultFile resultFile = files.get(filename);
+				if(resultFile == null) {
+					resultFile = open(file);
+					if(resultFile == null) {
+						continue;
+					}
+				}
+
+				paths.add(file);
+				resultFiles.add(resultFile);
+			}
+		} catch (IOException ioe) {
+			printMsg("Error while iterating through the .csv files: " + ioe);
+		}
+
+		if(paths.isEmpty()) {
+			return false;
+		}
+
+		// reads the files in parallel; a single file is read in this thread
+		boolean[]	grew		= new boolean[paths.size()];
+		Exception[]	failures	= new Exception[paths.size()];
+		FileReadTask task		= new FileReadTask(paths, resultFiles, complete, grew, failures, 0, paths.size());
+		if(paths.size() == 1) {
+			task.compute();
+		} else {
+			readers.invoke(task);
+		}
+
+		// merges the files into the Results in the order of the directory
+		boolean changed = false;
+		for(int i = 0; i < paths.size(); i++) {
+			if(failures[i] != null) {
+				throw failures[i];
+			}
+
+			// a complete file is reported even if it has no values
+			ResultFile resultFile = resultFiles.get(i);
+			if(grew[i] || (complete && !resultFile.reported)) {
+				// Adds the component name and the value pair
+				resultFile.result.setComponentAnalysis(	resultFile.componentName,
+														resultFile.totalValue,
+														resultFile.maxTime,
+														resultFile.maxValue,
+														resultFile.count - 1,
+														resultFile.success);
+				resultFile.reported	= true;
+				changed				= true;
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Starts the analysis of a .csv file
+	 *
+	 * @param file				Path to the file
+	 * @return					State of the analysis; null if the file is not a result of a known analysis
+	 */
+	protected ResultFile open (Path file) {
+		String filename = file.getFileName().toString();
+
+		// Gets the component name and analysis type from the filename
+		String componentName;
+		String analysisType;
+		try {
+			componentName 	= getComponentName(file);
+			analysisType 	= getAnalysisType(file);
+		} catch (Exception exc) {
+			printMsg("Cannot get component information from [" + filename + "]: " + exc);
+			ignored.add(filename);
+			return null;
+		}
+
+		// Gets the Result with the AnalysisType
+		Result result = results.getResult(analysisType);
+
+		// gets the value index of the analysis type
+		Integer index = targetValueIndex.get(Utility.toCamelCase(analysisType.trim()));
+		if(index == null) {
+			printMsg("[" + analysisType + " for " + componentName + "] is an unknown analysis type.");
+			ignored.add(filename);
+			return null;
+		}
+
+		ResultFile resultFile = new ResultFile(filename, componentName, result, index);
+		files.put(filename, resultFile);
+		return resultFile;
+	}
+
+	/**
+	 * Reads what has been appended to a .csv file
+	 *
+	 * @param file				Path to the file
+	 * @param resultFile		State of the analysis of the file
+	 * @param complete			Whether the file is complete
+	 * @return					Whether any line has been read
+	 * @throws Exception		The file cannot be read or parsed
+	 */
+	protected boolean readFile (Path file, ResultFile resultFile, boolean complete) throws Exception {
+		if(resultFile.ended) {
+			return false;
+		}
+
+		int			linesBefore	= resultFile.count;
+		ByteBuffer	buffer		= readBuffers.get();
+		byte[]		bytes		= buffer.array();
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			channel.position(resultFile.position);
+
+			while (!resultFile.ended) {
+				buffer.clear();
+				int read = channel.read(buffer);
+				if(read <= 0) {
+					break;
+				}
+				resultFile.position += read;
+
+				// analyzes every complete line in the buffer, and keeps the rest
+				int start = 0;
+				for(int i = 0; i < read && !resultFile.ended; i++) {
+					if(bytes[i] != '\n') {
+						continue;
+					}
+					if(resultFile.pendingLength > 0) {
+						resultFile.appendPending(bytes, start, i - start);
+						analyzeLine(resultFile, resultFile.pending, 0, resultFile.pendingLength);
+						resultFile.pendingLength = 0;
+					} else {
+						analyzeLine(resultFile, bytes, start, i);
+					}
+					start = i + 1;
+				}
+				if(!resultFile.ended) {
+					resultFile.appendPending(bytes, start, read - start);
+				}
+			}
+		} catch (NoSuchFileException nsfe) {
+			// the file has been moved out between the listing and the read
+			return false;
+		} catch (IOException ioe_br) {
+			throw new Exception ("Error while reading " + resultFile.filename + " : " + ioe_br);
+		}
+
+		// the last line of a complete file has no line break
+		if(complete && !resultFile.ended && resultFile.pendingLength > 0) {
+			analyzeLine(resultFile, resultFile.pending, 0, resultFile.pendingLength);
+			resultFile.pendingLength = 0;
+		}
+
+		return resultFile.count != linesBefore;
+	}
+
+	/**
+	 * Analyzes a line of a .csv file
+	 *
+	 * @param resultFile		State of the analysis of the file
+	 * @param line				Buffer that has the line
+	 * @param from				Index of the first byte of the line
+	 * @param to				Index after the last byte of the line, without the line break
+	 * @throws Exception		The line cannot be parsed
+	 */
+	protected void analyzeLine (ResultFile resultFile, byte[] line, int from, int to) throws Exception {
+		if(to > from && line[to - 1] == '\r') {
+			to--;
+		}
+
+		// Skips the first row that has the column names
+		if(resultFile.count++ == 0) {
+			return;
+		}
+
+		try {
+			// finds the time column and the value column of the analysis type
+			int	timeEnd		= -1;
+			int	valueFrom	= -1;
+			int	valueTo		= -1;
+			int	column		= 0;
+			int	columnFrom	= from;
+			for(int i = from; i <= to; i++) {
+				if(i == to || line[i] == ',') {
+					if(column == 0) {
+						timeEnd = i;
+					}
+					if(column == resultFile.index) {
+						valueFrom	= columnFrom;
+						valueTo		= i;
+						break;
+					}
+					column++;
+					columnFrom = i + 1;
+				}
+			}
+
+			// gets the time of the line
+			double thisTime = parseDouble(line, from, timeEnd);
+
+			// Checks if the line is within the target time
+			if (thisTime <= targetTime) {
+				if(valueFrom < 0) {
+					throw new Exception ("missing the value column " + resultFile.index);
+				}
+
+				// if the value is NOT a missing value
+				if(!isMissingValue(line, valueFrom, valueTo)) {
+					double value = parseDouble(line, valueFrom, valueTo);
+
+					// accumulates to total value
+					resultFile.totalValue += value;
+
+					// checks if the time of the line differs from the current_time
+					if(thisTime > resultFile.current_time) {
+						// checks if the cumulative value is larger than the max value
+						if(resultFile.maxValue < resultFile.current_cum_value) {
+							resultFile.maxValue 	= resultFile.current_cum_value;
+							resultFile.maxTime 		= resultFile.current_time;
+						}
+
+						// resets the current values
+						resultFile.current_time 		= thisTime;
+						resultFile.current_cum_value 	= (double) 0;
+					}
+
+					// accumulates to current_cum_value
+					resultFile.current_cum_value += value;
+
+					// increases the success number
+					resultFile.success++;
+				}
+			} else {
+				printMsg(resultFile.componentName + " result ended [" + thisTime + "/" + targetTime + "]");
+				resultFile.ended = true;
+			}
+		} catch (NumberFormatException nfe) {
+			throw new Exception ("Value parsing exception while reading " + resultFile.filename + ": " + nfe);
+		} catch (Exception exc) {
+			throw new Exception ("Unexpected exception while reading " + resultFile.filename + " : " + exc);
+		}
+	}
+
+	/**
+	 * Checks whether a column is "-", the missing value, ignoring the whitespace around it
+	 */
+	protected static boolean isMissingValue (byte[] line, int from, int to) {
+		while (from < to && line[from] <= ' ') {
+			from++;
+		}
+		while (to > from && line[to - 1] <= ' ') {
+			to--;
+		}
+		return to - from == 1 && line[from] == '-';
+	}
+
+	/**
+	 * Parses a decimal number in bytes the way {@link Double#parseDouble(String)} does. A number
+	 * whose digits and exponent fit a double exactly is computed right from the bytes, with a
+	 * single rounding; any other number is handed to {@link Double#parseDouble(String)}.
+	 *
+	 * @param bytes				Buffer that has the number
+	 * @param from				Index of the first byte
+	 * @param to				Index after the last byte
+	 * @return					The number
+	 * @throws NumberFormatException	The bytes are not a number
+	 */
+	protected static double parseDouble (byte[] bytes, int from, int to) throws NumberFormatException {
+		// trims the whitespace around the number
+		while (from < to && bytes[from] <= ' ') {
+			from++;
+		}
+		while (to > from && bytes[to - 1] <= ' ') {
+			to--;
+		}
+
+		int		i			= from;
+		boolean	negative	= false;
+		if(i < to && (bytes[i] == '-' || bytes[i] == '+')) {
+			negative = bytes[i] == '-';
+			i++;
+		}
+
+		// reads up to 18 significant digits, which a long holds
+		long	mantissa	= 0;
+		int		digits		= 0;
+		int		scale		= 0;
+		boolean	hasDigits	= false;
+		boolean	fraction	= false;
+		for(; i < to; i++) {
+			byte b = bytes[i];
+			if(b >= '0' && b <= '9') {
+				hasDigits = true;
+				if(mantissa != 0 || b != '0') {
+					if(++digits > 18) {
+						return parseDoubleSlowly(bytes, from, to);
+					}
+					mantissa = mantissa * 10 + (b - '0');
+				}
+				if(fraction) {
+					scale--;
+				}
+			} else if(b == '.' && !fraction) {
+				fraction = true;
+			} else {
+				break;
+			}
+		}
+		if(!hasDigits) {
+			return parseDoubleSlowly(bytes, from, to);
+		}
+
+		// reads the exponent
+		if(i < to && (bytes[i] == 'e' || bytes[i] == 'E')) {
+			i++;
+			boolean	negativeExponent	= false;
+			if(i < to && (bytes[i] == '-' || bytes[i] == '+')) {
+				negativeExponent = bytes[i] == '-';
+				i++;
+			}
+			int exponent		= 0;
+			int exponentStart	= i;
+			for(; i < to && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+				exponent = exponent * 10 + (bytes[i] - '0');
+				if(exponent > 1000) {
+					return parseDoubleSlowly(bytes, from, to);
+				}
+			}
+			if(i == exponentStart) {
+				return parseDoubleSlowly(bytes, from, to);
+			}
+			scale += negativeExponent ? -exponent : exponent;
+		}
+
+		// a suffix or anything else is left to the slow way
+		if(i != to) {
+			return parseDoubleSlowly(bytes, from, to);
+		}
+
+		if(mantissa == 0) {
+			return negative ? -0.0 : 0.0;
+		}
+		if(mantissa > MAX_EXACT_MANTISSA || scale < -22 || scale > 22) {
+			return parseDoubleSlowly(bytes, from, to);
+		}
+
+		// both operands are exact, so the result is rounded only once
+		double value = scale < 0 ? mantissa / EXACT_POWERS_OF_TEN[-scale] : mantissa * EXACT_POWERS_OF_TEN[scale];
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parses a number in bytes with {@link Double#parseDouble(String)}
+	 */
+	protected static double parseDoubleSlowly (byte[] bytes, int from, int to) throws NumberFormatException {
+		return Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * Gets the component name from the XTEAM simulation result file
+	 *
+	 * @param file			Path to the file
+	 * @return				Component name
+	 */
+	public static String getComponentName (Path file) throws Exception {
+		String 		filename		= file.getFileName().toString();
+		String[] 	tokens 			= filename.split("\\.");
+		String[] 	filenameTokens 	= tokens[0].split("_");
+
+		// If the file name is too short and does NOT contain the component name
+		if(filenameTokens.length < 2) {
+			throw new Exception ("missing the component name");
+		}
+
+		// Concatenates the component name with the relative ID of the component
+		return filenameTokens[0] + "_" + filenameTokens[1];
+	}
+
+	/**
+	 * Gets the analysis type from the XTEAM simulation result file
+	 *
+	 * @param file			Path to the file
+	 * @return				Analysis type
+	 * @throws Exception	Cannot get the analysis type
+	 */
+	public static String getAnalysisType (Path file) throws Exception {
+		String 		filename		= file.getFileName().toString();
+		String[] 	tokens 			= filename.split("\\.");
+		String[] 	filenameTokens 	= tokens[0].split("_");
+
+		// Gets the analysis type
+		// Takes the second last token as the analysis type name
+		if(filenameTokens.length < 3) {
+			throw new Exception ("missing the analysis type");
+		}
+
+		return filenameTokens[filenameTokens.length-2];
+	}
+
+	/**
+	 * Print screen messages
+	 *
+	 * @param msg			Message to print to screen
+	 */
+	protected void printMsg(String msg) {
+		sl.printMsg(loggerName, msg);
+	}
+}
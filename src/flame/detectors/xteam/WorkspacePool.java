@@ -0,0 +1,208 @@
+package flame.detectors.xteam;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+
+import flame.FileUtility;
+import flame.ScreenLogger;
+
+/**
+ * WorkspacePool keeps the scaffold project materialized in a set of reusable workspaces, so
+ * that a local {@link XTEAMSimulation} does not copy the whole scaffold for every run.<p>
+ *
+ * A workspace is a full copy of the scaffold, made once when the pool first needs it. A run
+ * borrows an idle workspace, replaces its simulation_code directory with the generated code,
+ * and builds and executes there; the build outputs stay, so the next build is incremental.
+ * The files the execution creates are moved out to the simulation directory afterwards, which
+ * leaves the workspace as it was before the run.<p>
+ *
+ * A workspace of a run that failed is discarded rather than reused.
+ *
+ * @author 					<a href="mailto:jaeyounb@usc.edu">Jae young Bang</a>
+ * @version					2015.01
+ */
+public class WorkspacePool {
+
+///////////////////////////////////////////////
+// Member Variables
+///////////////////////////////////////////////
+
+	/**
+	 * Path to the scaffold code every workspace is copied from
+	 */
+	protected final	Path				scaffoldPath;
+
+	/**
+	 * Directory in which the workspaces are
+	 */
+	protected final	Path				poolDirectory;
+
+	/**
+	 * Idle workspaces
+	 */
+	protected final	LinkedList<Path>	idle			= new LinkedList<>();
+
+	/**
+	 * Number used to name the next new workspace
+	 */
+	protected		int					nextWorkspace	= 0;
+
+	/**
+	 * ScreenLogger instance
+	 */
+	protected final	ScreenLogger		sl;
+
+///////////////////////////////////////////////
+// Constructors
+///////////////////////////////////////////////
+
+	/**
+	 * Default constructor; removes the workspaces a previous run of the engine left behind
+	 *
+	 * @param scaffoldPath		Path to the scaffold code
+	 * @param poolDirectory		Directory in which the workspaces will be
+	 * @param screenLogger		ScreenLogger instance
+	 * @throws Exception		The directory cannot be prepared
+	 */
+	public WorkspacePool (Path scaffoldPath, Path poolDirectory, ScreenLogger screenLogger) throws Exception {
+		this.scaffoldPath	= scaffoldPath;
+		this.poolDirectory	= poolDirectory;
+		sl					= screenLogger;
+
+		try {
+			if(Files.exists(poolDirectory)) {
+				FileUtility.deleteDirectory(poolDirectory);
+			}
+			Files.createDirectories(poolDirectory);
+		} catch (IOException ioe) {
+			throw new Exception ("Workspace directory " + poolDirectory + " cannot be prepared: " + ioe);
+		}
+	}
+
+///////////////////////////////////////////////
+// Member Methods
+///////////////////////////////////////////////
+
+	/**
+	 * Borrows an idle workspace, or materializes a new one if none is idle
+	 *
+	 * @return					Path to the workspace
+	 * @throws Exception		A new workspace cannot be created
+	 */
+	public Path acquire () throws Exception {
+		Path workspace;
+		synchronized (this) {
+			workspace = idle.pollFirst();
+			if(workspace != null) {
+				return workspace;
+			}
+			workspace = poolDirectory.resolve("workspace" + nextWorkspace++);
+		}
+
+		// copies the scaffold outside the lock; only the caller knows the new workspace
+		printMsg("Materializing " + workspace.getFileName() + " ...");
+		try {
+			Files.createDirectories(workspace);
+			Files.walkFileTree(scaffoldPath, new FileCopier(scaffoldPath, workspace, sl));
+		} catch (IOException ioe) {
+			throw new Exception ("During copying scaffold code to " + workspace + ": " + ioe);
+		}
+		printMsg(workspace.getFileName() + " has been materialized.");
+
+		return workspace;
+	}
+
+	/**
+	 * Returns a workspace to the pool
+	 *
+	 * @param workspace			Path to the workspace
+	 * @param clean				Whether the run left the workspace as it found it; a dirty one is discarded
+	 */
+	public void release (Path workspace, boolean clean) {
+		if(clean) {
+			synchronized (this) {
+				idle.addFirst(workspace);
+			}
+			return;
+		}
+
+		try {
+			FileUtility.deleteDirectory(workspace);
+		} catch (IOException ioe) {
+			printMsg("Error: Cannot discard " + workspace + ": " + ioe);
+		}
+	}
+
+	/**
+	 * Replaces the simulation code of a workspace with the generated code of a simulation
+	 *
+	 * @param workspace			Path to the workspace
+	 * @param codePath			The relative path of the simulation code directory
+	 * @param simulationPath	Path to the simulation that has the generated code
+	 * @throws IOException
+	 */
+	public void loadSimulationCode (Path workspace, Path codePath, Path simulationPath) throws IOException {
+		Path from	= simulationPath.resolve(codePath);
+		Path to		= workspace.resolve(codePath);
+
+		if(Files.exists(to)) {
+			FileUtility.deleteDirectory(to);
+		}
+		Files.createDirectories(to);
+		Files.walkFileTree(from, new FileCopier(from, to, sl));
+	}
+
+	/**
+	 * Lists the files in a directory, so that the files a run creates can be told apart
+	 *
+	 * @param directory			Directory to list
+	 * @return					Names of the files; empty if the directory does not exist
+	 * @throws IOException
+	 */
+	public static Set<String> listFiles (Path directory) throws IOException {
+		Set<String> names = new HashSet<>();
+		if(Files.isDirectory(directory)) {
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory)) {
+				for(Path file : ds) {
+					names.add(file.getFileName().toString());
+				}
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Moves the files a run created in a workspace directory out to another directory
+	 *
+	 * @param directory			The workspace directory
+	 * @param existing			Names of the files that were there before the run
+	 * @param target			Directory to move the new files to
+	 * @throws IOException
+	 */
+	public static void moveNewFiles (Path directory, Set<String> existing, Path target) throws IOException {
+		Files.createDirectories(target);
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory)) {
+			for(Path file : ds) {
+				String name = file.getFileName().toString();
+				if(!existing.contains(name)) {
+					Files.move(file, target.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Print screen messages
+	 *
+	 * @param msg			Message to print to screen
+	 */
+	protected void printMsg(String msg) {
+		sl.printMsg("Workspaces", msg);
+	}
+}
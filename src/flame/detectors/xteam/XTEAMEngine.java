@@ -99,6 +99,16 @@ public class XTEAMEngine extends FLAMEClient {
 	 * Slave Manager that manages XTEAMSlave instances
 	 */
 	protected 	SlaveManager 	slaveManager;
+	
+	/**
+	 * Pool of the scaffold workspaces for the local simulations; null to copy the scaffold code for every simulation
+	 */
+	protected	WorkspacePool	workspacePool;
+	
+	/**
+	 * Interval in seconds at which the local simulations send partial results while they run; 0 not to
+	 */
+	protected	int				partialResultIntervalSec	= 0;
 
 ///////////////////////////////////////////////
 // Semaphores
@@ -287,117 +297,32 @@ public class XTEAMEngine extends FLAMEClient {
 				case "Snapshot":
 				case "Update":
 					
-					// If the Event has IsLast parameter, that means
-					// the Event is a part of the initial update Events
-					if(e.hasParameter("IsLast")){
-						if( (boolean) e.getParameter("IsLast") ) {
-							// replace the XTEAM analysis attribute to 'O'
-							try {
-								flipXTEAMAnalysisSwitch(e, true);
-							} catch (Exception exc) {
-								printMsg(name, "Error: Failed to flip XTEAM analysis switch of an Event with IsLast because the Event does not have Value parameter: " + exc);
-								break;
-							}
-						}
-					}
-					// If the Event does not have IsLast parameter, that means
-					// the Event is NOT a part of the initial update Events
-					else {
-						// replace the XTEAM analysis attributed to 'O'
-						try {
-							flipXTEAMAnalysisSwitch(e, true);
-						} catch (Exception exc) {
-							printMsg(name, "Error: Failed to flip XTEAM analysis switch of an Event without IsLast because the Event does not have Value parameter: " + exc);
-							break;
-						}
+					// adds to the buffer and forwards the Events that are ready
+					if(bufferEvent(e)) {
+						forwardBuffer();
 					}
-										
-					/*
-					 * The way LocalV is implemented is to invoke purgeBuffer() like the LSV 
-					 * engine while ignoring all Snapshot Events but the ones from the 
-					 * corresponding architect. By doing so, all Events from the corresponding
-					 * architect would be forwarded as they arrive while the other Events are
-					 * only forwarded when a Snapshot Event arrives from the corresponding 
-					 * architect.
-					 * 
-					 * For the record, purgeBuffer() purges the buffer to LSV + all events from
-					 * the corresponding SenderUsername.
-					 * 
-					 * While the code for LSV and HeadLocalV are identical, since LSV has the 
-					 * username of "LSV" and HeadLocalV has the username of the corresponding
-					 * architect's username, they would essentially behave differently.
-					 */
+				
+					break;
 					
+				//////////////////////////////////
+				// handling History -- a batch of the initial update Events
+				//////////////////////////////////
 					
-					// Handles Events according to the mode 
-					switch (mode) {
-						case "MRSV":
-							// adds to the buffer
-							storage.addToBuffer(e);
-							
-							// purges the buffer to MRV
-							forwardEventsToAdaptor(filterEvents(flipXTEAMAnalysisSwitches(purgeBufferAll())));
-							
-							
-							break;
-							
-						case "LSV":
-							// adds to the buffer
-							storage.addToBuffer(e);
-							
-							// purges the buffer to LSV
-							forwardEventsToAdaptor(filterEvents(flipXTEAMAnalysisSwitches(purgeBuffer())));
-							break;
-							
-						case "LocalV":
-							// adds to the buffer (ignore Snapshot Events from other architects)
-							if(e.hasParameter("SenderUsername")) {
-								String senderUsername = (String) e.getParameter("SenderUsername");
-								
-								// if the Event is a Snapshot Event
-								if(eventName.equals("Snapshot")) {
-									if(senderUsername.equals(username)) {
-										
-										/*
-										 *  if the Snapshot Event is from the corresponding architect
-										 */
-										
-										// pushes all stored Snapshot Events from other architects to the buffer
-										for(Event snapshotEvent : snapshotsForLocalV) {
-											storage.addToBuffer(snapshotEvent);
-										}
-										
-										// adds the incoming Snapshot Event to the buffer as well
-										storage.addToBuffer(e);
-										
-									} else {
-										/*
-										 * If the Snapshot Event is from the other architects
-										 */
-										
-										// stores the Snapshot Event
-										snapshotsForLocalV.add(e);
-									}
-								} else {
-									
-									// if the Event is a Design Event
-									storage.addToBuffer(e);
-								}
-							}
-							
-							// purges the buffer to LSV
-							forwardEventsToAdaptor(filterEvents(flipXTEAMAnalysisSwitches(purgeBuffer())));
-							break;
-							
-						case "HeadLocalV":
-							// adds to the buffer
-							storage.addToBuffer(e);
-							
-							// purges the buffer to LSV
-							forwardEventsToAdaptor(filterEvents(flipXTEAMAnalysisSwitches(purgeBuffer())));
-							break;
+				case "History":
+					
+					// adds all Events in the batch to the buffer, then forwards the 
+					// Events that are ready to FLAME Adaptor at once
+					for(Event evt : getHistoryEvents(e)) {
+						bufferEvent(evt);
 					}
-				
+					forwardBuffer();
+					
+					// lets FLAME Server send the next batch
+					sendHistoryAck(username, e);
+					
+					// asks for the history again if the replay has been aborted
+					checkHistoryEnd(username, e);
+					
 					break;
 				
 				//////////////////////////////////
@@ -430,6 +355,122 @@ public class XTEAMEngine extends FLAMEClient {
 		}
 	}
 	
+	/**
+	 * Adds a Design, Snapshot, or Update Event to the buffer according to the mode
+	 * 
+	 * @param e				The incoming Event
+	 * @return				True if the Event has been taken, false otherwise
+	 */
+	protected boolean bufferEvent(Event e) {
+		
+		// If the Event has IsLast parameter, that means
+		// the Event is a part of the initial update Events
+		if(e.hasParameter("IsLast")){
+			if( (boolean) e.getParameter("IsLast") ) {
+				// replace the XTEAM analysis attribute to 'O'
+				try {
+					flipXTEAMAnalysisSwitch(e, true);
+				} catch (Exception exc) {
+					printMsg(name, "Error: Failed to flip XTEAM analysis switch of an Event with IsLast because the Event does not have Value parameter: " + exc);
+					return false;
+				}
+			}
+		}
+		// If the Event does not have IsLast parameter, that means
+		// the Event is NOT a part of the initial update Events
+		else {
+			// replace the XTEAM analysis attributed to 'O'
+			try {
+				flipXTEAMAnalysisSwitch(e, true);
+			} catch (Exception exc) {
+				printMsg(name, "Error: Failed to flip XTEAM analysis switch of an Event without IsLast because the Event does not have Value parameter: " + exc);
+				return false;
+			}
+		}
+		
+		/*
+		 * The way LocalV is implemented is to invoke purgeBuffer() like the LSV 
+		 * engine while ignoring all Snapshot Events but the ones from the 
+		 * corresponding architect. By doing so, all Events from the corresponding
+		 * architect would be forwarded as they arrive while the other Events are
+		 * only forwarded when a Snapshot Event arrives from the corresponding 
+		 * architect.
+		 * 
+		 * For the record, purgeBuffer() purges the buffer to LSV + all events from
+		 * the corresponding SenderUsername.
+		 * 
+		 * While the code for LSV and HeadLocalV are identical, since LSV has the 
+		 * username of "LSV" and HeadLocalV has the username of the corresponding
+		 * architect's username, they would essentially behave differently.
+		 */
+		
+		// Adds the Event according to the mode
+		if(mode.equals("LocalV")) {
+			// adds to the buffer (ignore Snapshot Events from other architects)
+			if(e.hasParameter("SenderUsername")) {
+				String senderUsername = (String) e.getParameter("SenderUsername");
+				
+				// if the Event is a Snapshot Event
+				if(e.name.equals("Snapshot")) {
+					if(senderUsername.equals(username)) {
+						
+						/*
+						 *  if the Snapshot Event is from the corresponding architect
+						 */
+						
+						// pushes all stored Snapshot Events from other architects to the buffer, 
+						// which holds on to them until they are delivered
+						for(Event snapshotEvent : snapshotsForLocalV) {
+							storage.addToBuffer(snapshotEvent);
+						}
+						snapshotsForLocalV.clear();
+						
+						// adds the incoming Snapshot Event to the buffer as well
+						storage.addToBuffer(e);
+						
+					} else {
+						/*
+						 * If the Snapshot Event is from the other architects
+						 */
+						
+						// stores the Snapshot Event
+						snapshotsForLocalV.add(e);
+					}
+				} else {
+					
+					// if the Event is a Design Event
+					storage.addToBuffer(e);
+				}
+			}
+		} else {
+			// adds to the buffer
+			storage.addToBuffer(e);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Purges the buffer according to the mode and forwards the purged Events to FLAME Adaptor
+	 */
+	protected void forwardBuffer() {
+		
+		// Handles Events according to the mode 
+		switch (mode) {
+			case "MRSV":
+				// purges the buffer to MRV
+				forwardEventsToAdaptor(filterEvents(flipXTEAMAnalysisSwitches(purgeBufferAll())));
+				break;
+				
+			case "LSV":
+			case "LocalV":
+			case "HeadLocalV":
+				// purges the buffer to LSV
+				forwardEventsToAdaptor(filterEvents(flipXTEAMAnalysisSwitches(purgeBuffer())));
+				break;
+		}
+	}
+	
 	/**
 	 * Flips the XTEAM analysis switch attribute of an Event
 	 * 
@@ -530,6 +571,11 @@ public class XTEAMEngine extends FLAMEClient {
 			 */
 			int 	slaveManagerPort;
 			boolean	reverse;
+			boolean	coalesce;
+			boolean	cancelRunning;
+			int		maxRetries;
+			int		heartbeatTimeoutSec;
+			int		maxSlaves;
 			Path 	simulationResultPath;
 			Path	errorsFilename;
 			if(distributed == true) {
@@ -537,9 +583,20 @@ public class XTEAMEngine extends FLAMEClient {
 					// reads Slave Manager properties
 					slaveManagerPort 		= Utility.getIntProperty		(props, "SM_PORT");
 					reverse					= Utility.getBooleanProperty	(props, "REVERSE_CONFLICT_DETECTION");
+					coalesce				= Boolean.parseBoolean(props.getProperty("SM_COALESCE_REQUESTS", "false"));
+					cancelRunning			= Boolean.parseBoolean(props.getProperty("SM_CANCEL_SUPERSEDED", "false"));
+					maxRetries				= Integer.parseInt(props.getProperty("SM_MAX_RETRIES", "2"));
+					heartbeatTimeoutSec		= Integer.parseInt(props.getProperty("SM_HEARTBEAT_TIMEOUT_SEC", "60"));
+					maxSlaves				= Integer.parseInt(props.getProperty("SM_MAX_SLAVES", "64"));
+					
+					// the simulation results are extracted from archives
+					ArchiveUtility.setParallelExtraction(	Long.parseLong(props.getProperty("ARCHIVE_PARALLEL_THRESHOLD", String.valueOf(ArchiveUtility.DEFAULT_PARALLEL_THRESHOLD))),
+															Integer.parseInt(props.getProperty("ARCHIVE_PARALLEL_THREADS", "0")));
 					
 					// initiates Slave Manager
-					slaveManager 		= new SlaveManager(slaveManagerPort, reverse, getScreenLogger());
+					slaveManager 		= new SlaveManager(slaveManagerPort, reverse, coalesce, cancelRunning, getScreenLogger());
+					slaveManager.setFaultTolerance(maxRetries, heartbeatTimeoutSec);
+					slaveManager.setMaxSlaves(maxSlaves);
 					
 					// launches Slave Manager
 					slaveManager.launch();
@@ -547,6 +604,25 @@ public class XTEAMEngine extends FLAMEClient {
 					printMsg(name, "Error while launching Slave Manager: " + e);
 					return;
 				}
+			} 
+			/*
+			 * otherwise, the local simulations are built in reusable workspaces that have the
+			 * scaffold code, if a workspace directory is configured
+			 */
+			else if(props.getProperty("XTEAM_ENGINE_WORKSPACE_DIR") != null) {
+				try {
+					Path workspaceDirectory = Paths.get(props.getProperty("XTEAM_ENGINE_WORKSPACE_DIR")).resolve(username);
+					workspacePool = new WorkspacePool(scaffoldPath, workspaceDirectory, getScreenLogger());
+				} catch (Exception e) {
+					printMsg(name, "Error while preparing the workspaces; the scaffold code will be copied for every simulation: " + e);
+				}
+			}
+			
+			// the local simulations may send the results analyzed so far while they run
+			try {
+				partialResultIntervalSec = Integer.parseInt(props.getProperty("XTEAM_PARTIAL_RESULT_INTERVAL_SEC", "0"));
+			} catch (NumberFormatException nfe) {
+				printMsg(name, "Error: XTEAM_PARTIAL_RESULT_INTERVAL_SEC is not a number; partial results will not be sent: " + nfe);
 			}
 		
 			try {
@@ -622,7 +698,9 @@ public class XTEAMEngine extends FLAMEClient {
 																xteamInfo,
 																getScreenLogger(),
 																engine,
-																this);
+																this,
+																workspacePool,
+																partialResultIntervalSec);
 								simulation.start();
 							} catch (Exception e) {
 								printMsg(name, "Error: " + e);
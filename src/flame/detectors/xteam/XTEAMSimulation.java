@@ -100,6 +100,22 @@ public class XTEAMSimulation extends Thread {
 	 * ScreenLogger instance
 	 */
 	private			ScreenLogger				sl;
+	
+	/**
+	 * Pool of the workspaces that have the scaffold code; null to copy the scaffold code into
+	 * the simulation path instead
+	 */
+	private			WorkspacePool				workspacePool;
+	
+	/**
+	 * Interval in seconds at which partial results are sent while the simulation runs; 0 or less not to
+	 */
+	private			int							partialResultIntervalSec;
+	
+	/**
+	 * Interval in milliseconds at which the simulation result is read while the simulation runs
+	 */
+	private static final long					ANALYSIS_POLL_MILLIS			= 500;
 
 ///////////////////////////////////////////////
 // Constructors
@@ -114,6 +130,8 @@ public class XTEAMSimulation extends Thread {
 	 * @param targetTime		Target time (logical time) to which the simulation analysis runs
 	 * @param vsCompilerPath	Visual Studio 2008 compiler path
 	 * @param screenLogger		ScreenLogger instance
+	 * @param workspacePool		Pool of the scaffold workspaces; null to copy the scaffold code
+	 * @param partialResultIntervalSec	Interval in seconds at which partial results are sent; 0 not to
 	 */
 	public XTEAMSimulation (	String 						mode,
 								String						username,
@@ -124,7 +142,9 @@ public class XTEAMSimulation extends Thread {
 								Path						xteamInfo,
 								ScreenLogger				screenLogger,
 								XTEAMEngine					engine,
-								XTEAMEngine.EventReceiver	receiver) throws Exception {
+								XTEAMEngine.EventReceiver	receiver,
+								WorkspacePool				workspacePool,
+								int							partialResultIntervalSec) throws Exception {
 		
 		//this.mode 				= mode;
 		this.username			= username;
@@ -137,6 +157,8 @@ public class XTEAMSimulation extends Thread {
 		sl						= screenLogger;
 		this.engine				= engine;
 		this.receiver			= receiver;
+		this.workspacePool		= workspacePool;
+		this.partialResultIntervalSec	= partialResultIntervalSec;
 		arrival_time			= Utility.convertDate(System.currentTimeMillis());
 		
 		readXTEAMInfo();
@@ -295,86 +317,117 @@ public class XTEAMSimulation extends Thread {
 		
 		// List of Events to return
 		List<Event> 	events 	= new ArrayList<>();
+		
+		// Path to where the simulation result is saved
+		Path			simulationResultPath;
+		
+		// Analysis warning messages
+		Map<String, List<String>> analysis_warnings;
+		
+		// Analyzes the simulation result while the simulation runs
+		ResultAnalyzer analyzer = new ResultAnalyzer(xteamAnalysisTargetValueIndex, targetTime, sl, "XTEAMSimulation");
 	
 		/////////////////////////////////////////
 		// Gets the simulation result
 		/////////////////////////////////////////
 		
-		// (1) Copies the scaffold code into the simulation path
+		// (1) Borrows a workspace that has the scaffold code and loads the simulation code into it,
+		// or copies the scaffold code into the simulation path
 		// Scaffold code is under: scaffoldPath
 		
-		FileCopier visitor = new FileCopier(scaffoldPath, simulationPath, sl);
-		try {
-			Files.walkFileTree(scaffoldPath, visitor);
-		} catch (Exception exc) {
-			throw new Exception ("During copying scaffold code to simulation: " + exc);
+		Path workspace = simulationPath;
+		if(workspacePool != null) {
+			workspace = workspacePool.acquire();
 		}
 		
-		// (2) Finds what .cpp and .h files this simulation has
-		FileFinder finder = new FileFinder(sl);
-		
-		// Traverses the simulation code to have the lists of files
+		// a workspace is reused only when the run leaves it as it found it
+		boolean clean = false;
 		try {
-			Files.walkFileTree(simulationCodePath, finder);
-		} catch (IOException ioe) {
-			throw new Exception ("During file walk-in to have list of .cpp and .h files: " + ioe);
-		}
+			if(workspacePool != null) {
+				try {
+					workspacePool.loadSimulationCode(workspace, simulationPath.relativize(simulationCodePath), simulationPath);
+				} catch (Exception exc) {
+					throw new Exception ("During loading simulation code to " + workspace + ": " + exc);
+				}
+			} else {
+				FileCopier visitor = new FileCopier(scaffoldPath, simulationPath, sl);
+				try {
+					Files.walkFileTree(scaffoldPath, visitor);
+				} catch (Exception exc) {
+					throw new Exception ("During copying scaffold code to simulation: " + exc);
+				}
+			}
 		
-		// (3) Manipulates the .vcproj file
-		Path simProjFile = simulationPath.resolve("XTEAM_Simulation/XTEAM_Simulation.vcproj");
-		try {
+			// (2) Finds what .cpp and .h files this simulation has
+			FileFinder finder = new FileFinder(sl);
+		
+			// Traverses the simulation code to have the lists of files
+			try {
+				Files.walkFileTree(simulationCodePath, finder);
+			} catch (IOException ioe) {
+				throw new Exception ("During file walk-in to have list of .cpp and .h files: " + ioe);
+			}
+		
+			// (3) Manipulates the .vcproj file
+			Path simProjFile = workspace.resolve("XTEAM_Simulation/XTEAM_Simulation.vcproj");
+			try {
 	
-			String template1 = new String (Files.readAllBytes(scaffoldPath.resolve("XTEAM_Simulation/1.vcproj.part")));;
-			String template2 = new String (Files.readAllBytes(scaffoldPath.resolve("XTEAM_Simulation/2.vcproj.part")));;
-			String template3 = new String (Files.readAllBytes(scaffoldPath.resolve("XTEAM_Simulation/3.vcproj.part")));;
+				String template1 = new String (Files.readAllBytes(scaffoldPath.resolve("XTEAM_Simulation/1.vcproj.part")));;
+				String template2 = new String (Files.readAllBytes(scaffoldPath.resolve("XTEAM_Simulation/2.vcproj.part")));;
+				String template3 = new String (Files.readAllBytes(scaffoldPath.resolve("XTEAM_Simulation/3.vcproj.part")));;
 			
-			String vcproj =	template1 + Constants.endl +
-							finder.getCPPFiles() +
-							template2 + Constants.endl +
-							finder.getHFiles() +
-							template3;
+				String vcproj =	template1 + Constants.endl +
+								finder.getCPPFiles() +
+								template2 + Constants.endl +
+								finder.getHFiles() +
+								template3;
 			
-			Files.write(simProjFile, vcproj.getBytes("UTF-8"));
-		} catch (IOException ioe) {
-			throw new Exception ("Failed to manipulate the .vcproj file: " + ioe);
-		}
-		
-		/////////////////////////////////////////
-		// Compiles the simulation code
-		/////////////////////////////////////////
+				Files.write(simProjFile, vcproj.getBytes("UTF-8"));
+			} catch (IOException ioe) {
+				throw new Exception ("Failed to manipulate the .vcproj file: " + ioe);
+			}
 		
-		ArrayList<String> errors;
-		try {
-			engine.getLock_XTEAM();
-			printMsg("Compiling the simulation code for [" + arrival_time + "] ...");
-			errors = compile(simProjFile);
-		} finally {
-			printMsg("Compilation done for [" + arrival_time + "]");
-			engine.releaseLock_XTEAM();			
-		}
+			/////////////////////////////////////////
+			// Compiles the simulation code
+			/////////////////////////////////////////
 		
-		// Reads analysis warning messages
-		Map<String, List<String>> analysis_warnings = readAnalysisWarnings();
+			ArrayList<String> errors;
+			try {
+				engine.getLock_XTEAM();
+				printMsg("Compiling the simulation code for [" + arrival_time + "] ...");
+				errors = compile(simProjFile);
+			} finally {
+				printMsg("Compilation done for [" + arrival_time + "]");
+				engine.releaseLock_XTEAM();			
+			}
 		
-		// If there is any syntax error from the simulation project compilation
-		if(errors.size() > 0) {
-			// Creates an XTEAM Event with the syntax errors
-			Event e = new Event ("XTEAM");
-			e.addParameter("SyntacticConflicts", errors);
-			e.addParameter("AnalysisWarnings", analysis_warnings);
-			events.add(e);
-			return events;
-		} 
+			// Reads analysis warning messages
+			analysis_warnings = readAnalysisWarnings();
 		
-		/////////////////////////////////////////
-		// Runs the simulation code
-		/////////////////////////////////////////
+			// If there is any syntax error from the simulation project compilation
+			if(errors.size() > 0) {
+				// Creates an XTEAM Event with the syntax errors
+				Event e = new Event ("XTEAM");
+				e.addParameter("SyntacticConflicts", errors);
+				e.addParameter("AnalysisWarnings", analysis_warnings);
+				events.add(e);
+				clean = true;
+				return events;
+			} 
 		
-		Path simulationResultPath;
+			/////////////////////////////////////////
+			// Runs the simulation code
+			/////////////////////////////////////////
 		
-		printMsg("Executing the simulation code for [" + arrival_time + "] ...");
-		simulationResultPath = runSimulation();
-		printMsg("Execution done for [" + arrival_time + "]");
+			printMsg("Executing the simulation code for [" + arrival_time + "] ...");
+			simulationResultPath = runSimulation(workspace, analyzer, analysis_warnings);
+			printMsg("Execution done for [" + arrival_time + "]");
+			clean = true;
+		} finally {
+			if(workspacePool != null) {
+				workspacePool.release(workspace, clean);
+			}
+		}
 		
 		// checks if the simulation completion tag file has been created,
 		// if the files does not exist, that means the simulation was
@@ -390,12 +443,28 @@ public class XTEAMSimulation extends Thread {
 		}
 
 		
-		// Analyzes the results
+		// Reads the rest of the results; most of them have been analyzed during the execution
 		printMsg("Analyzing the simulation output for [" + arrival_time + "] ...");
-		Results 		results 		= analyzeResults(simulationResultPath);
-		Set<Result>		resultsSet 		= results.getResults(); 
+		Results 		results 		= analyzer.finish(simulationResultPath);
 		printMsg("Analysis done for [" + arrival_time + "]");
 		
+		events.addAll(createResultEvents(results, analysis_warnings));
+		
+		return events;
+	}
+	
+	/**
+	 * Creates the XTEAM Events that carry the simulation results
+	 * 
+	 * @param results				The simulation results
+	 * @param analysis_warnings		Analysis warning messages
+	 * @return						An XTEAM Event per analysis type
+	 */
+	protected List<Event> createResultEvents(Results results, Map<String, List<String>> analysis_warnings) {
+		
+		List<Event> 	events 			= new ArrayList<>();
+		Set<Result>		resultsSet 		= results.getResults(); 
+		
 		// Adds the results into the Events
 		for (Result result : resultsSet) {	
 			String 				analysis_type 	= result.getAnalysisType();
@@ -602,14 +671,28 @@ public class XTEAMSimulation extends Thread {
 	/**
 	 * Runs the simulation code
 	 * 
-	 * @return				Path to directory where the simulation result is saved
+	 * @param workspace			Path to where the simulation has been built
+	 * @param analyzer			Analyzer that reads the simulation result while the simulation runs
+	 * @param analysis_warnings	Analysis warning messages the partial results carry
+	 * @return					Path to directory where the simulation result is saved
 	 * @throws Exception
 	 */
-	protected Path runSimulation() throws Exception {
+	protected Path runSimulation(Path workspace, ResultAnalyzer analyzer, Map<String, List<String>> analysis_warnings) throws Exception {
 		
-		Path executableDirPath 	= simulationPath.resolve(mode);
+		Path executableDirPath 	= workspace.resolve(mode);
 		Path executablePath		= executableDirPath.resolve("XTEAM_Simulation.exe");
 		
+		// remembers what the workspace had, so that the files the execution creates can be moved out
+		Set<String> existingFiles = null;
+		if(!workspace.equals(simulationPath)) {
+			existingFiles = WorkspacePool.listFiles(executableDirPath);
+			analyzer.ignore(existingFiles);
+		}
+		
+		// tails the simulation result while the simulation runs
+		ResultTailer tailer = new ResultTailer(analyzer, executableDirPath, analysis_warnings);
+		tailer.start();
+		
 		try
 		{
 			//String[] runCmd = {	executablePath.toString(), executableDirPath.toString() };
@@ -617,138 +700,117 @@ public class XTEAMSimulation extends Thread {
 			Runtime.getRuntime().exec(runCmd, null, executableDirPath.toFile()).waitFor();
 		} catch (Exception e) {
 			throw new Exception ("Running simulation executable failed: " + e);
+		} finally {
+			tailer.terminate();
+		}
+		
+		// moves the simulation result to the simulation path
+		if(existingFiles != null) {
+			Path resultDirPath = simulationPath.resolve(mode);
+			try {
+				WorkspacePool.moveNewFiles(executableDirPath, existingFiles, resultDirPath);
+			} catch (IOException ioe) {
+				throw new Exception ("Moving the simulation result failed: " + ioe);
+			}
+			return resultDirPath;
 		}
 		
 		return executableDirPath;
 	}
 	
 	/**
-	 * Analyzes the simulation results
+	 * Sends the results analyzed so far while the simulation still runs
 	 * 
-	 * @param analysisType	Analysis type (Energy, Latency, ...)
-	 * @return				An XTEAM Event for the given analysis type
-	 * @throws Exception	Cannot complete the analysis
+	 * @param results				The simulation results so far
+	 * @param analysis_warnings		Analysis warning messages
 	 */
-	protected Results analyzeResults (Path targetDir) throws Exception {
+	protected void sendPartialResults(Results results, Map<String, List<String>> analysis_warnings) {
+		for(Event newEvent : createResultEvents(results, analysis_warnings)) {
+			newEvent.addParameter("Partial", 			Boolean.valueOf(true));
+			newEvent.addParameter("SenderUsername", 	username);
+			newEvent.addParameter("OriginComponent", 	"XTEAM Engine");
+			newEvent.addParameter("ArrivalTime", 		arrival_time);
+			
+			engine.sendRequest(newEvent);
+		}
+	}
+	
+	/**
+	 * Thread that reads the simulation result while the simulation runs, and sends the partial
+	 * results if they are to be sent
+	 * 
+	 * @author 				<a href="mailto:jaeyounb@usc.edu">Jae young Bang</a>
+	 * @version				2015.01
+	 */
+	protected class ResultTailer extends Thread {
 		
-		Results results = new Results();		
+		protected final	ResultAnalyzer				analyzer;
+		protected final	Path						directory;
+		protected final	Map<String, List<String>>	analysis_warnings;
+		protected		boolean						terminated		= false;
 		
-		// adds the analysis types that are defined in the XTEAMInfo.dat file
-		for(String key : xteamAnalysisTargetValueIndex.keySet()) {
-			results.createResult(key);
+		public ResultTailer (ResultAnalyzer analyzer, Path directory, Map<String, List<String>> analysis_warnings) {
+			this.analyzer			= analyzer;
+			this.directory			= directory;
+			this.analysis_warnings	= analysis_warnings;
 		}
 		
-		// Iterates through the simulation directory to find .csv files
-		try (DirectoryStream<Path> ds = Files.newDirectoryStream(targetDir)) {
+		@Override
+		public void run() {
+			long nextPartialResult = System.currentTimeMillis() + partialResultIntervalSec * 1000L;
 			
-			for (Iterator<Path> it = ds.iterator(); it.hasNext(); ) {
-				
-				// Gets a file path
-				Path file 		= (Path) it.next();
-				String filename	= file.getFileName().toString();
-				
-				// If the extension is not .csv, skips the file
-				if(!getExtension(file).toLowerCase().equals("csv")) {
-					continue;
-				}
-				
-				// Component name and analysis type from the filename
-				String 		componentName 	= "";			
-				String		analysisType	= "";
-				
-				// Gets the component name and analysis type from the filename
-				try {
-					componentName 	= getComponentName(file);
-					analysisType 	= getAnalysisType(file);
-				} catch (Exception exc) {
-					printMsg("Cannot get component information from [" + filename + "]: " + exc);
+			while (waitForNextPoll()) {
+				if(!analyzer.poll(directory) || partialResultIntervalSec <= 0) {
 					continue;
 				}
 				
-				// Gets the Result with the AnalysisType
-				Result result = results.getResult(analysisType);
-				
-				// gets the value index of the analysis type
-				Integer 	index = xteamAnalysisTargetValueIndex.get(Utility.toCamelCase(analysisType.trim()));
-				if(index == null) {
-					printMsg("[" + analysisType + " for " + componentName + "] is an unknown analysis type.");
-					continue;
+				// sends the results so far at most once an interval
+				long now = System.currentTimeMillis();
+				if(now >= nextPartialResult) {
+					sendPartialResults(analyzer.getResults(), analysis_warnings);
+					nextPartialResult = now + partialResultIntervalSec * 1000L;
 				}
-				
-				double 	totalValue	= 0;		// the summation of all values 
-				double	maxTime		= 0;		// the time that has the maximum value
-				double	maxValue	= 0;		// the maximum of all values
-				int		count		= 0;		// line count
-				int		success		= 0;		// success count
-				
-				// Opens the file, reads in the numbers, and analyzes them
-				try (BufferedReader br = Files.newBufferedReader(file, Constants.charset)) {
-					
-					String 	line 				= null;		// a line in the .csv file
-					double	current_time		= 0;		// max value time cursor
-					double	current_cum_value	= 0;		// cumulative value for the time so far
-					
-					// iterates through the lines in the .csv file
-					while((line = br.readLine()) != null) {
-						String[] lineTokens = line.split(",");
-						
-						// Skips the first row that has the column names
-						if(count++ == 0) {
-							continue;
-						}
-						
-						// gets the time of the line
-						double thisTime = Double.parseDouble(lineTokens[0]);
-						
-						// Checks if the line is within the target time
-						if (thisTime <= targetTime) {
-							// if the value is NOT a missing value
-							if(!lineTokens[index].trim().equals("-")) {
-								double value = Double.parseDouble(lineTokens[index]);
-								
-								// accumulates to total value
-								totalValue	+= value;
-								
-								// checks if the time of the line differs from the current_time
-								if(thisTime > current_time) {
-									// checks if the cumulative value is larger than the max value
-									if(maxValue < current_cum_value) {
-										maxValue 	= current_cum_value;
-										maxTime 	= current_time;
-									}
-									
-									// resets the current values
-									current_time 		= thisTime;
-									current_cum_value 	= (double) 0;
-								} 
-								
-								// accumulates to current_cum_value
-								current_cum_value += value;
-								
-								// increases the success number
-								success++;
-							}
-						} else {
-							printMsg(componentName + " result ended [" + thisTime + "/" + targetTime + "]");
-							break;
-						}
-					}
-				} catch (IOException ioe_br) {
-					throw new Exception ("Error while reading " + filename + " : " + ioe_br);
-				} catch (NumberFormatException nfe) {
-					throw new Exception ("Value parsing exception while reading " + filename + ": " + nfe);
-				} catch (Exception exc) {
-					throw new Exception ("Unexpected exception while reading " + filename + " : " + exc);
+			}
+		}
+		
+		/**
+		 * Waits until the next poll; a read is never interrupted, so that no file is left half-read
+		 * 
+		 * @return			Whether to poll again
+		 */
+		protected synchronized boolean waitForNextPoll() {
+			if(!terminated) {
+				try {
+					wait(ANALYSIS_POLL_MILLIS);
+				} catch (InterruptedException ie) {
+					terminated = true;
 				}
-				
-				// Adds the component name and the value pair
-				result.addComponentAnalysis(componentName, totalValue, maxTime, maxValue, count-1, success);
 			}
-		} catch (IOException ioe) {
-			System.out.println("Error while iterating through the .csv files: " + ioe);
+			return !terminated;
 		}
 		
-		return results;
+		/**
+		 * Stops the thread and waits for its last poll to finish, so that the analyzer can be
+		 * used from the calling thread afterwards
+		 */
+		public void terminate() {
+			synchronized (this) {
+				terminated = true;
+				notifyAll();
+			}
+			
+			boolean interrupted = false;
+			while (isAlive()) {
+				try {
+					join();
+				} catch (InterruptedException ie) {
+					interrupted = true;
+				}
+			}
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 	
 	
@@ -785,60 +847,6 @@ public class XTEAMSimulation extends Thread {
 		return tokens[tokens.length - 1];
 	}
 	
-	/**
-	 * Gets the component name from the XTEAM simulation result file
-	 * 
-	 * @param file			Path to the file
-	 * @return				Component name
-	 */
-	protected String getComponentName (Path file) throws Exception {
-		String 		filename		= file.getFileName().toString();
-		String[] 	tokens 			= filename.split("\\.");
-		String[] 	filenameTokens 	= tokens[0].split("_");
-		String 		componentName	= null;
-		
-		// If the file name is too short and does NOT contain the component name
-		if(filenameTokens.length >= 2) {
-			// Concatenates the component name with the relative ID of the component
-			for(int i=0; i < filenameTokens.length-2; i++) {
-				if(i != 0) {
-					componentName += "_";
-				}
-				componentName += filenameTokens[i];
-			}
-			componentName = filenameTokens[0] + "_" + filenameTokens[1];
-		} else {
-			throw new Exception ("missing the component name");
-		}
-
-		return componentName;
-	}
-	
-	/**
-	 * Gets the analysis type from the XTEAM simulation result file
-	 * 
-	 * @param file			Path to the file
-	 * @return				Analysis type
-	 * @throws Exception	Cannot get the analysis type
-	 */
-	protected String getAnalysisType (Path file) throws Exception{
-		String 		analysisType 	= new String();
-		
-		String 		filename		= file.getFileName().toString();
-		String[] 	tokens 			= filename.split("\\.");
-		String[] 	filenameTokens 	= tokens[0].split("_");
-		
-		// Gets the analysis type
-		// Takes the second last token as the analysis type name
-		if(filenameTokens.length >= 3) {
-			analysisType += filenameTokens[filenameTokens.length-2];
-		} else {
-			throw new Exception ("missing the analysis type");
-		}
-		
-		return analysisType;
-	}
-	
 	/**
 	 * Print screen messages
 	 * 
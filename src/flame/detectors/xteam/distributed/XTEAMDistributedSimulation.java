@@ -21,6 +21,7 @@ import flame.Constants;
 import flame.ScreenLogger;
 import flame.Utility;
 import flame.detectors.xteam.Result;
+import flame.detectors.xteam.ResultAnalyzer;
 import flame.detectors.xteam.Results;
 import flame.detectors.xteam.XTEAMEngine;
 import Prism.core.Event;
@@ -81,6 +82,16 @@ public class XTEAMDistributedSimulation {
 	 */
 	protected		String						arrival_time;
 	
+	/**
+	 * Switch set when a newer simulation of the same architect supersedes this one while it runs
+	 */
+	protected volatile	boolean					cancelled						= false;
+	
+	/**
+	 * Number of times this simulation has been dispatched to a slave
+	 */
+	protected		int							attempts						= 0;
+	
 	/**
 	 * XTEAM Engine instance
 	 */
@@ -128,6 +139,10 @@ public class XTEAMDistributedSimulation {
 // Data Access Member Methods
 ///////////////////////////////////////////////	
 
+	public String getUsername() {
+		return username;
+	}
+	
 	public Path getSimulationCodePath() {
 		return simulationCodePath;
 	}
@@ -140,6 +155,30 @@ public class XTEAMDistributedSimulation {
 		return simulationResultPath;
 	}
 	
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	public int getAttempts() {
+		return attempts;
+	}
+	
+	/**
+	 * Counts a dispatch of this simulation to a slave
+	 * 
+	 * @return					Number of dispatches so far
+	 */
+	public int addAttempt() {
+		return ++attempts;
+	}
+	
+	/**
+	 * Marks this simulation as superseded; Slave Manager cancels it on the slave
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+	
 ///////////////////////////////////////////////
 // Member Methods
 ///////////////////////////////////////////////	
@@ -459,178 +498,9 @@ public class XTEAMDistributedSimulation {
 	 */
 	protected Results analyzeResults (Path targetDir) throws Exception {
 		
-		Results results = new Results();		
-		
-		// adds the analysis types that are defined in the XTEAMInfo.dat file
-		for(String key : xteamAnalysisTargetValueIndex.keySet()) {
-			results.createResult(key);
-		}
-		
-		// Iterates through the simulation directory to find .csv files
-		try (DirectoryStream<Path> ds = Files.newDirectoryStream(targetDir)) {
-			
-			for (Iterator<Path> it = ds.iterator(); it.hasNext(); ) {
-				
-				// Gets a file path
-				Path file 		= (Path) it.next();
-				String filename	= file.getFileName().toString();
-				
-				// If the extension is not .csv, skips the file
-				if(!flame.FileUtility.getExtension(file).toLowerCase().equals("csv")) {
-					continue;
-				}
-				
-				// Component name and analysis type from the filename
-				String 		componentName 	= "";			
-				String		analysisType	= "";
-				
-				// Gets the component name and analysis type from the filename
-				try {
-					componentName 	= getComponentName(file);
-					analysisType 	= getAnalysisType(file);
-				} catch (Exception exc) {
-					printMsg("Cannot get component information from [" + filename + "]: " + exc);
-					continue;
-				}
-				
-				// Gets the Result with the AnalysisType
-				Result result = results.getResult(analysisType);
-				
-				// gets the value index of the analysis type
-				Integer 	index = xteamAnalysisTargetValueIndex.get(Utility.toCamelCase(analysisType.trim()));
-				if(index == null) {
-					printMsg("[" + analysisType + " for " + componentName + "] is an unknown analysis type.");
-					continue;
-				}
-				
-				double 	totalValue	= 0;		// the summation of all values 
-				double	maxTime		= 0;		// the time that has the maximum value
-				double	maxValue	= 0;		// the maximum of all values
-				int		count		= 0;		// line count
-				int		success		= 0;		// success count
-				
-				// Opens the file, reads in the numbers, and analyzes them
-				try (BufferedReader br = Files.newBufferedReader(file, Constants.charset)) {
-					
-					String 	line 				= null;		// a line in the .csv file
-					double	current_time		= 0;		// max value time cursor
-					double	current_cum_value	= 0;		// cumulative value for the time so far
-					
-					// iterates through the lines in the .csv file
-					while((line = br.readLine()) != null) {
-						String[] lineTokens = line.split(",");
-						
-						// Skips the first row that has the column names
-						if(count++ == 0) {
-							continue;
-						}
-						
-						// gets the time of the line
-						double thisTime = Double.parseDouble(lineTokens[0]);
-						
-						// Checks if the line is within the target time
-						if (thisTime <= targetTime) {
-							// if the value is NOT a missing value
-							if(!lineTokens[index].trim().equals("-")) {
-								double value = Double.parseDouble(lineTokens[index]);
-								
-								// accumulates to total value
-								totalValue	+= value;
-								
-								// checks if the time of the line differs from the current_time
-								if(thisTime > current_time) {
-									// checks if the cumulative value is larger than the max value
-									if(maxValue < current_cum_value) {
-										maxValue 	= current_cum_value;
-										maxTime 	= current_time;
-									}
-									
-									// resets the current values
-									current_time 		= thisTime;
-									current_cum_value 	= (double) 0;
-								} 
-								
-								// accumulates to current_cum_value
-								current_cum_value += value;
-								
-								// increases the success number
-								success++;
-							}
-						} else {
-							printMsg(componentName + " result ended [" + thisTime + "/" + targetTime + "]");
-							break;
-						}
-					}
-				} catch (IOException ioe_br) {
-					throw new Exception ("Error while reading " + filename + " : " + ioe_br);
-				} catch (NumberFormatException nfe) {
-					throw new Exception ("Value parsing exception while reading " + filename + ": " + nfe);
-				} catch (Exception exc) {
-					throw new Exception ("Unexpected exception while reading " + filename + " : " + exc);
-				}
-				
-				// Adds the component name and the value pair
-				result.addComponentAnalysis(componentName, totalValue, maxTime, maxValue, count-1, success);
-			}
-		} catch (IOException ioe) {
-			System.out.println("Error while iterating through the .csv files: " + ioe);
-		}
-		
-		return results;
-	}
-	
-	/**
-	 * Gets the component name from the XTEAM simulation result file
-	 * 
-	 * @param file			Path to the file
-	 * @return				Component name
-	 */
-	protected String getComponentName (Path file) throws Exception {
-		String 		filename		= file.getFileName().toString();
-		String[] 	tokens 			= filename.split("\\.");
-		String[] 	filenameTokens 	= tokens[0].split("_");
-		String 		componentName	= null;
-		
-		// If the file name is too short and does NOT contain the component name
-		if(filenameTokens.length >= 2) {
-			// Concatenates the component name with the relative ID of the component
-			for(int i=0; i < filenameTokens.length-2; i++) {
-				if(i != 0) {
-					componentName += "_";
-				}
-				componentName += filenameTokens[i];
-			}
-			componentName = filenameTokens[0] + "_" + filenameTokens[1];
-		} else {
-			throw new Exception ("missing the component name");
-		}
-
-		return componentName;
-	}
-	
-	/**
-	 * Gets the analysis type from the XTEAM simulation result file
-	 * 
-	 * @param file			Path to the file
-	 * @return				Analysis type
-	 * @throws Exception	Cannot get the analysis type
-	 */
-	protected String getAnalysisType (Path file) throws Exception{
-		String 		analysisType 	= new String();
-		
-		String 		filename		= file.getFileName().toString();
-		String[] 	tokens 			= filename.split("\\.");
-		String[] 	filenameTokens 	= tokens[0].split("_");
-		
-		// Gets the analysis type
-		// Takes the second last token as the analysis type name
-		if(filenameTokens.length >= 3) {
-			analysisType += filenameTokens[filenameTokens.length-2];
-		} else {
-			throw new Exception ("missing the analysis type");
-		}
-		
-		return analysisType;
+		// the result arrives after the execution, so all of it is read at once
+		ResultAnalyzer analyzer = new ResultAnalyzer(xteamAnalysisTargetValueIndex, targetTime, screenLogger, "DistSim");
+		return analyzer.finish(targetDir);
 	}
 	
 	/**
@@ -0,0 +1,777 @@
+package flame.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import flame.Constants;
+import flame.EventStorage.HistoryImage;
+import flame.ScreenLogger;
+import Prism.core.Event;
+
+/**
+ * EventJournal is a binary write-ahead journal of the Events FLAME Server stores.
+ * FLAME Server rebuilds its EventStorage from the journal when it restarts. <p>
+ *
+ * Each record is the length and the CRC32 of an encoded Event followed by the
+ * encoded Event. Appending threads wait until their records are forced to the disk,
+ * but a single writer thread forces all records that have piled up at once, so
+ * concurrent appends share one fsync. A torn record at the end of the journal
+ * (e.g. after a crash in the middle of a write) is cut off during recovery. <p>
+ *
+ * The journal is compacted once a generation of it holds enough records: the
+ * appending moves on to the next generation (the journal path suffixed with the
+ * generation number), and an image of the EventStorage at that moment is written
+ * to a snapshot next to the journal. The earlier generations are deleted once the
+ * snapshot is on the disk, so a recovery reads the snapshot and replays only the
+ * records of the generations that followed it.
+ *
+ * @author 					<a href=mailto:jaeyounb@usc.edu>Jae young Bang</a>
+ * @version					2013.05
+ */
+public class EventJournal {
+
+///////////////////////////////////////////////////////////
+//	Member variables
+///////////////////////////////////////////////////////////
+
+	/**
+	 * Bytes at the beginning of every journal file
+	 */
+	protected static final byte[]	MAGIC				= { 'F', 'L', 'J', '1' };
+
+	/**
+	 * Bytes at the beginning of every snapshot file
+	 */
+	protected static final byte[]	SNAPSHOT_MAGIC		= { 'F', 'L', 'S', '1' };
+
+	/**
+	 * Default number of records in a generation after which the journal is compacted
+	 */
+	public static final int			DEFAULT_COMPACT_SIZE = 10000;
+
+	/**
+	 * Records larger than this are considered corrupted
+	 */
+	protected static final int		MAX_RECORD_LENGTH	= 64 * 1024 * 1024;
+
+	/**
+	 * Parameter value type tags
+	 */
+	protected static final byte		TYPE_NULL			= 0;
+	protected static final byte		TYPE_STRING			= 1;
+	protected static final byte		TYPE_INTEGER		= 2;
+	protected static final byte		TYPE_BOOLEAN		= 3;
+	protected static final byte		TYPE_LONG			= 4;
+	protected static final byte		TYPE_DOUBLE			= 5;
+	protected static final byte		TYPE_OBJECT			= 9;
+
+	/**
+	 * Path to the journal file
+	 */
+	protected Path					path;
+
+	/**
+	 * Milliseconds the writer waits for more records before forcing them to the disk
+	 */
+	protected int					syncInterval;
+
+	/**
+	 * Number of records in a generation after which the journal is compacted, 0 or less for never
+	 */
+	protected int					compactSize;
+
+	/**
+	 * Generation the records are appended to
+	 */
+	protected long					generation			= 0;
+
+	/**
+	 * Number of records appended since the last compaction
+	 */
+	protected long					sinceCompaction		= 0;
+
+	/**
+	 * Whether a compaction is going on
+	 */
+	protected boolean				compacting			= false;
+
+	/**
+	 * Channel of the journal file
+	 */
+	protected FileChannel			channel;
+
+	/**
+	 * Buffered stream on top of the channel
+	 */
+	protected DataOutputStream		out;
+
+	/**
+	 * Encoded records waiting to be written
+	 */
+	protected BlockingQueue<byte[]>	pending				= new LinkedBlockingQueue<byte[]> ();
+
+	/**
+	 * Number of records handed to the writer so far
+	 */
+	protected long					appended			= 0;
+
+	/**
+	 * Number of records forced to the disk so far
+	 */
+	protected long					committed			= 0;
+
+	/**
+	 * Failure of the writer, after which no record can be appended
+	 */
+	protected IOException			failure				= null;
+
+	/**
+	 * Lock that appending threads wait on until their records are committed
+	 */
+	protected final Object			commitLock			= new Object();
+
+	/**
+	 * Lock that keeps the writer and a compaction from touching the channel at once
+	 */
+	protected final Object			channelLock			= new Object();
+
+	/**
+	 * Screen Logger passed from the owner Component
+	 */
+	protected ScreenLogger			sl;
+
+
+///////////////////////////////////////////////
+//	Constructors
+///////////////////////////////////////////////
+
+	/**
+	 * Default constructor
+	 *
+	 * @param path			Path to the journal file
+	 * @param syncInterval	Milliseconds the writer waits for more records before forcing them to the disk
+	 * @param compactSize	Number of records in a generation after which the journal is compacted, 0 for never
+	 * @param screenLogger	Screen Logger of the owner
+	 */
+	public EventJournal(Path path, int syncInterval, int compactSize, ScreenLogger screenLogger) {
+		this.path			= path;
+		this.syncInterval	= Math.max(0, syncInterval);
+		this.compactSize	= compactSize;
+		sl					= screenLogger;
+	}
+
+
+///////////////////////////////////////////////
+//	Member Methods
+///////////////////////////////////////////////
+
+	/**
+	 * Reads the snapshot the journal has been compacted into, to be restored before
+	 * the records of the journal are replayed
+	 *
+	 * @return				The image in the snapshot, null if the journal has never been compacted
+	 * @throws IOException	The snapshot cannot be read
+	 */
+	public HistoryImage readSnapshot() throws IOException {
+
+		Path snapshot = getSnapshotPath();
+		if(Files.notExists(snapshot)) {
+			return null;
+		}
+
+		CRC32 crc = new CRC32();
+		try (DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(Files.newInputStream(snapshot), 1 << 16), crc))) {
+
+			// checks the header
+			byte[] magic = new byte[SNAPSHOT_MAGIC.length];
+			in.readFully(magic);
+			if(!Arrays.equals(magic, SNAPSHOT_MAGIC)) {
+				throw new IOException ("[" + snapshot + "] is not an Event journal snapshot");
+			}
+
+			// reads the image, which covers every generation before this one
+			long		from	= in.readLong();
+			HistoryImage image	= HistoryImage.read(in);
+
+			// the snapshot is moved in place only once it is complete, so a wrong checksum is not a torn tail
+			int sum = (int) crc.getValue();
+			if(in.readInt() != sum) {
+				throw new IOException ("[" + snapshot + "] has a wrong checksum");
+			}
+
+			generation = from;
+			return image;
+		}
+	}
+
+	/**
+	 * Reads all intact records of the generations that follow the snapshot, cuts off
+	 * a torn record at the end, and deletes the generations the snapshot covers
+	 *
+	 * @return				Events in the order they have been appended
+	 * @throws IOException	The journal cannot be read, or it has a record that cannot be decoded
+	 */
+	public ArrayList<Event> recover() throws IOException {
+
+		ArrayList<Event> ret = new ArrayList<Event> ();
+
+		long first = generation;
+		for(long existing : listGenerations()) {
+			if(existing < first) {
+				// left behind by a compaction that stopped before deleting it
+				Files.deleteIfExists(getGenerationPath(existing));
+			} else {
+				generation		= existing;
+				sinceCompaction	= recoverGeneration(getGenerationPath(existing), ret);
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Reads all intact records of a generation and cuts off a torn record at the end
+	 *
+	 * @param file			Path to the generation
+	 * @param ret			List to add the Events to
+	 * @return				Number of Events read
+	 * @throws IOException	The generation cannot be read, or it has a record that cannot be decoded
+	 */
+	protected int recoverGeneration(Path file, ArrayList<Event> ret) throws IOException {
+
+		// nothing to recover from a new generation
+		if(Files.size(file) == 0) {
+			return 0;
+		}
+
+		// a header torn by a crash right after the generation was created is cut off, and start() rewrites it
+		if(Files.size(file) < MAGIC.length) {
+			printMsg("Cutting off a torn header of " + Files.size(file) + " bytes from [" + file + "]");
+			try (FileChannel fc = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				fc.truncate(0);
+				fc.force(true);
+			}
+			return 0;
+		}
+
+		int		count		= 0;
+		long 	validLength = MAGIC.length;
+		CRC32	crc			= new CRC32();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+
+			// checks the header
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if(!Arrays.equals(magic, MAGIC)) {
+				throw new IOException ("[" + file + "] is not an Event journal");
+			}
+
+			// reads the records
+			while(true) {
+				byte[] record;
+				try {
+					int length 	= in.readInt();
+					int sum		= in.readInt();
+					if(length < 0 || length > MAX_RECORD_LENGTH) {
+						printMsg("Error: Found a corrupted record length [" + length + "] after " + count + " records of [" + file + "]");
+						break;
+					}
+
+					record = new byte[length];
+					in.readFully(record);
+
+					crc.reset();
+					crc.update(record, 0, length);
+					if((int) crc.getValue() != sum) {
+						printMsg("Error: Found a record with a wrong checksum after " + count + " records of [" + file + "]");
+						break;
+					}
+				} catch (EOFException eofe) {
+					break;
+				}
+
+				// an intact record is not a torn tail, so the journal is left as it is for someone to look into
+				try {
+					ret.add(decode(record));
+				} catch (Exception e) {
+					throw new IOException ("Record " + count + " of [" + file + "] is intact but cannot be decoded: " + e);
+				}
+
+				count++;
+				validLength += 8 + record.length;
+			}
+		}
+
+		// cuts off whatever follows the last intact record
+		if(validLength < Files.size(file)) {
+			printMsg("Cutting off " + (Files.size(file) - validLength) + " bytes at the end of [" + file + "]");
+			try (FileChannel fc = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				fc.truncate(validLength);
+				fc.force(true);
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Opens the journal for appending and starts the writer thread
+	 *
+	 * @throws IOException	The journal cannot be opened
+	 */
+	public void start() throws IOException {
+
+		// creates the parent directory
+		if(path.getParent() != null) {
+			Files.createDirectories(path.getParent());
+		}
+
+		openGeneration();
+
+		Writer writer = new Writer();
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Opens the current generation for appending, writing the header if it is new
+	 *
+	 * @throws IOException	The generation cannot be opened
+	 */
+	protected void openGeneration() throws IOException {
+		channel = FileChannel.open(getGenerationPath(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.position(channel.size());
+		out		= new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+
+		// writes the header to a new generation
+		if(channel.size() == 0) {
+			out.write(MAGIC);
+			out.flush();
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Checks if the current generation holds enough records to compact the journal
+	 *
+	 * @return				True if the journal should be compacted
+	 */
+	public synchronized boolean needsCompaction() {
+		return compactSize > 0 && !compacting && sinceCompaction >= compactSize;
+	}
+
+	/**
+	 * Claims the compaction of the journal for the calling thread
+	 *
+	 * @return				True if the caller is to compact the journal, false if it is not needed
+	 * 						or another thread is compacting it
+	 */
+	public synchronized boolean beginCompaction() {
+		if(!needsCompaction()) {
+			return false;
+		}
+
+		compacting 		= true;
+		sinceCompaction	= 0;
+		return true;
+	}
+
+	/**
+	 * Gives up the compaction claimed by {@link #beginCompaction()}
+	 */
+	public synchronized void abortCompaction() {
+		compacting = false;
+	}
+
+	/**
+	 * Moves the appending on to the next generation and writes the image to a snapshot
+	 * in the background. No record may be appended while this method runs, and the image
+	 * must have every record appended so far.
+	 *
+	 * @param image			Image of the EventStorage that has every record appended so far
+	 * @throws IOException	The next generation cannot be opened
+	 */
+	public void compact(HistoryImage image) throws IOException {
+
+		// moves on to the next generation
+		synchronized(channelLock) {
+			out.flush();
+			channel.force(true);
+
+			FileChannel			previousChannel = channel;
+			DataOutputStream	previousOut		= out;
+			generation++;
+			try {
+				openGeneration();
+			} catch (IOException ioe) {
+				generation--;
+				channel = previousChannel;
+				out		= previousOut;
+				throw ioe;
+			}
+			previousChannel.close();
+		}
+
+		// writes the snapshot without holding up the appending threads
+		Compactor compactor = new Compactor(image, generation);
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	/**
+	 * Thread that writes a snapshot and deletes the generations it covers
+	 *
+	 * @author 				<a href=mailto:jaeyounb@usc.edu>Jae young Bang</a>
+	 * @version				2013.05
+	 */
+	protected class Compactor extends Thread {
+
+		/**
+		 * Image to write
+		 */
+		protected HistoryImage	image;
+
+		/**
+		 * The first generation the image does not cover
+		 */
+		protected long			from;
+
+		protected Compactor(HistoryImage image, long from) {
+			this.image 	= image;
+			this.from	= from;
+		}
+
+		public void run() {
+			long start = System.currentTimeMillis();
+			try {
+				Path snapshot 	= getSnapshotPath();
+				Path temporary	= snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+
+				// writes the snapshot aside, so that a crash never leaves a torn snapshot behind
+				CRC32 crc = new CRC32();
+				try (FileChannel fc = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					DataOutputStream data = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(Channels.newOutputStream(fc), 1 << 16), crc));
+					data.write(SNAPSHOT_MAGIC);
+					data.writeLong(from);
+					image.write(data);
+					data.flush();
+					data.writeInt((int) crc.getValue());
+					data.flush();
+					fc.force(true);
+				}
+				Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+				// deletes the generations the snapshot covers
+				for(long existing : listGenerations()) {
+					if(existing < from) {
+						Files.deleteIfExists(getGenerationPath(existing));
+					}
+				}
+
+				printMsg("Compacted " + image.size() + " Events into the snapshot in " + (System.currentTimeMillis() - start) + " ms");
+			} catch (IOException ioe) {
+				// the generations stay, so the next compaction covers them
+				printMsg("Error: Failed to write the snapshot: " + ioe);
+			} finally {
+				abortCompaction();
+			}
+		}
+	}
+
+	/**
+	 * Returns the path to a generation of the journal
+	 *
+	 * @param number		Generation number
+	 * @return				The journal path itself for the first generation, suffixed with the number otherwise
+	 */
+	protected Path getGenerationPath(long number) {
+		if(number == 0) {
+			return path;
+		}
+		return path.resolveSibling(path.getFileName() + "." + number);
+	}
+
+	/**
+	 * Returns the path to the snapshot of the journal
+	 */
+	protected Path getSnapshotPath() {
+		return path.resolveSibling(path.getFileName() + ".snapshot");
+	}
+
+	/**
+	 * Lists the generations of the journal on the disk
+	 *
+	 * @return				Generation numbers in ascending order
+	 * @throws IOException	The directory of the journal cannot be read
+	 */
+	protected TreeSet<Long> listGenerations() throws IOException {
+		TreeSet<Long> ret = new TreeSet<Long> ();
+
+		if(Files.exists(path)) {
+			ret.add(0L);
+		}
+
+		Path directory = path.toAbsolutePath().getParent();
+		if(Files.notExists(directory)) {
+			return ret;
+		}
+		String prefix = path.getFileName() + ".";
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*")) {
+			for(Path file : files) {
+				try {
+					ret.add(Long.parseLong(file.getFileName().toString().substring(prefix.length())));
+				} catch (NumberFormatException nfe) {
+					// not a generation, e.g. the snapshot
+				}
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Appends an Event to the journal and waits until it is on the disk
+	 *
+	 * @param e				Event to append
+	 * @throws IOException	The Event cannot be encoded or written
+	 */
+	public void append(Event e) throws IOException {
+
+		// encodes the Event on the calling thread
+		byte[] record = encode(e);
+
+		// hands the record to the writer
+		long sequence;
+		synchronized(this) {
+			sequence = ++appended;
+			sinceCompaction++;
+			pending.add(record);
+		}
+
+		// waits for the writer to force it
+		synchronized(commitLock) {
+			while(committed < sequence) {
+				if(failure != null) {
+					throw failure;
+				}
+				try {
+					commitLock.wait();
+				} catch (InterruptedException ie) {
+					throw new IOException ("Interrupted while waiting for the journal");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Thread that writes the pending records and forces them to the disk in groups
+	 *
+	 * @author 				<a href=mailto:jaeyounb@usc.edu>Jae young Bang</a>
+	 * @version				2013.05
+	 */
+	protected class Writer extends Thread {
+
+		public void run() {
+			ArrayList<byte[]> 	group 	= new ArrayList<byte[]> ();
+			CRC32				crc		= new CRC32();
+
+			try {
+				while(true) {
+					// waits for a record, and then for others to join the group
+					group.add(pending.take());
+					if(syncInterval > 0) {
+						Thread.sleep(syncInterval);
+					}
+					pending.drainTo(group);
+
+					// writes the group
+					synchronized(channelLock) {
+						for(byte[] record : group) {
+							crc.reset();
+							crc.update(record, 0, record.length);
+
+							out.writeInt(record.length);
+							out.writeInt((int) crc.getValue());
+							out.write(record);
+						}
+						out.flush();
+						channel.force(false);
+					}
+
+					// lets the appending threads go
+					synchronized(commitLock) {
+						committed += group.size();
+						commitLock.notifyAll();
+					}
+					group.clear();
+				}
+			} catch (IOException ioe) {
+				printMsg("Error: Failed to write the journal: " + ioe);
+				synchronized(commitLock) {
+					failure = ioe;
+					commitLock.notifyAll();
+				}
+			} catch (InterruptedException ie) {
+				printMsg("Thread interrupted while waiting for records");
+				synchronized(commitLock) {
+					failure = new IOException ("The journal writer has been interrupted");
+					commitLock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Encodes an Event into a record
+	 *
+	 * @param e				Event to encode
+	 * @return				The record
+	 * @throws IOException	A parameter value cannot be encoded
+	 */
+	protected static byte[] encode(Event e) throws IOException {
+		ByteArrayOutputStream 	bytes 	= new ByteArrayOutputStream(256);
+		DataOutputStream		data	= new DataOutputStream(bytes);
+
+		writeString(data, e.name);
+		data.writeInt(e.eventType);
+
+		int size = e.parameterName.size();
+		data.writeInt(size);
+		for(int i = 0; i < size; i++) {
+			writeString(data, (String) e.parameterName.get(i));
+			writeValue(data, e.parameterValue.get(i));
+		}
+
+		data.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes an Event from a record
+	 *
+	 * @param record		The record
+	 * @return				The Event
+	 * @throws Exception	The record cannot be decoded
+	 */
+	protected static Event decode(byte[] record) throws Exception {
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+
+		Event e 		= new Event(readString(data));
+		e.eventType		= data.readInt();
+
+		int size = data.readInt();
+		for(int i = 0; i < size; i++) {
+			String parameterName = readString(data);
+			e.addParameter(parameterName, readValue(data));
+		}
+
+		return e;
+	}
+
+	/**
+	 * Writes a String of any length
+	 */
+	protected static void writeString(DataOutputStream data, String str) throws IOException {
+		byte[] bytes = str.getBytes(Constants.charset);
+		data.writeInt(bytes.length);
+		data.write(bytes);
+	}
+
+	/**
+	 * Reads a String written by {@link #writeString(DataOutputStream, String)}
+	 */
+	protected static String readString(DataInputStream data) throws IOException {
+		byte[] bytes = new byte[data.readInt()];
+		data.readFully(bytes);
+		return new String(bytes, Constants.charset);
+	}
+
+	/**
+	 * Writes a parameter value with its type tag
+	 */
+	protected static void writeValue(DataOutputStream data, Object value) throws IOException {
+		if(value == null) {
+			data.writeByte(TYPE_NULL);
+		} else if(value instanceof String) {
+			data.writeByte(TYPE_STRING);
+			writeString(data, (String) value);
+		} else if(value instanceof Integer) {
+			data.writeByte(TYPE_INTEGER);
+			data.writeInt((Integer) value);
+		} else if(value instanceof Boolean) {
+			data.writeByte(TYPE_BOOLEAN);
+			data.writeBoolean((Boolean) value);
+		} else if(value instanceof Long) {
+			data.writeByte(TYPE_LONG);
+			data.writeLong((Long) value);
+		} else if(value instanceof Double) {
+			data.writeByte(TYPE_DOUBLE);
+			data.writeDouble((Double) value);
+		} else {
+			// falls back to the Java serialization for the other types
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+				oos.writeObject(value);
+			}
+			data.writeByte(TYPE_OBJECT);
+			data.writeInt(bytes.size());
+			bytes.writeTo(data);
+		}
+	}
+
+	/**
+	 * Reads a parameter value written by {@link #writeValue(DataOutputStream, Object)}
+	 */
+	protected static Object readValue(DataInputStream data) throws Exception {
+		byte type = data.readByte();
+		switch(type) {
+			case TYPE_NULL:		return null;
+			case TYPE_STRING:	return readString(data);
+			case TYPE_INTEGER:	return data.readInt();
+			case TYPE_BOOLEAN:	return data.readBoolean();
+			case TYPE_LONG:		return data.readLong();
+			case TYPE_DOUBLE:	return data.readDouble();
+			case TYPE_OBJECT:
+				byte[] bytes = new byte[data.readInt()];
+				data.readFully(bytes);
+				try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+					return ois.readObject();
+				}
+			default:
+				throw new IOException ("Unknown parameter type [" + type + "]");
+		}
+	}
+
+	/**
+	 * Print screen messages
+	 *
+	 * @param msg			Message to print to screen
+	 */
+	protected void printMsg(String msg) {
+		sl.printMsg("Journal", msg);
+	}
+}
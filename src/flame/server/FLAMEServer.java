@@ -4,10 +4,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.eclipse.swt.widgets.Display;
 
@@ -16,7 +19,8 @@ import flame.Constants;
 import flame.EventStorage;
 import flame.Tracker;
 import flame.Utility;
-import flame.EventStorage.EventComparator;
+import flame.EventStorage.HistoryImage;
+import flame.EventStorage.HistoryReplay;
 import Prism.core.*;
 import Prism.extensions.port.ExtensiblePort;
 import Prism.extensions.port.distribution.Connection;
@@ -49,6 +53,17 @@ public class FLAMEServer extends AbstractImplementationModified {
 	 */
 	private EventStorage 			storage				= new EventStorage(getScreenLogger());
 	
+	/**
+	 * Journal of the stored Events, null if journaling is off
+	 */
+	private EventJournal			journal				= null;
+	
+	/**
+	 * Lock that Events take shared from the journal until they are in the storage, and 
+	 * that a compaction of the journal takes exclusive
+	 */
+	private final ReadWriteLock		journalLock			= new ReentrantReadWriteLock();
+	
 	/**
 	 * Logger instance that logs information about incoming Events
 	 */
@@ -59,6 +74,11 @@ public class FLAMEServer extends AbstractImplementationModified {
 	 */
 	protected PortNumberTracker		ports;
 	
+	/**
+	 * A thread that streams the Event history to newly logged-in clients
+	 */
+	protected HistoryStreamer		historyStreamer;
+	
 	/**
 	 * MRSV engine switch -- if it is true, MRSV Detection Engine gets turned on
 	 */
@@ -101,7 +121,29 @@ public class FLAMEServer extends AbstractImplementationModified {
 		super("FLAME Server");
 		
 		// The port number tracker
-		ports 				= new PortNumberTracker(tracker_port, getScreenLogger());
+		ports 				= new PortNumberTracker(tracker_port, 
+													intPropCheck(props, "TRACKER_THREADS", PortNumberTracker.DEFAULT_HANDLER_THREADS),
+													intPropCheck(props, "TRACKER_QUEUE_SIZE", PortNumberTracker.DEFAULT_HANDLER_QUEUE),
+													getScreenLogger());
+		
+		// The checkpoint size of the history
+		storage.setCheckpointSize(intPropCheck(props, "HISTORY_CHECKPOINT_SIZE", EventStorage.DEFAULT_CHECKPOINT_SIZE));
+		
+		// The history streamer
+		historyStreamer		= new HistoryStreamer(	this, 
+													intPropCheck(props, "HISTORY_BATCH_SIZE", HistoryStreamer.DEFAULT_BATCH_SIZE),
+													intPropCheck(props, "HISTORY_WINDOW_SIZE", HistoryStreamer.DEFAULT_WINDOW_SIZE),
+													intPropCheck(props, "HISTORY_ACK_TIMEOUT", HistoryStreamer.DEFAULT_ACK_TIMEOUT),
+													intPropCheck(props, "HISTORY_STREAMERS", HistoryStreamer.DEFAULT_STREAMERS),
+													getScreenLogger());
+		
+		// The journal, recovering the storage from it
+		String journalPath = props.getProperty("JOURNAL_PATH");
+		if(journalPath != null) {
+			openJournal(Paths.get(journalPath), 
+						intPropCheck(props, "JOURNAL_SYNC_INTERVAL", 2), 
+						intPropCheck(props, "JOURNAL_COMPACT_SIZE", EventJournal.DEFAULT_COMPACT_SIZE));
+		}
 	
 		// Turns switches
 		this.isMRSVOn 		= isMRSVOn;
@@ -136,7 +178,10 @@ public class FLAMEServer extends AbstractImplementationModified {
 		
 		// create the logger
 		try {
-			logger = new Logger(logPath, getScreenLogger());
+			logger = new Logger(logPath, 
+								intPropCheck(props, "LOG_FLUSH_INTERVAL", Logger.DEFAULT_FLUSH_INTERVAL),
+								intPropCheck(props, "LOG_FLUSH_SIZE", Logger.DEFAULT_FLUSH_SIZE),
+								getScreenLogger());
 		} catch (Exception e) {
 			printMsg(name, "Error: " + e.toString());
 			logger = null;
@@ -150,6 +195,9 @@ public class FLAMEServer extends AbstractImplementationModified {
 	
 	@Override
 	public void start() {
+		// starts streaming the history to clients that log in
+		historyStreamer.start();
+		
 		// launches the non-architect-specific Detection Engines (MRSV and LSV) automatically
 		try{
 			if(isMRSVOn) {
@@ -277,48 +325,28 @@ public class FLAMEServer extends AbstractImplementationModified {
 						}
 					}
 					
-					// manipulates a version (set of EventIDs) for this engine
-					Map<String, Tracker> version;
-					version = storage.getEventIDTrack();
-					
-					// retrieves Event history
-					ArrayList<Event> history = storage.getEventsFromHistory(version);
+					// replays the history to the new client
+					replayHistory(senderUsername, originComponent);
+				
+					break;
 					
-					// clean up the history before sending
-					for(Event evtHistory : history) {
-						// manipulates the Event
-						evtHistory.removeParameter("OriginComponent");
-						evtHistory.removeParameter("ReceiverUsername");
-						evtHistory.removeParameter("ReceiverComponent");
-						evtHistory.removeParameter("IsBroadcast");
-						evtHistory.removeParameter("IsLast");
-					}
+				///////////////////////////////////////////////////
+				// Handling Replay event
+				///////////////////////////////////////////////////
 					
-					// sorts the history before sending
-					Collections.sort(history, EventComparator.ascending (EventComparator.getComparator (EventComparator.EVENT_ID_SORT)));
+				case "Replay":
 					
-					// tags the last Design event as the last Design event
-					boolean found = false;
-					for(int i = history.size()-1; i >= 0 ; i--) {
-						Event evtHistory = history.get(i);
-						if(!found && evtHistory.name.equals("Design")) {
-							found = true;
-							evtHistory.addParameter("IsLast", new Boolean (true));
-						} else {
-							evtHistory.addParameter("IsLast", new Boolean (false));
-						}
+					// replays the history again to a client whose replay has been aborted
+					if(e.hasParameter("SenderUsername")) {
+						senderUsername = (String) e.getParameter("SenderUsername");
+					} else {
+						printMsg(name, "Error: Received Replay without SenderUsername");
+						return;
 					}
 					
-					// sends the history
-					for(Event evtHistory : history) {
-						evtHistory.addParameter("OriginComponent", name);
-						evtHistory.addParameter("ReceiverUsername", senderUsername);
-						evtHistory.addParameter("ReceiverComponent", originComponent);
-														
-						// send
-						sendReply(evtHistory);
-					}
-				
+					printMsg(name, "[" + senderUsername + "/" + originComponent + "] has requested the history again.");
+					replayHistory(senderUsername, originComponent);
+					
 					break;
 					
 				///////////////////////////////////////////////////
@@ -331,13 +359,8 @@ public class FLAMEServer extends AbstractImplementationModified {
 				case "Notification":
 				case "Update":
 					
-					// stores the event in the storage
 					evt = e.replicate();
 					
-					if(!eventName.equals("Notification")){
-						storage.addToHistory(evt);	
-					}
-						
 					// manipulates the Event
 					evt.removeParameter("ReceiverUsername");
 					evt.removeParameter("IsBroadcast");
@@ -345,11 +368,38 @@ public class FLAMEServer extends AbstractImplementationModified {
 					evt.addParameter("IsBroadcast", new Boolean (true));
 					evt.addParameter("AbsoluteTime", Utility.convertDate(System.currentTimeMillis()));
 					
+					// stores the event in the storage once it is complete, since it 
+					// may be checkpointed right away
+					if(!eventName.equals("Notification")){
+						
+						// writes the event to the journal before anyone sees it
+						if(journal != null && !eventName.equals("XTEAM")) {
+							storeJournaled(evt);
+						} else {
+							storage.addToHistory(evt);
+						}
+					}
+					
 					// broadcasts
 					sendReply(evt);
 					
 					break;
 					
+				///////////////////////////////////////////////////
+				// Handling HistoryAck event
+				///////////////////////////////////////////////////
+					
+				case "HistoryAck":
+					
+					// lets the history streamer send more of the replay
+					if(e.hasParameter("ReplayID")) {
+						historyStreamer.acknowledge((Integer) e.getParameter("ReplayID"));
+					} else {
+						printMsg(name, "Error: Received HistoryAck with no ReplayID parameter");
+					}
+					
+					break;
+					
 				///////////////////////////////////////////////////
 				// Handling Port event
 				///////////////////////////////////////////////////
@@ -375,6 +425,110 @@ public class FLAMEServer extends AbstractImplementationModified {
 		}
 	}
 	
+	/**
+	 * Streams the Event history to a client
+	 * 
+	 * @param receiverUsername	Username of the client
+	 * @param receiverComponent	Component name of the client
+	 */
+	protected void replayHistory(String receiverUsername, String receiverComponent) {
+		
+		// manipulates a version (set of EventIDs) for this client
+		Map<String, Tracker> version;
+		version = storage.getEventIDTrack();
+		
+		// retrieves Event history, already ordered by EventID
+		HistoryReplay history = storage.getHistoryReplay(version);
+		
+		// streams the history from the history streamer so that the 
+		// live Events keep being broadcast in the meantime
+		historyStreamer.enqueue(history, receiverUsername, receiverComponent);
+	}
+	
+	/**
+	 * Writes an Event to the journal and then stores it, compacting the journal once 
+	 * it has grown enough
+	 * 
+	 * @param evt			Event to store
+	 */
+	protected void storeJournaled(Event evt) {
+		
+		// a compaction waits until the event is in the storage as well as in the journal
+		journalLock.readLock().lock();
+		try {
+			try {
+				journal.append(evt);
+			} catch (IOException ioe) {
+				printMsg(name, "Error: Writing to the journal failed: " + ioe.toString());
+			}
+			
+			storage.addToHistory(evt);
+		} finally {
+			journalLock.readLock().unlock();
+		}
+		
+		if(journal.needsCompaction()) {
+			compactJournal();
+		}
+	}
+	
+	/**
+	 * Compacts the journal into an image of the storage
+	 */
+	protected void compactJournal() {
+		
+		// holds the events off so that the image has every event in the journal
+		journalLock.writeLock().lock();
+		try {
+			if(journal.beginCompaction()) {
+				try {
+					journal.compact(storage.getHistoryImage());
+				} catch (IOException ioe) {
+					journal.abortCompaction();
+					printMsg(name, "Error: Compacting the journal failed: " + ioe.toString());
+				}
+			}
+		} finally {
+			journalLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Rebuilds the EventStorage from a journal and opens it for the Events to come
+	 * 
+	 * @param journalPath	Path to the journal file
+	 * @param syncInterval	Milliseconds to wait for more Events before forcing them to the disk
+	 * @param compactSize	Number of Events after which the journal is compacted, 0 for never
+	 * @throws Exception	The journal cannot be read or opened
+	 */
+	protected void openJournal(Path journalPath, int syncInterval, int compactSize) throws Exception {
+		journal = new EventJournal(journalPath, syncInterval, compactSize, getScreenLogger());
+		
+		// recovers the stored Events: the snapshot, and then the Events that followed it
+		long start = System.currentTimeMillis();
+		try {
+			HistoryImage image = journal.readSnapshot();
+			if(image != null) {
+				storage.restoreHistory(image);
+				printMsg(name, "Restored " + image.size() + " Events from the journal snapshot");
+			}
+			
+			ArrayList<Event> recovered = journal.recover();
+			storage.addToHistory(recovered);
+			
+			printMsg(name, "Recovered " + recovered.size() + " Events from the journal in " + (System.currentTimeMillis() - start) + " ms");
+		} catch (IOException ioe) {
+			throw new Exception ("Journal recovery failed: " + ioe);
+		}
+		
+		// opens the journal for the Events to come
+		try {
+			journal.start();
+		} catch (IOException ioe) {
+			throw new Exception ("Journal cannot be opened: " + ioe);
+		}
+	}
+	
 	/**
 	 * Sets the SocketDistribution instance
 	 * 
@@ -583,4 +737,26 @@ public class FLAMEServer extends AbstractImplementationModified {
 		
 		return isTheEngineOn;
 	}
+	
+	/**
+	 * Gets an integer property, or the default value if it is missing or unparsable
+	 * 
+	 * @param props			Java Properties instance
+	 * @param propName		Name of the property
+	 * @param defaultValue	Value to use when the property is not given
+	 * @return				The integer value
+	 */
+	public static int intPropCheck(Properties props, String propName, int defaultValue) {
+		String value = props.getProperty(propName);
+		if(value == null) {
+			return defaultValue;
+		}
+		
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException nfe) {
+			System.out.println("[FLAME Server]: Error: " + propName + " property [" + value + "] is not a number. Using " + defaultValue + " instead.");
+			return defaultValue;
+		}
+	}
 }
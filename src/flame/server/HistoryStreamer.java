@@ -0,0 +1,374 @@
+package flame.server;
+
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import flame.AbstractImplementationModified;
+import flame.EventStorage.HistoryReplay;
+import flame.ScreenLogger;
+import Prism.core.Event;
+
+/**
+ * HistoryStreamer sends the Event history to newly logged-in FLAME Clients and
+ * XTEAM Engines from its own thread, so that the dispatcher of FLAME Server keeps
+ * broadcasting live Events while a long history is being replayed. <p>
+ *
+ * The history is sent in History Events, each of which carries a bounded batch of
+ * Events in its Events parameter. The receiver acknowledges every History Event
+ * it has consumed with a HistoryAck Event, and at most a window of History Events
+ * are left unacknowledged per replay. Every replay has an ID that its History and
+ * HistoryAck Events carry, so that two replays to the same username and component
+ * (e.g., the LocalV and HeadLocalV engines of an architect) keep separate windows.
+ * The replays are streamed concurrently from a bounded pool of threads, so that a
+ * receiver that stops acknowledging holds up only its own replay. <p>
+ *
+ * The last History Event of a replay is marked IsComplete. A replay given up on, e.g.
+ * because its receiver has stopped acknowledging, ends with an empty History Event
+ * marked IsAborted as well, so that the receiver knows its model is partial.
+ *
+ * @author 					<a href=mailto:jaeyounb@usc.edu>Jae young Bang</a>
+ * @version					2013.05
+ */
+public class HistoryStreamer extends Thread {
+
+///////////////////////////////////////////////////////////
+//	Member variables
+///////////////////////////////////////////////////////////
+
+	/**
+	 * Default number of Events in a History Event
+	 */
+	public static final int 		DEFAULT_BATCH_SIZE 		= 100;
+
+	/**
+	 * Default number of History Events that can be left unacknowledged
+	 */
+	public static final int			DEFAULT_WINDOW_SIZE		= 4;
+
+	/**
+	 * Default seconds to wait for a HistoryAck before giving up on the replay
+	 */
+	public static final int			DEFAULT_ACK_TIMEOUT		= 30;
+
+	/**
+	 * Default number of replays streamed at once
+	 */
+	public static final int			DEFAULT_STREAMERS		= 4;
+
+	/**
+	 * The component that owns this streamer and sends the History Events
+	 */
+	protected AbstractImplementationModified	owner;
+
+	/**
+	 * Number of Events in a History Event
+	 */
+	protected int								batchSize;
+
+	/**
+	 * Number of History Events that can be left unacknowledged
+	 */
+	protected int								windowSize;
+
+	/**
+	 * Seconds to wait for a HistoryAck before giving up on the replay
+	 */
+	protected int								ackTimeout;
+
+	/**
+	 * Threads that stream the replays
+	 */
+	protected final ThreadPoolExecutor			streamers;
+
+	/**
+	 * Replays waiting to be streamed
+	 */
+	protected BlockingQueue<Replay>				replays;
+
+	/**
+	 * Replay ID-window mapping: unacknowledged History Event slots of each replay
+	 */
+	protected ConcurrentMap<Integer, Semaphore>	windows;
+	
+	/**
+	 * ID of the next replay
+	 */
+	protected AtomicInteger						nextReplayID	= new AtomicInteger();
+
+	/**
+	 * Screen Logger passed from the owner Component
+	 */
+	protected ScreenLogger						sl;
+
+	/**
+	 * A history replay waiting to be streamed to a receiver
+	 *
+	 * @author 				<a href=mailto:jaeyounb@usc.edu>Jae young Bang</a>
+	 * @version				2013.05
+	 */
+	protected class Replay {
+		protected int				id;
+		protected HistoryReplay		history;
+		protected String			receiverUsername;
+		protected String			receiverComponent;
+		protected Semaphore			window;
+	}
+
+
+///////////////////////////////////////////////
+//	Constructors
+///////////////////////////////////////////////
+
+	/**
+	 * Default constructor
+	 *
+	 * @param owner			The component that sends the History Events
+	 * @param batchSize		Number of Events in a History Event
+	 * @param windowSize	Number of History Events that can be left unacknowledged
+	 * @param ackTimeout	Seconds to wait for a HistoryAck before giving up on the replay
+	 * @param streamers		Number of replays streamed at once
+	 * @param screenLogger	Screen Logger of the owner
+	 */
+	public HistoryStreamer(AbstractImplementationModified owner, int batchSize, int windowSize, int ackTimeout, int streamers, ScreenLogger screenLogger) {
+		this.owner		= owner;
+		this.batchSize	= Math.max(1, batchSize);
+		this.windowSize	= Math.max(1, windowSize);
+		this.ackTimeout	= Math.max(1, ackTimeout);
+		this.streamers	= new ThreadPoolExecutor(	Math.max(1, streamers),
+													Math.max(1, streamers),
+													60, TimeUnit.SECONDS,
+													new LinkedBlockingQueue<Runnable>());
+		sl				= screenLogger;
+
+		replays			= new LinkedBlockingQueue<Replay> ();
+		windows			= new ConcurrentHashMap<Integer, Semaphore> ();
+
+		setDaemon(true);
+	}
+
+
+///////////////////////////////////////////////
+//	Member Methods
+///////////////////////////////////////////////
+
+	/**
+	 * Queues a history replay for a receiver
+	 *
+	 * @param history			History to replay, ordered by EventID
+	 * @param receiverUsername	Username of the receiver
+	 * @param receiverComponent	Component name of the receiver
+	 */
+	public void enqueue(HistoryReplay history, String receiverUsername, String receiverComponent) {
+		Replay replay 				= new Replay();
+		replay.id					= nextReplayID.incrementAndGet();
+		replay.history				= history;
+		replay.receiverUsername		= receiverUsername;
+		replay.receiverComponent	= receiverComponent;
+		replay.window				= new Semaphore(windowSize, true);
+
+		windows.put(replay.id, replay.window);
+
+		replays.add(replay);
+	}
+
+	/**
+	 * Handles a HistoryAck from a receiver
+	 *
+	 * @param replayID			ID of the replay the HistoryAck acknowledges
+	 */
+	public void acknowledge(int replayID) {
+		Semaphore window = windows.get(replayID);
+
+		if(window != null) {
+			window.release();
+		}
+	}
+
+	/**
+	 * Hands the queued replays to the streaming threads; the replays wait for a free thread
+	 */
+	public void run() {
+		while(true) {
+			try {
+				streamers.execute(new ReplayStreamer(replays.take()));
+			} catch (InterruptedException ie) {
+				printMsg("Thread interrupted while waiting for a replay");
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Task that streams a replay
+	 *
+	 * @author 				<a href=mailto:jaeyounb@usc.edu>Jae young Bang</a>
+	 * @version				2013.05
+	 */
+	protected class ReplayStreamer implements Runnable {
+		
+		protected Replay replay;
+		
+		public ReplayStreamer(Replay replay) {
+			this.replay = replay;
+		}
+		
+		public void run() {
+			try {
+				stream(replay);
+			} catch (InterruptedException ie) {
+				printMsg("Thread interrupted while streaming a replay");
+				abort(replay);
+			}
+		}
+	}
+
+	/**
+	 * Streams a history replay in History Events of bounded size
+	 *
+	 * @param replay			Replay to stream
+	 * @throws InterruptedException	Interrupted while waiting for a HistoryAck
+	 */
+	protected void stream(Replay replay) throws InterruptedException {
+
+		HistoryReplay		events 	= replay.history;
+		String				key		= getKey(replay.receiverUsername, replay.receiverComponent);
+		int					frames	= 0;
+
+		for(int from = 0; from < events.size(); from += batchSize) {
+
+			// waits until the receiver catches up
+			if(!replay.window.tryAcquire(ackTimeout, TimeUnit.SECONDS)) {
+				printMsg("Error: [" + key + "] has not acknowledged the history for " + ackTimeout + " seconds. The replay is aborted.");
+				abort(replay);
+				return;
+			}
+
+			// builds a batch
+			int to = Math.min(from + batchSize, events.size());
+			ArrayList<Event> batch = new ArrayList<Event> (to - from);
+			for(int i = from; i < to; i++) {
+				Event e;
+				try {
+					e = events.get(i);
+				} catch (Exception exc) {
+					printMsg("Error: " + exc.getMessage() + ". The replay to [" + key + "] is aborted.");
+					abort(replay);
+					return;
+				}
+				batch.add(createReplayEvent(e, i == events.lastDesignIndex, replay));
+			}
+
+			// sends the batch
+			owner.sendReply(createFrame(replay, batch, to == events.size(), false));
+
+			frames++;
+		}
+		
+		// tells the receiver that an empty history is complete
+		if(events.size() == 0) {
+			owner.sendReply(createFrame(replay, new ArrayList<Event> (), true, false));
+		}
+		
+		// the receiver is done with this replay
+		windows.remove(replay.id, replay.window);
+
+		printMsg("Replayed " + events.size() + " Events in " + frames + " History Events to [" + key + "]");
+	}
+
+	/**
+	 * Gives up on a replay, and tells the receiver that the history it has is partial
+	 *
+	 * @param replay			Replay to give up on
+	 */
+	protected void abort(Replay replay) {
+		windows.remove(replay.id, replay.window);
+		owner.sendReply(createFrame(replay, new ArrayList<Event> (), true, true));
+	}
+
+	/**
+	 * Creates a History Event
+	 *
+	 * @param replay		Replay that the History Event is a part of
+	 * @param batch			Events to carry
+	 * @param isComplete	Whether no more History Event follows in the replay
+	 * @param isAborted		Whether the replay has been given up on
+	 * @return				The History Event
+	 */
+	protected Event createFrame(Replay replay, ArrayList<Event> batch, boolean isComplete, boolean isAborted) {
+		Event frame = new Event("History");
+		frame.addParameter("OriginComponent", 		owner.getComponentName());
+		frame.addParameter("ReplayID", 				Integer.valueOf(replay.id));
+		frame.addParameter("ReceiverUsername", 		replay.receiverUsername);
+		frame.addParameter("ReceiverComponent", 	replay.receiverComponent);
+		frame.addParameter("Events", 				batch);
+		frame.addParameter("IsComplete", 			Boolean.valueOf(isComplete));
+		frame.addParameter("IsAborted", 			Boolean.valueOf(isAborted));
+		return frame;
+	}
+
+	/**
+	 * Creates a copy of a stored Event addressed to a receiver<p>
+	 *
+	 * The stored Event is left untouched since it may still be in the middle of a broadcast.
+	 *
+	 * @param e				Stored Event
+	 * @param isLast		Whether the Event is the last Design Event of the history
+	 * @param replay		Replay that the Event is a part of
+	 * @return				Copy of the Event to be sent
+	 */
+	protected Event createReplayEvent(Event e, boolean isLast, Replay replay) {
+		Event evt = new Event(e.name);
+
+		// copies all parameters but the ones that address the Event
+		for(int i = 0; i < e.parameterName.size(); i++) {
+			String parameterName = (String) e.parameterName.get(i);
+			switch(parameterName) {
+				case "OriginComponent":
+				case "ReceiverUsername":
+				case "ReceiverComponent":
+				case "IsBroadcast":
+				case "IsLast":
+					break;
+				default:
+					evt.addParameter(parameterName, e.parameterValue.get(i));
+					break;
+			}
+		}
+
+		// tags the last Design event as the last Design event
+		evt.addParameter("IsLast", 				Boolean.valueOf(isLast));
+
+		evt.addParameter("OriginComponent", 	owner.getComponentName());
+		evt.addParameter("ReceiverUsername", 	replay.receiverUsername);
+		evt.addParameter("ReceiverComponent", 	replay.receiverComponent);
+
+		return evt;
+	}
+
+	/**
+	 * Returns the key of a receiver
+	 *
+	 * @param username		Username of the receiver
+	 * @param component		Component name of the receiver
+	 * @return				Key of the receiver
+	 */
+	protected static String getKey(String username, String component) {
+		return username + "/" + component;
+	}
+
+	/**
+	 * Print screen messages
+	 *
+	 * @param msg			Message to print to screen
+	 */
+	protected void printMsg(String msg) {
+		sl.printMsg("History", msg);
+	}
+}
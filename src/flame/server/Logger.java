@@ -1,5 +1,7 @@
 package flame.server;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
@@ -7,8 +9,12 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import flame.Constants;
 import flame.ScreenLogger;
@@ -115,6 +121,87 @@ public class Logger {
 	 */
 	private ScreenLogger		sl;
 	
+	/**
+	 * Initial capacity of the log builders
+	 */
+	private static final int	INITIAL_BUILDER_CAPACITY	= 1024;
+	
+	/**
+	 * Capacity beyond which a log builder is not kept for reuse
+	 */
+	private static final int	MAX_BUILDER_CAPACITY		= 1024 * 1024;
+	
+	/**
+	 * Log builder of each thread, reused for every log entry
+	 */
+	private final ThreadLocal<StringBuilder>	logBuilder	= new ThreadLocal<StringBuilder> () {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(INITIAL_BUILDER_CAPACITY);
+		}
+	};
+	
+	/**
+	 * Default milliseconds between flushes of the log files
+	 */
+	public static final int		DEFAULT_FLUSH_INTERVAL	= 1000;
+	
+	/**
+	 * Default number of characters written before the log files get flushed
+	 */
+	public static final int		DEFAULT_FLUSH_SIZE		= 64 * 1024;
+	
+	/**
+	 * Number of log entries that can wait for the writer thread
+	 */
+	private static final int	QUEUE_CAPACITY			= 10000;
+	
+	/**
+	 * Milliseconds between flushes of the log files
+	 */
+	private int					flushInterval;
+	
+	/**
+	 * Number of characters written before the log files get flushed
+	 */
+	private int					flushSize;
+	
+	/**
+	 * Log file path-writer mapping: the log files stay open for the whole run
+	 */
+	private Map<Path, BufferedWriter>	writers			= new HashMap<Path, BufferedWriter> ();
+	
+	/**
+	 * Log entries waiting for the writer thread
+	 */
+	private BlockingQueue<LogEntry>		queue			= new ArrayBlockingQueue<LogEntry> (QUEUE_CAPACITY);
+	
+	/**
+	 * Entry that makes the writer thread flush everything and stop
+	 */
+	private final LogEntry		closeEntry				= new LogEntry(null, null);
+	
+	/**
+	 * Thread that writes the log entries to the log files
+	 */
+	private Writer				writer;
+	
+	/**
+	 * A line waiting to be written to a log file
+	 * 
+	 * @author 				<a href=mailto:jaeyounb@usc.edu>Jae young Bang</a>
+	 * @version				2013.05
+	 */
+	private static class LogEntry {
+		private final Path		targetFile;
+		private final String	log;
+		
+		private LogEntry(Path targetFile, String log) {
+			this.targetFile	= targetFile;
+			this.log		= log;
+		}
+	}
+	
 	
 	
 ///////////////////////////////////////////////
@@ -128,9 +215,25 @@ public class Logger {
 	 * @throws Exception	Cannot create the log directory or the files
 	 */
 	public Logger (String logPath, ScreenLogger screenLogger) throws Exception {
+		this (logPath, DEFAULT_FLUSH_INTERVAL, DEFAULT_FLUSH_SIZE, screenLogger);
+	}
+	
+	/**
+	 * Constructor with the flush options
+	 * 
+	 * @param logPath		Path string to the log destination directory
+	 * @param flushInterval	Milliseconds between flushes of the log files
+	 * @param flushSize		Number of characters written before the log files get flushed
+	 * @throws Exception	Cannot create the log directory or the files
+	 */
+	public Logger (String logPath, int flushInterval, int flushSize, ScreenLogger screenLogger) throws Exception {
 		
 		// get the screen logger instance
 		sl = screenLogger;
+		
+		// get the flush options
+		this.flushInterval	= Math.max(1, flushInterval);
+		this.flushSize		= Math.max(0, flushSize);
 
 		// calculate version
 		versionName = Utility.convertDate(System.currentTimeMillis());
@@ -218,6 +321,26 @@ public class Logger {
 		String snapshotFields = new String();
 		snapshotFields += createBasicFieldNames();
 		writeLog(logFilePath_snapshot, snapshotFields);
+		
+		// open the log files for good
+		try {
+			for(Path logFilePath : new Path[] {logFilePath_event, logFilePath_analysis, logFilePath_snapshot}) {
+				writers.put(logFilePath, Files.newBufferedWriter(logFilePath, Constants.charset, StandardOpenOption.APPEND));
+			}
+		} catch (Exception e) {
+			throw new Exception ("Log files cannot be opened: " + e);
+		}
+		
+		// start writing the log entries
+		writer = new Writer();
+		writer.start();
+		
+		// flush the log files when the JVM shuts down
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				close();
+			}
+		});
 	}
 	
 	
@@ -246,53 +369,63 @@ public class Logger {
 		// get the Event Name
 		String eventName = e.name;
 				
-		// the log message for this event
-		String log = new String();
+		// the log message for this event, built in the builder of this thread
+		StringBuilder log = getLogBuilder();
 		
-		log += createBasicLogString(e);
+		appendBasicLogString(log, e);
 		
 		switch(eventName) {
 		
 			case "Snapshot":
-				writeLog(logFilePath_event, log);
-				writeLog(logFilePath_snapshot, log);
-				break;
-				
 			case "CheckLocal":
-				writeLog(logFilePath_event, log);
-				writeLog(logFilePath_snapshot, log);
+				String snapshotLog = log.toString();
+				writeLog(logFilePath_event, snapshotLog);
+				writeLog(logFilePath_snapshot, snapshotLog);
 				break;
 				
 			case "Notification":
-				log += createLogString(e, designParas);
-				writeLog(logFilePath_event, log);
+			case "Design":
+				appendLogString(log, e, designParas);
+				writeLog(logFilePath_event, log.toString());
 				break;
 				
 			case "XTEAM":
-				writeLog(logFilePath_event, log);
+				writeLog(logFilePath_event, log.toString());
 				
-				log += createLogString(e, XTEAMParas);
-				writeLog(logFilePath_analysis, log);
-				break;
+				// the analysis log has the final results only, since its readers take every entry as final
+				if(e.hasParameter("Partial") && (Boolean) e.getParameter("Partial")) {
+					break;
+				}
 				
-			case "Design":
-				log += createLogString(e, designParas);
-				writeLog(logFilePath_event, log);
+				appendLogString(log, e, XTEAMParas);
+				writeLog(logFilePath_analysis, log.toString());
 				break;
 				
 			case "Login":
-				writeLog(logFilePath_event, log);
-				break;
-				
 			case "Update":
-				writeLog(logFilePath_event, log);
+				writeLog(logFilePath_event, log.toString());
 				break;
 		}
-
+	}
+	
+	/**
+	 * Gets the emptied log builder of the calling thread
+	 * 
+	 * @return				Empty StringBuilder
+	 */
+	private StringBuilder getLogBuilder () {
+		StringBuilder log = logBuilder.get();
 		
+		// lets a builder that has grown for a huge Event go
+		if(log.capacity() > MAX_BUILDER_CAPACITY) {
+			log = new StringBuilder(INITIAL_BUILDER_CAPACITY);
+			logBuilder.set(log);
+		}
+		
+		log.setLength(0);
+		return log;
 	}
 	
-
 	/**
 	 * Manipulates the basic field names string
 	 * 
@@ -312,25 +445,21 @@ public class Logger {
 	}
 	
 	/**
-	 * Manipulates basic log string for an Event
+	 * Appends the basic log string for an Event
+	 * 
+	 * @param log			Log string being built
 	 * @param e				Incoming Event
-	 * @return				String that contains the basic log string
 	 */
-	private String createBasicLogString (Event e) {
-		
-		// the log message for this event
-		String log = new String();
+	private void appendBasicLogString (StringBuilder log, Event e) {
 		
 		// log the time
-		log += addDelimiter(Utility.convertDate(System.currentTimeMillis()));
+		log.append(Utility.convertDate(System.currentTimeMillis())).append(delimiter).append(' ');
 		
 		// log the event name
-		log += addDelimiter((String) e.name);
+		log.append(e.name).append(delimiter).append(' ');
 		
 		// log the basic parameters
-		log += createLogString(e, basicParas);
-		
-		return log;
+		appendLogString(log, e, basicParas);
 	}
 	
 	/**
@@ -351,22 +480,16 @@ public class Logger {
 	}
 	
 	/**
-	 * Manipulates XTEAM parameter string for an Event
+	 * Appends parameter strings for an Event
+	 * 
+	 * @param log			Log string being built
 	 * @param e				Incoming Event
 	 * @param paras			Parameters to leave a log with
-	 * @return				Log string
 	 */
-	private String createLogString (Event e, String [] paras) {
-		
-		// the log message for this event
-		String log = new String();		
-		
-		// log the parameters
+	private void appendLogString (StringBuilder log, Event e, String [] paras) {
 		for(String str : paras) {
-			log += addParameter(e, str);
+			appendParameter(log, e, str);
 		}
-		
-		return log;
 	}
 	
 	/**
@@ -388,23 +511,23 @@ public class Logger {
 	}
 	
 	/** 
-	 * Manipulates a parameter string
+	 * Appends a parameter string followed by the delimiter
 	 * 
+	 * @param log			Log string being built
 	 * @param e				Incoming Event
 	 * @param parameter		Parameter to create a string with		
-	 * @return				String with XTEAM analysis information for a parameter
 	 */
 	@SuppressWarnings("unchecked")
-	private String addParameter (Event e, String parameter) {
+	private void appendParameter (StringBuilder log, Event e, String parameter) {
 		if(e.hasParameter(parameter)) {
 			
-			String logString = new String();
+			Object value = e.getParameter(parameter);
 			
 			// some parameters are not String, handle them separately
 			switch (parameter) {
 					
 				case "EventID":
-					logString += ((Integer) e.getParameter(parameter)).toString();
+					log.append(((Integer) value).intValue());
 					break;
 					
 				case "SyntacticConflicts":
@@ -413,43 +536,192 @@ public class Logger {
 				case "PerComponentMax":
 				case "PerComponentAverage":
 				case "PerComponentSuccess":
-					for(String str : (ArrayList<String>) e.getParameter(parameter) ) {
-						logString += str + "\\n";
+					for(String str : (ArrayList<String>) value ) {
+						appendEscaped(log, str);
+						log.append("\\n");
 					}
 					break;
 				
 				case "AnalysisWarnings":
-					Map<String, List<String>> analysis_warnings = (Map<String, List<String>>) e.getParameter("AnalysisWarnings");
-					for(String key : analysis_warnings.keySet()) {
-						for(String str : analysis_warnings.get(key)) {
-							logString += key + ": " + str + "\\n";
+					Map<String, List<String>> analysis_warnings = (Map<String, List<String>>) value;
+					for(Map.Entry<String, List<String>> entry : analysis_warnings.entrySet()) {
+						for(String str : entry.getValue()) {
+							appendEscaped(log, entry.getKey());
+							log.append(": ");
+							appendEscaped(log, str);
+							log.append("\\n");
 						}
 					}
 					break;
 					
 				default:
-					logString += (String) e.getParameter(parameter);
+					appendEscaped(log, String.valueOf(value));
+					break;
+			}
+		}
+		
+		log.append(delimiter).append(' ');
+	}
+	
+	/**
+	 * Appends a string in a single pass, chomping line breaks and replacing the 
+	 * delimiter so that the entry stays in one field. The "\\n" added to sync 
+	 * conflicts survives because it is \\n, not \n.
+	 * 
+	 * @param log			Log string being built
+	 * @param str			String to append, written as "null" if it is null
+	 */
+	private void appendEscaped (StringBuilder log, String str) {
+		if(str == null) {
+			log.append("null");
+			return;
+		}
+		
+		int length = str.length();
+		for(int i = 0; i < length; i++) {
+			char c = str.charAt(i);
+			switch (c) {
+				case '\r':
+				case '\n':
+					break;
+				case ',':
+					log.append('.');
+					break;
+				default:
+					log.append(c);
 					break;
 			}
-			
-			// Chomps the string. the "\\n" added to sync conflicts would survive because they are \\n not \n
-			logString = logString.replaceAll("(\\r|\\n)", "");
-			logString = logString.replaceAll(",", ".");
-			
-			return addDelimiter (logString);
-		} else {
-			return addDelimiter ();
 		}
 	}
 	
 	/**
-	 * Writes a log entry to a log file
+	 * Hands a log entry to the writer thread <p>
+	 * 
+	 * It only blocks when the writer thread falls behind by a full queue.
+	 * 
 	 * @param targetFile	Path to target log file
 	 * @param log			Log string to leave (a line)
 	 * @throws Exception	Cannot write on the log file
 	 */
-	private synchronized void writeLog (Path targetFile, String log) throws Exception {		
-		Files.write(targetFile, (log + "\n").getBytes(), StandardOpenOption.APPEND);
+	private void writeLog (Path targetFile, String log) throws Exception {
+		try {
+			queue.put(new LogEntry(targetFile, log));
+		} catch (InterruptedException ie) {
+			throw new Exception ("Interrupted while waiting for the log writer");
+		}
+	}
+	
+	/**
+	 * Flushes all log entries to the log files, and closes them
+	 */
+	public void close() {
+		if(writer == null || !writer.isAlive()) {
+			return;
+		}
+		
+		try {
+			queue.put(closeEntry);
+			writer.join();
+		} catch (InterruptedException ie) {
+			printMsg("Thread interrupted while closing the log files");
+		}
+	}
+	
+	/**
+	 * Thread that writes the log entries to the log files, flushing them
+	 * every flushInterval milliseconds or every flushSize characters
+	 * 
+	 * @author 				<a href=mailto:jaeyounb@usc.edu>Jae young Bang</a>
+	 * @version				2013.05
+	 */
+	private class Writer extends Thread {
+		
+		/**
+		 * Characters written since the last flush
+		 */
+		private long	unflushed		= 0;
+		
+		/**
+		 * Time of the last flush
+		 */
+		private long	lastFlush		= System.currentTimeMillis();
+		
+		public Writer() {
+			setDaemon(true);
+		}
+		
+		public void run() {
+			try {
+				while(true) {
+					// waits for an entry until the next flush is due
+					long 		wait 	= lastFlush + flushInterval - System.currentTimeMillis();
+					LogEntry	entry	= (wait > 0) ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+					
+					if(entry == closeEntry) {
+						break;
+					}
+					
+					if(entry != null) {
+						write(entry);
+					}
+					
+					if(unflushed > 0 && (unflushed >= flushSize || System.currentTimeMillis() - lastFlush >= flushInterval)) {
+						flush();
+					}
+					if(unflushed == 0) {
+						lastFlush = System.currentTimeMillis();
+					}
+				}
+			} catch (InterruptedException ie) {
+				printMsg("Thread interrupted while waiting for log entries");
+			}
+			
+			// writes what is left and closes the log files
+			LogEntry entry;
+			while((entry = queue.poll()) != null) {
+				if(entry != closeEntry) {
+					write(entry);
+				}
+			}
+			for(Map.Entry<Path, BufferedWriter> w : writers.entrySet()) {
+				try {
+					w.getValue().close();
+				} catch (IOException ioe) {
+					printMsg("Error: Cannot close the log file [" + w.getKey() + "]: " + ioe);
+				}
+			}
+		}
+		
+		/**
+		 * Writes a log entry to its log file
+		 * 
+		 * @param entry		Log entry
+		 */
+		private void write(LogEntry entry) {
+			try {
+				BufferedWriter bw = writers.get(entry.targetFile);
+				bw.write(entry.log);
+				bw.write('\n');
+				unflushed += entry.log.length() + 1;
+			} catch (IOException ioe) {
+				printMsg("Error: Writing a log failed: " + ioe);
+			}
+		}
+		
+		/**
+		 * Flushes all log files
+		 */
+		private void flush() {
+			for(Map.Entry<Path, BufferedWriter> w : writers.entrySet()) {
+				try {
+					w.getValue().flush();
+				} catch (IOException ioe) {
+					printMsg("Error: Cannot flush the log file [" + w.getKey() + "]: " + ioe);
+				}
+			}
+			unflushed 	= 0;
+			lastFlush	= System.currentTimeMillis();
+		}
 	}
 	
 	/**
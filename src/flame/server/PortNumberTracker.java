@@ -1,23 +1,37 @@
 package flame.server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import flame.FramedConnection;
 import flame.ScreenLogger;
-import flame.SocketTransferUtility;
 
 /**
  * PortNumberTracker keeps track of the numbers of the ports of XTEAM Engines 
- * that are open and waiting for connection from FLAME Adaptors.
+ * that are open and waiting for connection from FLAME Adaptors.<p>
  * 
+ * The port requests are handled by a bounded pool of threads with a bounded queue, so that a
+ * burst of FLAME Adaptor connections does not create a thread per connection.<p>
+ * 
+ * A FLAME Adaptor sends "REQUEST:&lt;username&gt;" to be given the port of that architect's
+ * XTEAM Engine, or a plain "REQUEST" to be given any open port. A request for a port that is
+ * not open yet waits without a handler thread, and is handed the port the moment
+ * {@link #addPort(String, int)} adds it. The waiting requests are checked periodically, and
+ * those whose FLAME Adaptors have gone are dropped. A port goes back to the map whenever its
+ * assignment does not complete.
  * 
  * @author 					<a href=mailto:jaeyounb@usc.edu>Jae young Bang</a>
  * @version					2013.07
@@ -27,6 +41,31 @@ public class PortNumberTracker {
 //	Member variables
 ///////////////////////////////////////////////////////////
 
+	/**
+	 * Default number of threads handling the port requests
+	 */
+	public static final int				DEFAULT_HANDLER_THREADS	= 16;
+	
+	/**
+	 * Default number of port requests waiting for a handler thread
+	 */
+	public static final int				DEFAULT_HANDLER_QUEUE	= 64;
+	
+	/**
+	 * The port request message a FLAME Adaptor sends
+	 */
+	public static final String			requestMessage			= "REQUEST";
+	
+	/**
+	 * Time in milliseconds a FLAME Adaptor has to send its request, and to acknowledge its port
+	 */
+	protected static final int			ACK_TIMEOUT_MILLIS		= 30000;
+	
+	/**
+	 * Interval in milliseconds at which the waiting requests are checked
+	 */
+	protected static final long			WAITER_CHECK_MILLIS		= 30000;
+
 	/**
 	 * Listening port number; FLAME Adaptors connect to 
 	 * this port to be assigned with the corresponding 
@@ -40,7 +79,12 @@ public class PortNumberTracker {
 	protected 		Map<String, Integer> 	ports;
 	
 	/**
-	* Binary semaphore for the port numbers
+	 * Port requests waiting for their ports, in the order of arrival
+	 */
+	protected final	LinkedList<PortWaiter>	waiters		= new LinkedList<>();
+	
+	/**
+	* Binary semaphore for the port numbers and the waiters
 	*/
 	protected final	Semaphore 				mSemaphore = new Semaphore (1, true);
 	
@@ -49,6 +93,16 @@ public class PortNumberTracker {
 	 */
 	protected 		Listener				listener;
 	
+	/**
+	 * Handler for the thread that drops the waiting requests of the FLAME Adaptors that have gone
+	 */
+	protected		WaiterSweeper			sweeper;
+	
+	/**
+	 * Pool of the threads handling the port requests
+	 */
+	protected final	ThreadPoolExecutor		handlers;
+	
 	/**
 	 * 
 	 * @author <a href=mailto:jaeyounb@usc.edu>Jae young Bang</a>
@@ -59,6 +113,31 @@ public class PortNumberTracker {
 		public		int						port;
 	}
 	
+	/**
+	 * A port request waiting for the port of an XTEAM Engine; it holds the connection to the
+	 * FLAME Adaptor, but no thread
+	 */
+	protected class PortWaiter {
+		/**
+		 * Username of the requested XTEAM Engine; null for any
+		 */
+		protected final	String					username;
+		
+		/**
+		 * Connection to the FLAME Adaptor
+		 */
+		protected final	FramedConnection		connection;
+		
+		protected PortWaiter(String username, FramedConnection connection) {
+			this.username	= username;
+			this.connection	= connection;
+		}
+		
+		protected boolean accepts(String engineUsername) {
+			return username == null || username.equals(engineUsername);
+		}
+	}
+	
 	/**
 	 * Screen Logger passed from the owner Component
 	 */
@@ -73,17 +152,40 @@ public class PortNumberTracker {
 	* Default constructor
 	*/
 	public PortNumberTracker(int listeningPort, ScreenLogger screenLogger) throws Exception {
+		this(listeningPort, DEFAULT_HANDLER_THREADS, DEFAULT_HANDLER_QUEUE, screenLogger);
+	}
+	
+	/**
+	 * Constructor with the size of the handler pool
+	 * 
+	 * @param listeningPort		Port FLAME Adaptors connect to
+	 * @param handlerThreads	Number of threads handling the port requests
+	 * @param handlerQueue		Number of port requests waiting for a handler thread
+	 * @param screenLogger		Screen Logger instance
+	 */
+	public PortNumberTracker(int listeningPort, int handlerThreads, int handlerQueue, ScreenLogger screenLogger) throws Exception {
 		
 		// Receives the attributes
 		this.listeningPort	= listeningPort;
 		sl					= screenLogger;
 		
+		// Creates the handler pool; idle threads time out so that a quiet tracker holds none
+		handlers			= new ThreadPoolExecutor(	Math.max(1, handlerThreads), 
+														Math.max(1, handlerThreads),
+														60, TimeUnit.SECONDS,
+														new ArrayBlockingQueue<Runnable>(Math.max(1, handlerQueue)));
+		handlers.allowCoreThreadTimeOut(true);
+		
 		// Initializes the ports mapping
 		ports				= new TreeMap<String, Integer> ();
 		
 		// Launches the Listener thread
 		listener = new Listener();
 		listener.start();
+		
+		// Launches the thread that checks the waiting requests
+		sweeper = new WaiterSweeper();
+		sweeper.start();
 	}
 	
 		
@@ -142,11 +244,17 @@ public class PortNumberTracker {
 				while (true) {
 					// Accepts the connection
 		            clientSocket = serverSocket.accept();
-		            clientSocket.setSoTimeout(0); 
 		            
-		            // Launches a PortRequestHandler thread to handle the connection
-		            PortRequestHandler prh = new PortRequestHandler(clientSocket);
-		            prh.start();
+		            // a FLAME Adaptor that connects and says nothing must not hold a handler for good
+		            clientSocket.setSoTimeout(ACK_TIMEOUT_MILLIS); 
+		            
+		            // Hands the connection to the handler pool; turns it away when the queue is full
+		            try {
+		            	handlers.execute(new PortRequestHandler(clientSocket));
+		            } catch (RejectedExecutionException ree) {
+		            	printMsg("Error: Too many port requests; a connection is turned away.");
+		            	clientSocket.close();
+		            }
 				}
 	            
 	        } catch (IOException e) {
@@ -163,12 +271,12 @@ public class PortNumberTracker {
 		}
 		
 		/**
-		 * Thread class that actually talks to XTEAM Engines
+		 * Task that actually talks to XTEAM Engines; runs on the handler pool
 		 * 
 		 * @author 			<a href=mailto:jaeyounb@usc.edu>Jae young Bang</a>
 		 * @version			2013.07
 		 */
-		protected class PortRequestHandler extends Thread {
+		protected class PortRequestHandler implements Runnable {
 			
 			/**
 			 * Incoming client socket
@@ -183,7 +291,7 @@ public class PortNumberTracker {
 			public PortRequestHandler(Socket clientSocket) {
 				this.clientSocket = clientSocket;
 				
-				printMsg("PortRequestHandler has been created.");
+				printMsg("PortRequestHandler has been created (" + getActiveHandlerCount() + " active, " + getQueuedHandlerCount() + " queued).");
 			}
 			
 			/**
@@ -191,76 +299,106 @@ public class PortNumberTracker {
 			 */
 			public void run() {
 				
-				PrintWriter 	out;	// the output stream
-				BufferedReader 	in;		// the input stream
+				FramedConnection connection;	// the input and output streams
 				
 				// Sets up the input and output stream
 	            try {     	
-					out	= new PrintWriter(clientSocket.getOutputStream(), true);
-					in 	= new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));	
+					connection = new FramedConnection(clientSocket);
 	            } catch (IOException ioe) {
-	            	printMsg("Error: Failed to initialize BufferedReader.");
+	            	printMsg("Error: Failed to initialize the connection streams.");
+	            	closeSocket(clientSocket);
 	            	return;
 	            }
 	            
 	            try {
-					// Receives the port number request "REQUEST"
-					String value = SocketTransferUtility.read(in);
+					// Receives the port number request "REQUEST" or "REQUEST:<username>"
+					String value = connection.receiveString();
 					
-					// Checks if the received message was "REQUEST"
-					if(!value.equals("REQUEST")) {
+					// Checks if the received message was a request
+					String username;
+					if(value.equals(requestMessage)) {
+						username = null;
+					} else if(value.startsWith(requestMessage + ":")) {
+						username = value.substring(requestMessage.length() + 1);
+					} else {
 						printMsg("Error: Failed to comprehend a message from FLAMEAdaptor [" + value + "]");
+						closeSocket(clientSocket);
 						return;
 					}
 					
-					// Retrieve a port number
-					int port = 0;
-					
-					while(true) {
-						try {
-							port = popRandomPort();
-						} catch (Exception e) {
-							printMsg("PortRequestHandler cannot find an available port. Retrying ...");
-						}
-						
-						// if an available port number is successfully retrieved, break the loop
-						if(port != 0) {
-							break;
-						} 
-						
-						// if retries, sleeps for 1 second before going back
-						Thread.sleep(100);
-					}
-					
-					
-					printMsg("Port [" + port + "] is being assigned.");
-					
-					
-					// Sends an assigned port number
-					SocketTransferUtility.write(out, Integer.toString(port));
-					
-					
-					// Receives an ACK "ACK"
-					value = SocketTransferUtility.read(in);
-					
-					// Checks if the received message was "ACK"
-					if(value.equals("ACK")) {
-						printMsg("Port [" + port + "] has succesfully been assigned.");
-					} else {
-						printMsg("Error: Failed to comprehend a message from FLAMEAdaptor [" + value + "]");
+					// Takes the port of the requested XTEAM Engine, or of any if none is named;
+					// the request waits without this thread if the port is not open yet
+					Pair assigned = popPortOrWait(username, connection);
+					if(assigned == null) {
+						printMsg("Waiting for " + (username == null ? "any" : "[" + username + "]'s") + " port ...");
+						return;
 					}
 					
+					assignPort(connection, assigned, false);
 				} catch (IOException ioe) {
 					printMsg("Error: Failed to communicate with an XTEAM Engine.");
-				} catch (Exception e) {
-					printMsg(e.toString());
-				} finally {
-					// close the server socket
-		            try {
-		            	clientSocket.close();
-		            } catch (IOException ioe) {
-		            	printMsg("Error: Cannot close the client socket");
-		            }	
+					closeSocket(clientSocket);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Task that hands a port to a request that has been waiting for it; runs on the handler pool
+	 */
+	protected class PortAssigner implements Runnable {
+		
+		protected final	PortWaiter	waiter;
+		protected final	Pair		assigned;
+		
+		public PortAssigner(PortWaiter waiter, Pair assigned) {
+			this.waiter		= waiter;
+			this.assigned	= assigned;
+		}
+		
+		public void run() {
+			assignPort(waiter.connection, assigned, true);
+		}
+	}
+	
+	/**
+	 * Thread that periodically drops the waiting requests of the FLAME Adaptors that have gone,
+	 * so that their sockets are closed
+	 */
+	protected class WaiterSweeper extends Thread {
+		
+		public WaiterSweeper() {
+			setDaemon(true);
+		}
+		
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(WAITER_CHECK_MILLIS);
+				} catch (InterruptedException ie) {
+					return;
+				}
+				
+				getLock();
+				List<PortWaiter> snapshot = new ArrayList<>(waiters);
+				releaseLock();
+				
+				for(PortWaiter waiter : snapshot) {
+					// the connection is checked only while the request still waits
+					synchronized (waiter.connection) {
+						getLock();
+						boolean waiting = waiters.contains(waiter);
+						releaseLock();
+						if(!waiting || isConnected(waiter.connection)) {
+							continue;
+						}
+						
+						getLock();
+						waiters.remove(waiter);
+						releaseLock();
+					}
+					printMsg("A FLAME Adaptor waiting for " + (waiter.username == null ? "any" : "[" + waiter.username + "]'s") + " port has gone.");
+					closeSocket(waiter.connection.getSocket());
 				}
 			}
 		}
@@ -271,17 +409,44 @@ public class PortNumberTracker {
 ///////////////////////////////////////////////
 	
 	/**
-	 * Adds a port to the mapping
+	 * Adds a port to the mapping, or hands it straight to the first request waiting for it
 	 * 
 	 * @param username		Corresponding username (MRSV, LSV, username) of the XTEAM Engine 
 	 * @param port			Port number
 	 */
 	public void addPort(String username, int port) {
+		Pair pair		= new Pair();
+		pair.username	= username;
+		pair.port		= port;
+		
+		PortWaiter waiter = null;
+		
 		getLock();
-		ports.put(username, port);
+		for(Iterator<PortWaiter> it = waiters.iterator(); it.hasNext(); ) {
+			PortWaiter candidate = it.next();
+			if(candidate.accepts(username)) {
+				it.remove();
+				waiter = candidate;
+				break;
+			}
+		}
+		if(waiter == null) {
+			ports.put(username, port);
+		}
 		releaseLock();
 		
-		printMsg("[" + username + "]'s port [" + port + "] has been added.");
+		printMsg("[" + username + "]'s port [" + port + "] has been " + (waiter == null ? "added." : "handed to a waiting request."));
+		
+		// the waiting request is answered on the handler pool, never on the caller's thread
+		if(waiter != null) {
+			try {
+				handlers.execute(new PortAssigner(waiter, pair));
+			} catch (RejectedExecutionException ree) {
+				printMsg("Error: Too many port requests; a waiting request is turned away.");
+				closeSocket(waiter.connection.getSocket());
+				addPort(username, port);
+			}
+		}
 	}
 	
 	/**
@@ -298,40 +463,131 @@ public class PortNumberTracker {
 	}
 	
 	/**
-	 * "Pops" a port number from the ports map.
+	 * "Pops" the port of an XTEAM Engine from the ports map, or registers the request to be
+	 * handed the port when it is added
 	 * 
-	 * @return				A port number from the EngineName-Port map
+	 * @param username		Username of the XTEAM Engine; null for any
+	 * @param connection	Connection to the FLAME Adaptor that requests the port
+	 * @return				The username and port, or null if the request waits
 	 */
-	public int popRandomPort() throws Exception {
-		
-		String		returnEngineName 	= "";
-		int 		returnPort 			= 0;
-		
-		// Locks the map
+	protected Pair popPortOrWait(String username, FramedConnection connection) {
 		getLock();
+		try {
+			Pair pair = popPort(username);
+			if(pair == null) {
+				waiters.add(new PortWaiter(username, connection));
+			}
+			return pair;
+		} finally {
+			releaseLock();
+		}
+	}
+	
+	/**
+	 * Sends a port to a FLAME Adaptor and waits for its acknowledgment; the port goes back to
+	 * the map if the FLAME Adaptor has gone or does not acknowledge it in time
+	 * 
+	 * @param connection	Connection to the FLAME Adaptor
+	 * @param assigned		The username and port
+	 * @param waited		Whether the request has been waiting, so that the FLAME Adaptor may have gone
+	 */
+	protected void assignPort(FramedConnection connection, Pair assigned, boolean waited) {
+		int port = assigned.port;
 		
-		// Checks if the map is empty
+		synchronized (connection) {
+			try {
+				if(waited && !isConnected(connection)) {
+					throw new IOException ("The FLAME Adaptor has gone while waiting");
+				}
+				
+				printMsg("[" + assigned.username + "]'s port [" + port + "] is being assigned.");
+				
+				// Sends an assigned port number
+				connection.getSocket().setSoTimeout(ACK_TIMEOUT_MILLIS);
+				connection.sendString(Integer.toString(port));
+				
+				// Receives an ACK "ACK"
+				String value = connection.receiveString();
+				
+				// Checks if the received message was "ACK"
+				if(value.equals("ACK")) {
+					printMsg("Port [" + port + "] has succesfully been assigned.");
+				} else {
+					printMsg("Error: Failed to comprehend a message from FLAMEAdaptor [" + value + "]");
+				}
+			} catch (IOException ioe) {
+				// the port is open again since the adaptor is gone
+				printMsg("Error: Failed to assign port [" + port + "]: " + ioe);
+				addPort(assigned.username, port);
+			} finally {
+				closeSocket(connection.getSocket());
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether a FLAME Adaptor that waits for its port is still connected; it sends
+	 * nothing while it waits, so anything but a timed out read means it has gone
+	 * 
+	 * @param connection	Connection to the FLAME Adaptor
+	 * @return				Whether it is still connected
+	 */
+	protected boolean isConnected(FramedConnection connection) {
+		try {
+			return !connection.awaitInput(1);
+		} catch (IOException ioe) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Closes a socket to a FLAME Adaptor
+	 */
+	protected void closeSocket(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException ioe) {
+			printMsg("Error: Cannot close the client socket");
+		}
+	}
+	
+	/**
+	 * Removes the port of an XTEAM Engine from the map; the caller holds the lock
+	 * 
+	 * @param username		Username of the XTEAM Engine; null for the first one in the map
+	 * @return				The username and port, or null if the port is not open
+	 */
+	protected Pair popPort(String username) {
 		if(ports.isEmpty()) {
-			throw new Exception ("The EngineName-Port map is empty.");
+			return null;
 		}
 		
-		// Gets the first entry
-		for(Map.Entry<String, Integer> entry : ports.entrySet()) {
-			printMsg("Popping a port entry [" + entry.getKey() + "]:[" + entry.getValue() + "]");
-			
-			returnEngineName	= entry.getKey();		// Gets the key
-			returnPort 			= entry.getValue();		// Gets the value
-
-			break;										// Breaks after getting the first entry
+		String key = username == null ? ports.keySet().iterator().next() : username;
+		Integer port = ports.remove(key);
+		if(port == null) {
+			return null;
 		}
 		
-		// Removes the retrieved entry
-		ports.remove(returnEngineName);
-		
-		// Releases the lock
-		releaseLock();
+		printMsg("Popping a port entry [" + key + "]:[" + port + "]");
 		
-		return returnPort;
+		Pair pair		= new Pair();
+		pair.username	= key;
+		pair.port		= port;
+		return pair;
+	}
+
+	/**
+	 * Returns the number of port requests being handled
+	 */
+	public int getActiveHandlerCount() {
+		return handlers.getActiveCount();
+	}
+	
+	/**
+	 * Returns the number of port requests waiting for a handler thread
+	 */
+	public int getQueuedHandlerCount() {
+		return handlers.getQueue().size();
 	}
 
 	/**